@@ -1,12 +1,16 @@
 package com.abelini_s3_migrate.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.CorsConfigurationSource;
 import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
 
+import java.net.http.HttpClient;
+import java.time.Duration;
 import java.util.List;
 @Configuration
 public class Config {
@@ -23,10 +27,24 @@ public class Config {
         return source;
     }
 
+    /**
+     * Shared client for every outbound call, it keeps connections alive between requests and
+     * multiplexes them over HTTP/2 where the server supports it.
+     */
     @Bean
-    public RestTemplate restTemplate() {
-        return new RestTemplate();
+    public HttpClient httpClient(@Value("${http_connect_timeout_ms:10000}") long connectTimeoutMillis) {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
     }
 
-}
+    @Bean
+    public RestTemplate restTemplate(HttpClient httpClient, @Value("${http_read_timeout_ms:60000}") long readTimeoutMillis) {
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(httpClient);
+        requestFactory.setReadTimeout(Duration.ofMillis(readTimeoutMillis));
+        return new RestTemplate(requestFactory);
+    }
 
+}
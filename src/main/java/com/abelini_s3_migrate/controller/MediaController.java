@@ -1,5 +1,7 @@
 package com.abelini_s3_migrate.controller;
 
+import com.abelini_s3_migrate.service.ShopifyApiException;
+import com.abelini_s3_migrate.service.ShopifyGraphQLClient;
 import com.abelini_s3_migrate.service.ShopifyService;
 import com.opencsv.CSVReader;
 import com.opencsv.exceptions.CsvException;
@@ -10,7 +12,6 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.client.RestTemplate;
 
 import java.io.BufferedWriter;
 import java.io.FileReader;
@@ -35,11 +36,15 @@ public class MediaController {
 
     @Value("${shopify_access_token}")
     private String SHOPIFY_ACCESS_TOKEN;
-    private  final String SHOPIFY_GRAPHQL_URL = shopifyStore + "/admin/api/2024-04/graphql.json";
-    private final RestTemplate restTemplate = new RestTemplate();
+    private static final String API_VERSION = "2024-04";
+    private final ShopifyGraphQLClient shopifyGraphQLClient;
     private final Tika tika = new Tika();
     private static final Logger logger = LoggerFactory.getLogger(ShopifyService.class);
 
+    public MediaController(ShopifyGraphQLClient shopifyGraphQLClient) {
+        this.shopifyGraphQLClient = shopifyGraphQLClient;
+    }
+
 //    @PostMapping("/upload")
 //    public ResponseEntity<String> uploadMedia(@RequestParam(required = false, name = "filePath") String filePath) throws IOException, CsvException {
 //        logger.info("1");
@@ -146,16 +151,14 @@ public class MediaController {
                 "fileSize", fileSize
         )));
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.valueOf("application/json"));
-        headers.set("X-Shopify-Access-Token", SHOPIFY_ACCESS_TOKEN);
-        logger.info("headers ::: " + headers);
-        Map<String, Object> requestBody = Map.of("query", query, "variables", variables);
-        HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
-
-        ResponseEntity<Map> response = restTemplate.exchange(SHOPIFY_GRAPHQL_URL, HttpMethod.POST, request, Map.class);
-        logger.info("7");
-        return response.getStatusCode() == HttpStatus.OK;
+        try {
+            shopifyGraphQLClient.execute(API_VERSION, query, variables);
+            logger.info("7");
+            return true;
+        } catch (ShopifyApiException e) {
+            logger.error("Shopify staged upload request failed: {}", e.getMessage());
+            return false;
+        }
     }
 
     private String getResourceType(String mimeType) {
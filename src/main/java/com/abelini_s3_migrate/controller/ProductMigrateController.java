@@ -1,5 +1,6 @@
 package com.abelini_s3_migrate.controller;
 
+import com.abelini_s3_migrate.extra.VariantImportJob;
 import com.abelini_s3_migrate.repo.ProductIdsRepository;
 import com.abelini_s3_migrate.service.ProductMigrationService;
 import org.slf4j.Logger;
@@ -117,6 +118,28 @@ public class ProductMigrateController {
         return "importedAll3ScriptIn1Call started successfully";
     }
 
+    @PostMapping("/imported-bulk-mutation")
+    public String importedVariantsBulkMutation(@RequestParam VariantImportJob job,
+                                               @RequestParam(required = false, defaultValue = "true") boolean isTest,
+                                               @RequestBody(required = false) Set<Long> targetProductIds) {
+        migrationService.importedVariantsBulkMutation(job, isTest, targetProductIds);
+        return "importedVariantsBulkMutation started successfully for " + job;
+    }
+
+    @PostMapping("/import/cancel")
+    public ResponseEntity<String> cancelImport(@RequestParam String job) {
+        if (!migrationService.cancelImport(job)) {
+            return ResponseEntity.badRequest().body("No running import for " + job);
+        }
+        return ResponseEntity.ok("Cancellation requested for " + job);
+    }
+
+    @DeleteMapping("/import/checkpoints")
+    public ResponseEntity<String> resetCheckpoints(@RequestParam VariantImportJob job) {
+        int deleted = migrationService.resetCheckpoints(job);
+        return ResponseEntity.ok("Deleted " + deleted + " checkpoints for " + job);
+    }
+
     @GetMapping("/import/summary")
     public ResponseEntity<String> getImportSummaries() {
         String summary = migrationService.printSummary();
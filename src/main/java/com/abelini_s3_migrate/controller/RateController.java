@@ -1,6 +1,7 @@
 package com.abelini_s3_migrate.controller;
 
 import com.abelini_s3_migrate.service.ProductMigrationService;
+import com.abelini_s3_migrate.service.ShopifyRateLimiter;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -11,16 +12,18 @@ import org.springframework.web.bind.annotation.RestController;
 public class RateController {
 
     private final ProductMigrationService productMigrationService;
+    private final ShopifyRateLimiter shopifyRateLimiter;
 
-    public RateController(ProductMigrationService productMigrationService) {
+    public RateController(ProductMigrationService productMigrationService, ShopifyRateLimiter shopifyRateLimiter) {
         this.productMigrationService = productMigrationService;
+        this.shopifyRateLimiter = shopifyRateLimiter;
     }
 
     @GetMapping("api/v1/rate-limit/consume")
     public ResponseEntity<?> apiRateLimitConsume() {
         try {
-            productMigrationService.regulateApiRate();
-            ProductMigrationService.remainingPoints.addAndGet(-ProductMigrationService.API_COST_PER_CALL);
+            // the caller sends its request itself, so the points are spent without being held in flight
+            shopifyRateLimiter.consume(ProductMigrationService.API_COST_PER_CALL);
             return ResponseEntity.ok("Allowed");
         } catch (Exception e) {
             return ResponseEntity.status(500).body("Error occurred or Rate limit too low. Try again later.");
@@ -30,7 +33,7 @@ public class RateController {
     @GetMapping("api/v1/rate-limit/check")
     public ResponseEntity<?> apiRateLimitCheck() {
         try {
-            return ResponseEntity.ok(ProductMigrationService.remainingPoints.get());
+            return ResponseEntity.ok(shopifyRateLimiter.getCurrentlyAvailable());
         } catch (Exception e) {
             return ResponseEntity.status(500).body("Error occurred, Try again later.");
         }
@@ -1,6 +1,11 @@
 package com.abelini_s3_migrate.controller;
 
+import com.abelini_s3_migrate.service.ShopifyApiException;
+import com.abelini_s3_migrate.service.ShopifyGraphQLClient;
 import com.abelini_s3_migrate.service.ShopifyService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.tika.Tika;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,11 +31,16 @@ public class StagingController {
     @Value("${shopify_access_token}")
     private String ACCESS_TOKEN;
     private static final Logger logger = LoggerFactory.getLogger(StagingController.class);
-    private final String SHOPIFY_GRAPHQL_URL = shopifyStore + "/admin/api/2024-04/graphql.json";
+    private static final String API_VERSION = "2024-04";
     private final ShopifyService shopifyService;
+    private final ShopifyGraphQLClient shopifyGraphQLClient;
+    private final RestTemplate restTemplate;
+    private final ObjectMapper objectMapper = new ObjectMapper();
 
-    public StagingController(ShopifyService shopifyService) {
+    public StagingController(ShopifyService shopifyService, ShopifyGraphQLClient shopifyGraphQLClient, RestTemplate restTemplate) {
         this.shopifyService = shopifyService;
+        this.shopifyGraphQLClient = shopifyGraphQLClient;
+        this.restTemplate = restTemplate;
     }
 
     // ✅ Generate Shopify File Path
@@ -82,7 +92,6 @@ public class StagingController {
 
     // ✅ Download File from S3
     private byte[] downloadFile(String fileUrl) throws Exception {
-        RestTemplate restTemplate = new RestTemplate();
         return restTemplate.getForObject(fileUrl, byte[].class);
     }
 
@@ -103,7 +112,6 @@ public class StagingController {
 
     // ✅ Get Staged Upload URL from Shopify
     private Map<String, Object> getShopifyUploadUrl(String filename, String mimeType, long fileSize) {
-        RestTemplate restTemplate = new RestTemplate();
 
         String graphqlQuery = String.format("""
                     mutation {
@@ -125,17 +133,10 @@ public class StagingController {
                     }
                 """, fileSize, filename, mimeType);
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.set("X-Shopify-Access-Token", ACCESS_TOKEN);
-
-        Map<String, String> body = Map.of("query", graphqlQuery);
-        HttpEntity<Map<String, String>> request = new HttpEntity<>(body, headers);
-
-        ResponseEntity<Map> response = restTemplate.exchange(SHOPIFY_GRAPHQL_URL, HttpMethod.POST, request, Map.class);
-        logger.info("Shopify API Response: {}", response.getBody());
+        Map<String, Object> response = readMap(shopifyGraphQLClient.execute(API_VERSION, graphqlQuery, null));
+        logger.info("Shopify API Response: {}", response);
 
-        return (Map<String, Object>) ((Map<String, Object>) response.getBody().get("data")).get("stagedUploadsCreate");
+        return (Map<String, Object>) ((Map<String, Object>) response.get("data")).get("stagedUploadsCreate");
     }
 
     // ✅ Extract File Key for Registration
@@ -150,7 +151,6 @@ public class StagingController {
 
     // ✅ Upload File to Shopify Storage
     private void uploadFileToShopifyStorage(byte[] fileBytes, Map<String, Object> uploadDetails, String filename) throws Exception {
-        RestTemplate restTemplate = new RestTemplate();
 
         // ✅ Extract Upload URL
         List<Map<String, Object>> stagedTargets = (List<Map<String, Object>>) uploadDetails.get("stagedTargets");
@@ -189,7 +189,6 @@ public class StagingController {
 
     // ✅ Register File in Shopify
     private void registerFileInShopify(String fileKey, String mimeType, String filename) {
-        RestTemplate restTemplate = new RestTemplate();
 
         // ✅ GraphQL Mutation for File Registration
         String graphqlQuery = String.format("""
@@ -210,25 +209,29 @@ public class StagingController {
                     }
                 """, fileKey, getShopifyFileType(mimeType), filename, filename);
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.set("X-Shopify-Access-Token", ACCESS_TOKEN);
-
-        Map<String, String> body = Map.of("query", graphqlQuery);
-        HttpEntity<Map<String, String>> request = new HttpEntity<>(body, headers);
-
         // ✅ Send Request to Shopify
-        ResponseEntity<Map> response = restTemplate.exchange(
-                SHOPIFY_GRAPHQL_URL, HttpMethod.POST, request, Map.class);
-        logger.info("Shopify File Registration Response: {}", response.getBody());
-        if (response.getStatusCode().is2xxSuccessful() && !response.getBody().containsKey("errors")) {
-            logger.info("success");
-        } else {
-            logger.error("upload failed");
+        try {
+            Map<String, Object> response = readMap(shopifyGraphQLClient.execute(API_VERSION, graphqlQuery, null));
+            logger.info("Shopify File Registration Response: {}", response);
+            if (!response.containsKey("errors")) {
+                logger.info("success");
+            } else {
+                logger.error("upload failed");
+            }
+        } catch (ShopifyApiException e) {
+            logger.error("upload failed: {}", e.getMessage());
         }
 
     }
 
+    private Map<String, Object> readMap(String json) {
+        try {
+            return objectMapper.readValue(json, new TypeReference<Map<String, Object>>() {});
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Invalid Shopify response: " + json, e);
+        }
+    }
+
     private String getShopifyFileType(String mimeType) {
         if (mimeType.startsWith("image/")) return "IMAGE";
         if (mimeType.startsWith("video/")) return "VIDEO";
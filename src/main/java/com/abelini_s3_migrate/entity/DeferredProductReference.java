@@ -0,0 +1,36 @@
+package com.abelini_s3_migrate.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * A product reference list metafield written while some of its products were not imported yet.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "dd_deferred_product_reference",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"ownerId", "metafieldKey"}))
+public class DeferredProductReference {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Shopify GID of the product the metafield belongs to
+    private String ownerId;
+
+    private String metafieldKey;
+
+    // every referenced OpenCart product id, comma separated in ERP order
+    @Column(columnDefinition = "TEXT")
+    private String productIds;
+
+    private int resolvedCount;
+
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,35 @@
+package com.abelini_s3_migrate.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "dd_import_checkpoint",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"jobType", "productId", "page"}))
+public class ImportCheckpoint {
+    public static final String COMPLETED = "COMPLETED";
+    public static final String FAILED = "FAILED";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private String jobType;
+
+    private String productId;
+
+    private int page;
+
+    private String lastVariantCode;
+
+    private String status;
+
+    private LocalDateTime updatedAt;
+}
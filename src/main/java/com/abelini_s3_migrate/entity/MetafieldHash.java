@@ -0,0 +1,32 @@
+package com.abelini_s3_migrate.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "dd_metafield_hash",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"ownerId", "namespace", "metafieldKey"}),
+        indexes = @Index(columnList = "ownerId"))
+public class MetafieldHash {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private String ownerId;
+
+    private String namespace;
+
+    private String metafieldKey;
+
+    // hash of the type and value last accepted by Shopify
+    private long valueHash;
+
+    private LocalDateTime updatedAt;
+}
@@ -9,7 +9,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Entity
-@Table(name = "dd_search_product_shopify")
+@Table(name = "dd_search_product_shopify", indexes = @Index(name = "idx_search_product_shopify_product_variant", columnList = "productId, variantCode"))
 public class Product2Lakh {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -9,7 +9,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Entity
-@Table(name = "dd_bestseller_product_shopify")
+@Table(name = "dd_bestseller_product_shopify", indexes = @Index(name = "idx_bestseller_product_shopify_product_variant", columnList = "productId, variantCode"))
 public class ProductBestseller {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
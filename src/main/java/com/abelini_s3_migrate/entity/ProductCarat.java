@@ -9,7 +9,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Entity
-@Table(name = "dd_carat_product_shopify")
+@Table(name = "dd_carat_product_shopify", indexes = @Index(name = "idx_carat_product_shopify_product_variant", columnList = "productId, variantCode"))
 public class ProductCarat {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
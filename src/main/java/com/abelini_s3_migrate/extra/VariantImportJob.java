@@ -0,0 +1,21 @@
+package com.abelini_s3_migrate.extra;
+
+public enum VariantImportJob {
+    LAKH("https://erp.abelini.com/shopify/api/product/all_products.php",
+            "https://erp.abelini.com/shopify/api/product/all_product_pnc.php"),
+    CARAT("https://erp.abelini.com/shopify/api/product/all_products_carat.php",
+            "https://erp.abelini.com/shopify/api/all_product_variation_carat.php"),
+    BESTSELLER("https://erp.abelini.com/shopify/api/product/all_products_shape_stone.php",
+            "https://erp.abelini.com/shopify/api/all_product_variation_shape_stone.php");
+
+    private final String productListUrl;
+    private final String variantDetailsUrl;
+
+    VariantImportJob(String productListUrl, String variantDetailsUrl) {
+        this.productListUrl = productListUrl;
+        this.variantDetailsUrl = variantDetailsUrl;
+    }
+
+    public String getProductListUrl() { return productListUrl; }
+    public String getVariantDetailsUrl() { return variantDetailsUrl; }
+}
@@ -0,0 +1,12 @@
+package com.abelini_s3_migrate.repo;
+
+import com.abelini_s3_migrate.entity.DeferredProductReference;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface DeferredProductReferenceRepository extends JpaRepository<DeferredProductReference, Long> {
+    Optional<DeferredProductReference> findByOwnerIdAndMetafieldKey(String ownerId, String metafieldKey);
+}
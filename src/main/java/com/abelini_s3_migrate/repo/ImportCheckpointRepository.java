@@ -0,0 +1,25 @@
+package com.abelini_s3_migrate.repo;
+
+import com.abelini_s3_migrate.entity.ImportCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Optional;
+import java.util.Set;
+
+@Repository
+public interface ImportCheckpointRepository extends JpaRepository<ImportCheckpoint, Long> {
+    @Query("SELECT c.page FROM ImportCheckpoint c WHERE c.jobType = :jobType AND c.productId = :productId AND c.status = 'COMPLETED'")
+    Set<Integer> findCompletedPages(@Param("jobType") String jobType, @Param("productId") String productId);
+
+    Optional<ImportCheckpoint> findByJobTypeAndProductIdAndPage(String jobType, String productId, int page);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM ImportCheckpoint c WHERE c.jobType = :jobType")
+    int deleteByJobType(@Param("jobType") String jobType);
+}
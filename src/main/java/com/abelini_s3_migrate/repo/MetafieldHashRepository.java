@@ -0,0 +1,12 @@
+package com.abelini_s3_migrate.repo;
+
+import com.abelini_s3_migrate.entity.MetafieldHash;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface MetafieldHashRepository extends JpaRepository<MetafieldHash, Long> {
+    List<MetafieldHash> findByOwnerId(String ownerId);
+}
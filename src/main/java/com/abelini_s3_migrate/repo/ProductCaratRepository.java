@@ -1,15 +1,22 @@
 package com.abelini_s3_migrate.repo;
 
 import com.abelini_s3_migrate.entity.ProductCarat;
+import jakarta.persistence.QueryHint;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.Set;
+import java.util.stream.Stream;
 
 @Repository
 public interface ProductCaratRepository extends JpaRepository<ProductCarat, Long> {
     @Query("SELECT p.variantCode FROM ProductCarat p WHERE p.productId = :productId")
     Set<String> findVarientIdsByProductId(@Param("productId") String productId);
+
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "" + Integer.MIN_VALUE))
+    @Query("SELECT p.productId, p.variantCode FROM ProductCarat p")
+    Stream<Object[]> streamAllVariantCodes();
 }
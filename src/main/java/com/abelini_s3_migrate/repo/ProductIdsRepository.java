@@ -1,12 +1,35 @@
 package com.abelini_s3_migrate.repo;
 
 import com.abelini_s3_migrate.entity.ProductIds;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 @Repository
 public interface ProductIdsRepository extends JpaRepository<ProductIds, String> {
+    int KEYSET_PAGE_SIZE = 1000;
+
     List<ProductIds> findByProductId(String number);
+
+    @Query("SELECT new com.abelini_s3_migrate.entity.ProductIds(p.productId, p.shopifyProductId) FROM ProductIds p WHERE p.productId > :after ORDER BY p.productId")
+    List<ProductIds> findPageAfter(@Param("after") String after, Pageable pageable);
+
+    /**
+     * Every mapping in product id order as detached projections, read in keyset pages of
+     * {@link #KEYSET_PAGE_SIZE} rows so only one page is held at a time and no connection is kept
+     * open while the caller works on a row.
+     */
+    default Stream<ProductIds> streamAll() {
+        Pageable page = PageRequest.of(0, KEYSET_PAGE_SIZE);
+        return Stream.iterate(findPageAfter("", page),
+                        rows -> !rows.isEmpty(),
+                        rows -> rows.size() < KEYSET_PAGE_SIZE ? List.of() : findPageAfter(rows.get(rows.size() - 1).getProductId(), page))
+                .flatMap(List::stream);
+    }
 }
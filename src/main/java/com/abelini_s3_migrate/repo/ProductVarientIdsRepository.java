@@ -1,9 +1,32 @@
 package com.abelini_s3_migrate.repo;
 
 import com.abelini_s3_migrate.entity.ProductVarientIds;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+import java.util.stream.Stream;
+
 @Repository
 public interface ProductVarientIdsRepository extends JpaRepository<ProductVarientIds, Long> {
+    int KEYSET_PAGE_SIZE = 1000;
+
+    @Query("SELECT v.id, v.productId, v.tagNo, v.shopifyProductId FROM ProductVarientIds v WHERE v.id > :after ORDER BY v.id")
+    List<Object[]> findShopifyIdsAfter(@Param("after") Long after, Pageable pageable);
+
+    /**
+     * Every (id, product id, tag no, Shopify product id) row in id order, read in keyset pages of
+     * {@link #KEYSET_PAGE_SIZE} rows so only one page is held at a time.
+     */
+    default Stream<Object[]> streamShopifyIds() {
+        Pageable page = PageRequest.of(0, KEYSET_PAGE_SIZE);
+        return Stream.iterate(findShopifyIdsAfter(0L, page),
+                        rows -> !rows.isEmpty(),
+                        rows -> rows.size() < KEYSET_PAGE_SIZE ? List.of() : findShopifyIdsAfter((Long) rows.get(rows.size() - 1)[0], page))
+                .flatMap(List::stream);
+    }
 }
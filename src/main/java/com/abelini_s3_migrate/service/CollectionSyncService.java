@@ -0,0 +1,346 @@
+package com.abelini_s3_migrate.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Brings a collection to a desired list of products. The current membership is read with a bulk
+ * query, only the missing products are added and, when asked, the extra ones removed, in batches of
+ * {@value #BATCH_SIZE} sent in parallel within the shared rate budget. Manually sorted collections
+ * are then read back and put in the desired order with collectionReorderProducts, moving only the
+ * products that are out of place.
+ */
+@Service
+public class CollectionSyncService {
+    private static final Logger logger = LoggerFactory.getLogger(CollectionSyncService.class);
+
+    private static final int API_COST_PER_CALL = 10;
+    private static final int BATCH_SIZE = 250;
+    private static final long JOB_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String GRAPHQL_BULK_OPERATION_RUN_QUERY = """
+            mutation BulkOperationRunQuery($query: String!) {
+              bulkOperationRunQuery(query: $query) {
+                bulkOperation {
+                  id
+                  status
+                }
+                userErrors {
+                  field
+                  message
+                }
+              }
+            }
+            """;
+
+    private static final String BULK_QUERY_COLLECTION_PRODUCTS = """
+            {
+              collection(id: "%s") {
+                id
+                sortOrder
+                products {
+                  edges {
+                    node {
+                      id
+                    }
+                  }
+                }
+              }
+            }
+            """;
+
+    private static final String GRAPHQL_COLLECTION_ADD_PRODUCTS = """
+            mutation CollectionAddProducts($id: ID!, $productIds: [ID!]!) {
+              collectionAddProducts(id: $id, productIds: $productIds) {
+                collection {
+                  id
+                }
+                userErrors {
+                  field
+                  message
+                }
+              }
+            }
+            """;
+
+    private static final String GRAPHQL_COLLECTION_REMOVE_PRODUCTS = """
+            mutation CollectionRemoveProducts($id: ID!, $productIds: [ID!]!) {
+              collectionRemoveProducts(id: $id, productIds: $productIds) {
+                job {
+                  id
+                  done
+                }
+                userErrors {
+                  field
+                  message
+                }
+              }
+            }
+            """;
+
+    private static final String GRAPHQL_COLLECTION_REORDER_PRODUCTS = """
+            mutation CollectionReorderProducts($id: ID!, $moves: [MoveInput!]!) {
+              collectionReorderProducts(id: $id, moves: $moves) {
+                job {
+                  id
+                  done
+                }
+                userErrors {
+                  field
+                  message
+                }
+              }
+            }
+            """;
+
+    private static final String GRAPHQL_QUERY_JOB = """
+            query Job($id: ID!) {
+              job(id: $id) {
+                id
+                done
+              }
+            }
+            """;
+
+    private record Membership(String sortOrder, List<String> productIds) {
+    }
+
+    private final ShopifyGraphQLClient shopifyGraphQLClient;
+    private final ShopifyRateLimiter shopifyRateLimiter;
+    private final ShopifyRetryPolicy shopifyRetryPolicy;
+    private final ShopifyFileFetcherService shopifyFileFetcherService;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final int concurrency;
+
+    public CollectionSyncService(ShopifyGraphQLClient shopifyGraphQLClient, ShopifyRateLimiter shopifyRateLimiter, ShopifyRetryPolicy shopifyRetryPolicy,
+                                 ShopifyFileFetcherService shopifyFileFetcherService,
+                                 @Value("${collection_sync_concurrency:4}") int concurrency) {
+        this.shopifyGraphQLClient = shopifyGraphQLClient;
+        this.shopifyRateLimiter = shopifyRateLimiter;
+        this.shopifyRetryPolicy = shopifyRetryPolicy;
+        this.shopifyFileFetcherService = shopifyFileFetcherService;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Syncs the collection with the desired products. Shopify runs one bulk query per shop at a
+     * time, so concurrent syncs are serialized.
+     *
+     * @param desiredProductIds Shopify product GIDs in the desired collection order, duplicates are ignored.
+     * @param removeOthers      whether products in the collection that are not desired are removed.
+     * @return false when the current membership could not be read and nothing was changed.
+     */
+    public synchronized boolean sync(String collectionId, List<String> desiredProductIds, boolean removeOthers) {
+        long start = System.currentTimeMillis();
+        List<String> desired = new ArrayList<>(new LinkedHashSet<>(desiredProductIds));
+        Membership membership = readMembership(collectionId);
+        if (membership == null) {
+            logger.error("Unable to read the products of collection {}, sync skipped", collectionId);
+            return false;
+        }
+
+        Set<String> desiredSet = new HashSet<>(desired);
+        Set<String> currentSet = new HashSet<>(membership.productIds());
+        List<String> toAdd = desired.stream().filter(id -> !currentSet.contains(id)).toList();
+        List<String> toRemove = removeOthers ? membership.productIds().stream().filter(id -> !desiredSet.contains(id)).toList() : List.of();
+        logger.info("Collection {} has {} products, {} desired: adding {}, removing {}", collectionId,
+                membership.productIds().size(), desired.size(), toAdd.size(), toRemove.size());
+
+        int addFailed = sendInParallel(collectionId, GRAPHQL_COLLECTION_ADD_PRODUCTS, "collectionAddProducts", toAdd);
+        int removeFailed = sendInParallel(collectionId, GRAPHQL_COLLECTION_REMOVE_PRODUCTS, "collectionRemoveProducts", toRemove);
+
+        int moves = 0;
+        if (!"MANUAL".equals(membership.sortOrder())) {
+            logger.info("Collection {} is sorted by {}, the desired order is not applied", collectionId, membership.sortOrder());
+        } else if (addFailed == 0 && removeFailed == 0) {
+            // parallel add batches are appended in any order, so the moves are computed from the collection as it is now
+            Membership updated = toAdd.isEmpty() && toRemove.isEmpty() ? membership : readMembership(collectionId);
+            if (updated == null) {
+                logger.warn("Unable to read collection {} back, the desired order is not applied", collectionId);
+            } else {
+                moves = reorder(collectionId, computeMoves(updated.productIds(), desired));
+            }
+        } else {
+            logger.warn("Collection {} membership is incomplete, the desired order is not applied", collectionId);
+        }
+
+        logger.info("Synced collection {} in {} ms: added {}/{}, removed {}/{}, moved {}", collectionId, System.currentTimeMillis() - start,
+                toAdd.size() - addFailed, toAdd.size(), toRemove.size() - removeFailed, toRemove.size(), moves);
+        return true;
+    }
+
+    private Membership readMembership(String collectionId) {
+        GraphQLResponse started = send("bulkOperationRunQuery", false, GRAPHQL_BULK_OPERATION_RUN_QUERY,
+                Map.of("query", BULK_QUERY_COLLECTION_PRODUCTS.formatted(collectionId)));
+        if (started == null || started.hasErrors() || started.hasUserErrors()) {
+            logger.error("Error starting collection bulk query: {}", started);
+            return null;
+        }
+
+        JsonNode bulkInfo = shopifyFileFetcherService.pollBulkOperation("QUERY");
+        if (bulkInfo == null) {
+            return null;
+        }
+        String url = bulkInfo.path("url").asText(null);
+        if (url == null || url.isEmpty()) {
+            // an empty result has no file, and neither does a collection that does not exist
+            logger.warn("Collection bulk query for {} returned no data", collectionId);
+            return new Membership(null, List.of());
+        }
+
+        List<String> productIds = new ArrayList<>();
+        String[] sortOrder = new String[1];
+        shopifyFileFetcherService.streamBulkFile(url, line -> {
+            try {
+                JsonNode node = objectMapper.readTree(line);
+                if (node.has("__parentId")) {
+                    productIds.add(node.path("id").asText());
+                } else {
+                    sortOrder[0] = node.path("sortOrder").asText(null);
+                }
+            } catch (Exception e) {
+                logger.error("Unable to read collection bulk line: {}", line, e);
+            }
+        });
+        return new Membership(sortOrder[0], productIds);
+    }
+
+    /**
+     * @return the number of products in failed batches.
+     */
+    private int sendInParallel(String collectionId, String mutation, String operation, List<String> productIds) {
+        if (productIds.isEmpty()) {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, (productIds.size() + BATCH_SIZE - 1) / BATCH_SIZE));
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < productIds.size(); i += BATCH_SIZE) {
+                List<String> batch = productIds.subList(i, Math.min(i + BATCH_SIZE, productIds.size()));
+                futures.add(executor.submit(() -> {
+                    GraphQLResponse response = send(operation, true, mutation, Map.of("id", collectionId, "productIds", batch));
+                    if (response == null || response.hasErrors() || response.hasUserErrors()) {
+                        logger.error("{} failed for {} products of collection {}: {}", operation, batch.size(), collectionId, response);
+                        return batch.size();
+                    }
+                    // removals run as an asynchronous job
+                    if (!awaitJob(response.getData().path(operation).path("job"))) {
+                        logger.error("{} job of collection {} did not finish for {} products", operation, collectionId, batch.size());
+                        return batch.size();
+                    }
+                    return 0;
+                }));
+            }
+            int failed = 0;
+            for (Future<Integer> future : futures) {
+                try {
+                    failed += future.get();
+                } catch (ExecutionException e) {
+                    logger.error("{} batch failed for collection {}", operation, collectionId, e.getCause());
+                    failed += BATCH_SIZE;
+                }
+            }
+            return Math.min(failed, productIds.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return productIds.size();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Computes the moves that put the collection in the desired order when applied in sequence.
+     * Desired products that are not in the collection are ignored, the other products of the
+     * collection keep their relative order after the desired ones.
+     *
+     * @param current the product ids in their current collection order.
+     */
+    static List<Map<String, Object>> computeMoves(List<String> current, List<String> desired) {
+        List<String> order = new ArrayList<>(current);
+        Set<String> present = new HashSet<>(current);
+        List<Map<String, Object>> moves = new ArrayList<>();
+        int position = 0;
+        for (String productId : new LinkedHashSet<>(desired)) {
+            if (!present.contains(productId)) {
+                continue;
+            }
+            if (!productId.equals(order.get(position))) {
+                order.remove(productId);
+                order.add(position, productId);
+                moves.add(Map.of("id", productId, "newPosition", String.valueOf(position)));
+            }
+            position++;
+        }
+        return moves;
+    }
+
+    /**
+     * Sends the moves in batches. Moves are applied in order, so each reorder job is awaited before
+     * the next batch.
+     *
+     * @return the number of moves applied.
+     */
+    private int reorder(String collectionId, List<Map<String, Object>> moves) {
+        for (int i = 0; i < moves.size(); i += BATCH_SIZE) {
+            List<Map<String, Object>> batch = moves.subList(i, Math.min(i + BATCH_SIZE, moves.size()));
+            GraphQLResponse response = send("collectionReorderProducts", true, GRAPHQL_COLLECTION_REORDER_PRODUCTS, Map.of("id", collectionId, "moves", batch));
+            if (response == null || response.hasErrors() || response.hasUserErrors()) {
+                logger.error("collectionReorderProducts failed for collection {}, {} of {} moves applied: {}", collectionId, i, moves.size(), response);
+                return i;
+            }
+            if (!awaitJob(response.getData().path("collectionReorderProducts").path("job"))) {
+                logger.error("Reorder job of collection {} did not finish, {} of {} moves applied", collectionId, i, moves.size());
+                return i;
+            }
+        }
+        return moves.size();
+    }
+
+    private boolean awaitJob(JsonNode job) {
+        String jobId = job.path("id").asText(null);
+        if (jobId == null || job.path("done").asBoolean()) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + JOB_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                TimeUnit.SECONDS.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            GraphQLResponse response = send("job", true, GRAPHQL_QUERY_JOB, Map.of("id", jobId));
+            if (response != null && response.getData().path("job").path("done").asBoolean()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private GraphQLResponse send(String operation, boolean idempotent, String query, Map<String, Object> variables) {
+        try {
+            return shopifyRetryPolicy.execute(operation, idempotent, API_COST_PER_CALL, attempt -> {
+                shopifyRateLimiter.acquire(API_COST_PER_CALL);
+                try {
+                    GraphQLResponse response = shopifyGraphQLClient.query(query, variables);
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, response);
+                    return response;
+                } catch (ShopifyApiException e) {
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, (GraphQLResponse) null);
+                    throw e;
+                }
+            }, GraphQLResponse::isThrottled);
+        } catch (Exception e) {
+            logger.error("Error sending {}: {}", operation, e.getMessage(), e);
+            return null;
+        }
+    }
+}
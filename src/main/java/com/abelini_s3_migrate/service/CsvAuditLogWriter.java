@@ -0,0 +1,186 @@
+package com.abelini_s3_migrate.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends import audit rows to CSV files from any thread. Rows go into a lock-free queue and a
+ * single writer thread drains it, keeping one channel open per file and writing everything that
+ * queued up since the last pass in one go. {@link #sync()} waits until every row logged before the
+ * call is on disk.
+ */
+@Service
+public class CsvAuditLogWriter {
+    private static final Logger logger = LoggerFactory.getLogger(CsvAuditLogWriter.class);
+
+    private static class Entry {
+        private final String file;
+        private final String productId;
+        private final String variantId;
+        private final int page;
+        private final String status;
+        private final String shopifyId;
+        private final CompletableFuture<Void> barrier;
+
+        private Entry(String file, String productId, String variantId, int page, String status, String shopifyId, CompletableFuture<Void> barrier) {
+            this.file = file;
+            this.productId = productId;
+            this.variantId = variantId;
+            this.page = page;
+            this.status = status;
+            this.shopifyId = shopifyId;
+            this.barrier = barrier;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final Map<String, FileChannel> channels = new ConcurrentHashMap<>();
+    private final long groupCommitNanos;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    public CsvAuditLogWriter(@Value("${audit_log_group_commit_ms:200}") long groupCommitMillis) {
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, groupCommitMillis));
+        this.writerThread = new Thread(this::writeLoop, "csv-audit-log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Opens the file for appending, writing the header first when the file is new.
+     */
+    public void register(String file, String header) {
+        channels.computeIfAbsent(file, key -> {
+            try {
+                Path path = Paths.get(key);
+                if (path.getParent() != null) {
+                    Files.createDirectories(path.getParent());
+                }
+                boolean isNew = !Files.exists(path) || Files.size(path) == 0;
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                if (isNew) {
+                    channel.write(StandardCharsets.UTF_8.encode(header + "\n"));
+                }
+                return channel;
+            } catch (IOException e) {
+                throw new RuntimeException("Error creating log CSV file", e);
+            }
+        });
+    }
+
+    public void append(String file, String productId, String variantId, int page, String status, String shopifyId) {
+        queue.add(new Entry(file, productId, variantId, page, status, shopifyId, null));
+    }
+
+    /**
+     * Blocks until every row appended before this call is written and forced to disk.
+     */
+    public void sync() {
+        CompletableFuture<Void> barrier = new CompletableFuture<>();
+        queue.add(new Entry(null, null, null, 0, null, null, barrier));
+        LockSupport.unpark(writerThread);
+        try {
+            barrier.get(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Error waiting for audit log sync", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.force(true);
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Error closing audit log file", e);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        Map<String, StringBuilder> pending = new HashMap<>();
+        while (running || !queue.isEmpty()) {
+            Entry entry;
+            boolean drained = false;
+            while ((entry = queue.poll()) != null) {
+                drained = true;
+                if (entry.barrier != null) {
+                    commit(pending);
+                    forceAll();
+                    entry.barrier.complete(null);
+                    continue;
+                }
+                pending.computeIfAbsent(entry.file, key -> new StringBuilder(8192))
+                        .append(entry.productId).append(',')
+                        .append(entry.variantId).append(',')
+                        .append(entry.page).append(',')
+                        .append(entry.status).append(',')
+                        .append(entry.shopifyId).append('\n');
+            }
+            commit(pending);
+            if (!drained) {
+                LockSupport.parkNanos(groupCommitNanos);
+            }
+        }
+        commit(pending);
+    }
+
+    private void commit(Map<String, StringBuilder> pending) {
+        for (Map.Entry<String, StringBuilder> rows : pending.entrySet()) {
+            if (rows.getValue().length() == 0) continue;
+            try {
+                FileChannel channel = channels.get(rows.getKey());
+                if (channel == null) {
+                    register(rows.getKey(), "product_id,variant_id,page,status,shopify_id");
+                    channel = channels.get(rows.getKey());
+                }
+                ByteBuffer buffer = StandardCharsets.UTF_8.encode(rows.getValue().toString());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (Exception e) {
+                logger.error("Failed to write log entries to {}: {}", rows.getKey(), e.getMessage());
+            }
+            rows.getValue().setLength(0);
+        }
+    }
+
+    private void forceAll() {
+        for (Map.Entry<String, FileChannel> channel : channels.entrySet()) {
+            try {
+                channel.getValue().force(false);
+            } catch (IOException e) {
+                logger.error("Failed to sync log file {}: {}", channel.getKey(), e.getMessage());
+            }
+        }
+    }
+}
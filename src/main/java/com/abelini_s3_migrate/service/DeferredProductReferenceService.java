@@ -0,0 +1,127 @@
+package com.abelini_s3_migrate.service;
+
+import com.abelini_s3_migrate.entity.DeferredProductReference;
+import com.abelini_s3_migrate.repo.DeferredProductReferenceRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Product reference list metafields are written with the referenced products already imported, in
+ * ERP order. References to products that are not imported yet are recorded here once the owner's
+ * Shopify id is known, and {@link #backfill} rewrites only the affected metafields when those
+ * products exist, instead of re-running a metafield upload over the whole catalogue.
+ */
+@Service
+public class DeferredProductReferenceService {
+    private static final Logger logger = LoggerFactory.getLogger(DeferredProductReferenceService.class);
+
+    private final DeferredProductReferenceRepository deferredProductReferenceRepository;
+    private final ProductReferenceCache productReferenceCache;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public DeferredProductReferenceService(DeferredProductReferenceRepository deferredProductReferenceRepository, ProductReferenceCache productReferenceCache) {
+        this.deferredProductReferenceRepository = deferredProductReferenceRepository;
+        this.productReferenceCache = productReferenceCache;
+    }
+
+    /**
+     * A reference list that was written with only part of its products.
+     */
+    public record Pending(String metafieldKey, List<String> productIds, int resolvedCount) {
+    }
+
+    /**
+     * Records the partly written reference lists of a product.
+     */
+    public void defer(String ownerId, List<Pending> references) {
+        if (ownerId == null || references == null || references.isEmpty()) {
+            return;
+        }
+        for (Pending reference : references) {
+            try {
+                DeferredProductReference deferred = deferredProductReferenceRepository.findByOwnerIdAndMetafieldKey(ownerId, reference.metafieldKey())
+                        .orElseGet(DeferredProductReference::new);
+                deferred.setOwnerId(ownerId);
+                deferred.setMetafieldKey(reference.metafieldKey());
+                deferred.setProductIds(String.join(",", reference.productIds()));
+                deferred.setResolvedCount(reference.resolvedCount());
+                deferred.setUpdatedAt(LocalDateTime.now());
+                deferredProductReferenceRepository.save(deferred);
+            } catch (Exception e) {
+                logger.error("Unable to defer {} references of {}", reference.metafieldKey(), ownerId, e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites every deferred reference list that gained products since it was written. Lists that
+     * are now complete are dropped, the others keep waiting.
+     *
+     * @param writer writes metafieldsSet inputs of any owners and returns the ones Shopify rejected.
+     * @return the number of metafields rewritten.
+     */
+    public int backfill(Function<List<Map<String, Object>>, List<Map<String, Object>>> writer) {
+        List<DeferredProductReference> pending = deferredProductReferenceRepository.findAll();
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        List<Map<String, Object>> inputs = new ArrayList<>();
+        Map<Map<String, Object>, DeferredProductReference> owners = new IdentityHashMap<>();
+        Map<Map<String, Object>, Integer> resolvedCounts = new IdentityHashMap<>();
+        for (DeferredProductReference deferred : pending) {
+            List<String> productIds = Arrays.asList(deferred.getProductIds().split(","));
+            Map<String, String> resolved = productReferenceCache.resolve(productIds);
+            if (resolved.size() <= deferred.getResolvedCount()) {
+                continue;
+            }
+            try {
+                Map<String, Object> input = new LinkedHashMap<>(8);
+                input.put("ownerId", deferred.getOwnerId());
+                input.putAll(MetafieldMapping.input("custom", deferred.getMetafieldKey(), "list.product_reference",
+                        objectMapper.writeValueAsString(resolved.values())));
+                inputs.add(input);
+                owners.put(input, deferred);
+                resolvedCounts.put(input, resolved.size());
+            } catch (JsonProcessingException e) {
+                logger.error("Unable to build {} references of {}", deferred.getMetafieldKey(), deferred.getOwnerId(), e);
+            }
+        }
+        if (inputs.isEmpty()) {
+            logger.info("No deferred product references can be resolved yet, {} waiting", pending.size());
+            return 0;
+        }
+
+        Set<Map<String, Object>> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+        failed.addAll(writer.apply(inputs));
+
+        List<DeferredProductReference> completed = new ArrayList<>();
+        List<DeferredProductReference> progressed = new ArrayList<>();
+        for (Map<String, Object> input : inputs) {
+            if (failed.contains(input)) {
+                continue;
+            }
+            DeferredProductReference deferred = owners.get(input);
+            int resolvedCount = resolvedCounts.get(input);
+            if (resolvedCount == deferred.getProductIds().split(",").length) {
+                completed.add(deferred);
+            } else {
+                deferred.setResolvedCount(resolvedCount);
+                deferred.setUpdatedAt(LocalDateTime.now());
+                progressed.add(deferred);
+            }
+        }
+        deferredProductReferenceRepository.deleteAll(completed);
+        deferredProductReferenceRepository.saveAll(progressed);
+        logger.info("Back-filled {} deferred product reference metafields, {} completed, {} failed, {} still waiting",
+                inputs.size() - failed.size(), completed.size(), failed.size(), pending.size() - completed.size());
+        return inputs.size() - failed.size();
+    }
+}
@@ -0,0 +1,151 @@
+package com.abelini_s3_migrate.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Shopify GraphQL response decoded in one pass over the body. The data payload is kept as a tree
+ * for the caller, while top level errors, the userErrors of every mutation payload and the query
+ * cost are pulled out into typed records so nobody has to search the raw body for them.
+ */
+public class GraphQLResponse {
+
+    public record Error(String message, String code) {
+    }
+
+    public record UserError(List<String> field, String message, String code) {
+    }
+
+    public record ThrottleStatus(double maximumAvailable, double currentlyAvailable, double restoreRate) {
+    }
+
+    public record Cost(double requestedQueryCost, double actualQueryCost, ThrottleStatus throttleStatus) {
+    }
+
+    private final JsonNode data;
+    private final List<Error> errors;
+    private final List<UserError> userErrors;
+    private final Cost cost;
+
+    private GraphQLResponse(JsonNode data, List<Error> errors, List<UserError> userErrors, Cost cost) {
+        this.data = data;
+        this.errors = errors;
+        this.userErrors = userErrors;
+        this.cost = cost;
+    }
+
+    /**
+     * Reads a response from a parser positioned before its root object.
+     */
+    public static GraphQLResponse read(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("GraphQL response is not a JSON object");
+        }
+
+        JsonNode data = MissingNode.getInstance();
+        List<Error> errors = Collections.emptyList();
+        Cost cost = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "data" -> data = parser.currentToken() == JsonToken.VALUE_NULL ? MissingNode.getInstance() : parser.readValueAsTree();
+                case "errors" -> errors = readErrors(parser);
+                case "extensions" -> cost = readCost(parser.readValueAsTree());
+                default -> parser.skipChildren();
+            }
+        }
+        return new GraphQLResponse(data, errors, collectUserErrors(data), cost);
+    }
+
+    /**
+     * @return the data payload, a missing node when the response had none.
+     */
+    public JsonNode getData() {
+        return data;
+    }
+
+    public List<Error> getErrors() {
+        return errors;
+    }
+
+    public List<UserError> getUserErrors() {
+        return userErrors;
+    }
+
+    /**
+     * @return the cost extension, null when Shopify did not send one.
+     */
+    public Cost getCost() {
+        return cost;
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    public boolean hasUserErrors() {
+        return !userErrors.isEmpty();
+    }
+
+    public boolean isThrottled() {
+        return errors.stream().anyMatch(error -> "THROTTLED".equals(error.code()));
+    }
+
+    @Override
+    public String toString() {
+        return "GraphQLResponse{errors=" + errors + ", userErrors=" + userErrors + ", data=" + data + "}";
+    }
+
+    private static List<Error> readErrors(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return Collections.emptyList();
+        }
+        List<Error> errors = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            JsonNode error = parser.readValueAsTree();
+            errors.add(new Error(error.path("message").asText(), error.path("extensions").path("code").asText(null)));
+        }
+        return errors;
+    }
+
+    private static Cost readCost(JsonNode extensions) {
+        JsonNode cost = extensions == null ? null : extensions.path("cost");
+        if (cost == null || cost.isMissingNode()) {
+            return null;
+        }
+        JsonNode throttle = cost.path("throttleStatus");
+        ThrottleStatus throttleStatus = throttle.isMissingNode() ? null : new ThrottleStatus(
+                throttle.path("maximumAvailable").asDouble(),
+                throttle.path("currentlyAvailable").asDouble(),
+                throttle.path("restoreRate").asDouble());
+        return new Cost(cost.path("requestedQueryCost").asDouble(), cost.path("actualQueryCost").asDouble(), throttleStatus);
+    }
+
+    // mutation payloads sit directly under data, e.g. data.productCreate.userErrors
+    private static List<UserError> collectUserErrors(JsonNode data) {
+        List<UserError> userErrors = null;
+        for (Iterator<Map.Entry<String, JsonNode>> payloads = data.fields(); payloads.hasNext(); ) {
+            JsonNode payloadErrors = payloads.next().getValue().path("userErrors");
+            for (JsonNode userError : payloadErrors) {
+                if (userErrors == null) {
+                    userErrors = new ArrayList<>();
+                }
+                List<String> field = new ArrayList<>();
+                userError.path("field").forEach(part -> field.add(part.asText()));
+                userErrors.add(new UserError(field, userError.path("message").asText(), userError.path("code").asText(null)));
+            }
+        }
+        return userErrors == null ? Collections.emptyList() : userErrors;
+    }
+}
@@ -0,0 +1,257 @@
+package com.abelini_s3_migrate.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Runs the variant tasks of an import job in two stages, a transform stage that builds the Shopify
+ * payload and a write stage that sends it, each on its own fixed number of workers. The queue in
+ * front of the writers is bounded, so transform workers block when Shopify is the bottleneck, and
+ * submissions block once the whole pipeline is full, so the producer never runs ahead of either
+ * stage. Completion of products is reported in the order the products were started, no matter
+ * which variant finishes last.
+ */
+public class ImportWorkerPool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ImportWorkerPool.class);
+
+    public interface ProductCompletionListener {
+        void onProductCompleted(String productId, int succeeded, int failed);
+    }
+
+    private static class ProductProgress {
+        private final String productId;
+        private final AtomicInteger pending = new AtomicInteger(0);
+        private final AtomicInteger succeeded = new AtomicInteger(0);
+        private final AtomicInteger failed = new AtomicInteger(0);
+        private volatile boolean finished;
+
+        private ProductProgress(String productId) {
+            this.productId = productId;
+        }
+
+        private boolean isDone() {
+            return finished && pending.get() == 0;
+        }
+    }
+
+    private final String name;
+    private final ExecutorService transformExecutor;
+    private final ThreadPoolExecutor writeExecutor;
+    private final Semaphore inFlight;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final ProductCompletionListener listener;
+    private final Map<String, ProductProgress> products = new HashMap<>();
+    private final Deque<ProductProgress> completionOrder = new ArrayDeque<>();
+
+    public ImportWorkerPool(String name, int concurrency, ProductCompletionListener listener) {
+        this(name, 1, concurrency, listener);
+    }
+
+    public ImportWorkerPool(String name, int transformConcurrency, int writeConcurrency, ProductCompletionListener listener) {
+        int transformWorkers = Math.max(1, transformConcurrency);
+        int writeWorkers = Math.max(1, writeConcurrency);
+        this.name = name;
+        this.listener = listener;
+        this.inFlight = new Semaphore((transformWorkers + writeWorkers) * 2);
+        this.transformExecutor = Executors.newFixedThreadPool(transformWorkers, threadFactory(name + "-transform"));
+        this.writeExecutor = new ThreadPoolExecutor(writeWorkers, writeWorkers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(writeWorkers * 2), threadFactory(name + "-write"), (task, executor) -> {
+            // block the transform worker until a writer frees a slot
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException(name + " write stage is shut down");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        });
+    }
+
+    public synchronized void startProduct(String productId) {
+        ProductProgress progress = new ProductProgress(productId);
+        products.put(productId, progress);
+        completionOrder.addLast(progress);
+    }
+
+    /**
+     * Queues one variant of a started product that needs no transform step.
+     *
+     * @param task returns true when the variant was imported.
+     * @return false when the pool was cancelled and the task was not queued.
+     */
+    public boolean submit(String productId, BooleanSupplier task) {
+        return submit(productId, () -> null, ignored -> task.getAsBoolean());
+    }
+
+    /**
+     * Queues one variant of a started product. Blocks while the pipeline is full.
+     *
+     * @param transform builds the payload on a transform worker.
+     * @param write     sends the payload on a write worker and returns true when the variant was imported.
+     * @return false when the pool was cancelled and the task was not queued.
+     */
+    public <T> boolean submit(String productId, Supplier<T> transform, Predicate<T> write) {
+        ProductProgress progress;
+        synchronized (this) {
+            progress = products.get(productId);
+        }
+        if (progress == null) {
+            throw new IllegalStateException("Product " + productId + " was not started in " + name);
+        }
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            // no permit was taken, so there is none to give back
+            Thread.currentThread().interrupt();
+            cancel();
+            return false;
+        }
+        if (cancelled.get()) {
+            inFlight.release();
+            return false;
+        }
+
+        progress.pending.incrementAndGet();
+        transformExecutor.execute(() -> {
+            T payload;
+            try {
+                if (cancelled.get()) {
+                    complete(progress, false);
+                    return;
+                }
+                payload = transform.get();
+            } catch (Exception e) {
+                logger.error("Error in {} transform for product {}", name, productId, e);
+                complete(progress, false);
+                return;
+            }
+
+            try {
+                writeExecutor.execute(() -> {
+                    boolean success = false;
+                    try {
+                        success = !cancelled.get() && write.test(payload);
+                    } catch (Exception e) {
+                        logger.error("Error in {} write for product {}", name, productId, e);
+                    } finally {
+                        complete(progress, success);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.error("{} write stage rejected a variant of product {}", name, productId);
+                complete(progress, false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Counts a failure against the product without running a task, e.g. an ERP page that could not be fetched.
+     */
+    public void recordFailure(String productId) {
+        ProductProgress progress;
+        synchronized (this) {
+            progress = products.get(productId);
+        }
+        if (progress != null) {
+            progress.failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Marks that no more variants will be submitted for the product.
+     */
+    public void finishProduct(String productId) {
+        ProductProgress progress;
+        synchronized (this) {
+            progress = products.get(productId);
+        }
+        if (progress != null) {
+            progress.finished = true;
+            drainCompleted();
+        }
+    }
+
+    public void cancel() {
+        if (cancelled.compareAndSet(false, true)) {
+            logger.warn("Import {} cancelled, queued variants will be skipped", name);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * Waits for every queued variant and reports the remaining products.
+     */
+    public void awaitCompletion() {
+        try {
+            // the transform stage feeds the write stage, so it has to drain first
+            transformExecutor.shutdown();
+            while (!transformExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for {} to finish, {} variants in flight", name, pendingCount());
+            }
+            writeExecutor.shutdown();
+            while (!writeExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for {} to finish, {} variants in flight", name, pendingCount());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+        }
+        drainCompleted();
+    }
+
+    @Override
+    public void close() {
+        transformExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    private void complete(ProductProgress progress, boolean success) {
+        (success ? progress.succeeded : progress.failed).incrementAndGet();
+        progress.pending.decrementAndGet();
+        inFlight.release();
+        drainCompleted();
+    }
+
+    private synchronized int pendingCount() {
+        return products.values().stream().mapToInt(p -> p.pending.get()).sum();
+    }
+
+    private synchronized void drainCompleted() {
+        while (!completionOrder.isEmpty() && completionOrder.peekFirst().isDone()) {
+            ProductProgress progress = completionOrder.pollFirst();
+            products.remove(progress.productId);
+            try {
+                listener.onProductCompleted(progress.productId, progress.succeeded.get(), progress.failed.get());
+            } catch (Exception e) {
+                logger.error("Error reporting completion of product {} in {}", progress.productId, name, e);
+            }
+        }
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,94 @@
+package com.abelini_s3_migrate.service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Set of imported (product id, variant code) pairs kept as 64 bit hashes in an open addressing
+ * table, so millions of variants fit in one flat long array instead of a String set per product.
+ * Two pairs sharing a hash would make the second one look imported, which is not expected at 64
+ * bits for the sizes these jobs reach.
+ */
+public class ImportedVariantIndex {
+    private static final long EMPTY = 0L;
+
+    private long[] table;
+    private int size;
+
+    public ImportedVariantIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) << 1;
+        this.table = new long[capacity];
+    }
+
+    /**
+     * @return true when the pair was not in the index yet.
+     */
+    public synchronized boolean add(String productId, String variantCode) {
+        if ((size + 1) * 2 > table.length) {
+            resize();
+        }
+        if (insert(table, hash(productId, variantCode))) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean contains(String productId, String variantCode) {
+        long key = hash(productId, variantCode);
+        int mask = table.length - 1;
+        for (int slot = (int) key & mask; table[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (table[slot] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void resize() {
+        long[] resized = new long[table.length * 2];
+        for (long key : table) {
+            if (key != EMPTY) {
+                insert(resized, key);
+            }
+        }
+        table = resized;
+    }
+
+    private static boolean insert(long[] target, long key) {
+        int mask = target.length - 1;
+        int slot = (int) key & mask;
+        while (target[slot] != EMPTY) {
+            if (target[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        target[slot] = key;
+        return true;
+    }
+
+    private static long hash(String productId, String variantCode) {
+        // FNV-1a over both values with a separator byte, finished with the murmur3 mixer
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, productId);
+        hash = (hash ^ 0xff) * 0x100000001b3L;
+        hash = fnv(hash, variantCode);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    private static long fnv(long hash, String value) {
+        for (byte b : String.valueOf(value).getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
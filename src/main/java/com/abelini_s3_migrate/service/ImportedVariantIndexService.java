@@ -0,0 +1,66 @@
+package com.abelini_s3_migrate.service;
+
+import com.abelini_s3_migrate.extra.VariantImportJob;
+import com.abelini_s3_migrate.repo.Product2lakhRepository;
+import com.abelini_s3_migrate.repo.ProductBestsellerRepository;
+import com.abelini_s3_migrate.repo.ProductCaratRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Loads the variant codes already imported by a job once, at job start, instead of one query per
+ * product. Variants saved while the job runs are added through {@link #markImported}.
+ */
+@Service
+public class ImportedVariantIndexService {
+    private static final Logger logger = LoggerFactory.getLogger(ImportedVariantIndexService.class);
+
+    private final Product2lakhRepository product2lakhRepository;
+    private final ProductCaratRepository productCaratRepository;
+    private final ProductBestsellerRepository productBestsellerRepository;
+    private final Map<VariantImportJob, ImportedVariantIndex> indexes = new ConcurrentHashMap<>();
+
+    public ImportedVariantIndexService(Product2lakhRepository product2lakhRepository, ProductCaratRepository productCaratRepository, ProductBestsellerRepository productBestsellerRepository) {
+        this.product2lakhRepository = product2lakhRepository;
+        this.productCaratRepository = productCaratRepository;
+        this.productBestsellerRepository = productBestsellerRepository;
+    }
+
+    /**
+     * Streams every stored (product id, variant code) pair of the job into a fresh index and keeps
+     * it for {@link #markImported}.
+     */
+    @Transactional(readOnly = true)
+    public ImportedVariantIndex load(VariantImportJob job) {
+        long start = System.currentTimeMillis();
+        ImportedVariantIndex index = switch (job) {
+            case LAKH -> fill((int) product2lakhRepository.count(), product2lakhRepository.streamAllVariantCodes());
+            case CARAT -> fill((int) productCaratRepository.count(), productCaratRepository.streamAllVariantCodes());
+            case BESTSELLER -> fill((int) productBestsellerRepository.count(), productBestsellerRepository.streamAllVariantCodes());
+        };
+        indexes.put(job, index);
+        logger.info("Loaded {} imported {} variants in {} ms", index.size(), job, System.currentTimeMillis() - start);
+        return index;
+    }
+
+    public void markImported(VariantImportJob job, String productId, String variantCode) {
+        ImportedVariantIndex index = indexes.get(job);
+        if (index != null) {
+            index.add(productId, variantCode);
+        }
+    }
+
+    private ImportedVariantIndex fill(int expectedSize, Stream<Object[]> rows) {
+        ImportedVariantIndex index = new ImportedVariantIndex(expectedSize);
+        try (rows) {
+            rows.forEach(row -> index.add((String) row[0], (String) row[1]));
+        }
+        return index;
+    }
+}
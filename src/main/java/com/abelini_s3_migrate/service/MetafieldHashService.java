@@ -0,0 +1,123 @@
+package com.abelini_s3_migrate.service;
+
+import com.abelini_s3_migrate.entity.MetafieldHash;
+import com.abelini_s3_migrate.repo.MetafieldHashRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Remembers a hash of every metafield value Shopify accepted, per owner, namespace and key, so
+ * re-syncs can send only the metafields whose computed value changed since the last write.
+ */
+@Service
+public class MetafieldHashService {
+    private static final Logger logger = LoggerFactory.getLogger(MetafieldHashService.class);
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final MetafieldHashRepository metafieldHashRepository;
+
+    public MetafieldHashService(MetafieldHashRepository metafieldHashRepository) {
+        this.metafieldHashRepository = metafieldHashRepository;
+    }
+
+    /**
+     * The metafieldsSet inputs of one owner compared with the hashes stored for it.
+     */
+    public static final class Diff {
+        private final String ownerId;
+        private final Map<String, MetafieldHash> stored;
+        private final List<Map<String, Object>> changed = new ArrayList<>();
+
+        private Diff(String ownerId, Map<String, MetafieldHash> stored) {
+            this.ownerId = ownerId;
+            this.stored = stored;
+        }
+
+        /**
+         * @return the inputs that were never written or whose value differs from the last write.
+         */
+        public List<Map<String, Object>> changed() {
+            return changed;
+        }
+    }
+
+    public Diff diff(String ownerId, List<Map<String, Object>> inputs) {
+        Map<String, MetafieldHash> stored = new HashMap<>();
+        for (MetafieldHash hash : metafieldHashRepository.findByOwnerId(ownerId)) {
+            stored.put(hash.getNamespace() + "." + hash.getMetafieldKey(), hash);
+        }
+
+        Diff diff = new Diff(ownerId, stored);
+        for (Map<String, Object> input : inputs) {
+            MetafieldHash previous = stored.get(input.get("namespace") + "." + input.get("key"));
+            if (previous == null || previous.getValueHash() != hash(input)) {
+                diff.changed.add(input);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * Stores the hashes of the sent inputs Shopify accepted.
+     *
+     * @param failed the sent inputs Shopify rejected or that were never confirmed.
+     */
+    public void record(Diff diff, List<Map<String, Object>> sent, List<Map<String, Object>> failed) {
+        Set<Map<String, Object>> rejected = Collections.newSetFromMap(new IdentityHashMap<>());
+        rejected.addAll(failed);
+
+        LocalDateTime now = LocalDateTime.now();
+        List<MetafieldHash> updated = new ArrayList<>();
+        for (Map<String, Object> input : sent) {
+            if (rejected.contains(input)) {
+                continue;
+            }
+            String namespace = input.get("namespace").toString();
+            String key = input.get("key").toString();
+            long valueHash = hash(input);
+            MetafieldHash hash = diff.stored.get(namespace + "." + key);
+            if (hash == null) {
+                hash = new MetafieldHash(null, diff.ownerId, namespace, key, valueHash, now);
+                diff.stored.put(namespace + "." + key, hash);
+            } else if (hash.getValueHash() == valueHash) {
+                continue;
+            } else {
+                hash.setValueHash(valueHash);
+                hash.setUpdatedAt(now);
+            }
+            updated.add(hash);
+        }
+
+        if (!updated.isEmpty()) {
+            try {
+                metafieldHashRepository.saveAll(updated);
+            } catch (Exception e) {
+                // a lost hash only means the value is sent again next time
+                logger.warn("Unable to store metafield hashes for {}: {}", diff.ownerId, e.getMessage());
+            }
+        }
+    }
+
+    // 64 bit FNV-1a over type and value, the key is already part of the row
+    static long hash(Map<String, Object> input) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = fnv(hash, String.valueOf(input.get("type")));
+        hash = (hash ^ 0xff) * FNV_PRIME;
+        return fnv(hash, String.valueOf(input.get("value")));
+    }
+
+    private static long fnv(long hash, String text) {
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,192 @@
+package com.abelini_s3_migrate.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * The plain ERP field to product metafield mapping, read from a JSON resource listing source key,
+ * metafield key, metafield type and an optional transform per field. The entries are compiled once
+ * into writers specialised by type, so a product is mapped in a single pass straight into
+ * metafieldsSet inputs.
+ */
+public final class MetafieldMapping {
+    private static final Logger logger = LoggerFactory.getLogger(MetafieldMapping.class);
+
+    public static final String RESOURCE = "metafield-mapping.json";
+
+    private final FieldWriter[] writers;
+
+    private MetafieldMapping(FieldWriter[] writers) {
+        this.writers = writers;
+    }
+
+    /**
+     * Reads and compiles the mapping resource from the classpath.
+     *
+     * @throws IllegalStateException when the resource is missing or holds an unknown type or transform.
+     */
+    public static MetafieldMapping load(ObjectMapper objectMapper, String resource) {
+        try (InputStream in = MetafieldMapping.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("Metafield mapping " + resource + " not found on the classpath");
+            }
+            JsonNode spec = objectMapper.readTree(in);
+            String namespace = spec.path("namespace").asText("custom");
+            List<FieldWriter> writers = new ArrayList<>();
+            for (JsonNode field : spec.path("fields")) {
+                writers.add(compile(namespace, field));
+            }
+            logger.info("Compiled {} metafield mappings from {}", writers.size(), resource);
+            return new MetafieldMapping(writers.toArray(new FieldWriter[0]));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read metafield mapping " + resource, e);
+        }
+    }
+
+    /**
+     * @return a mapping with only the fields read from the given source keys, in mapping order.
+     */
+    public MetafieldMapping select(String... sources) {
+        Set<String> selected = new HashSet<>(Arrays.asList(sources));
+        return new MetafieldMapping(Arrays.stream(writers)
+                .filter(writer -> selected.contains(writer.source))
+                .toArray(FieldWriter[]::new));
+    }
+
+    /**
+     * Appends the metafieldsSet inputs, without ownerId, of every mapped field the product has a value for.
+     */
+    public void write(JSONObject raw, List<Map<String, Object>> inputs) {
+        for (FieldWriter writer : writers) {
+            Object value = raw.opt(writer.source);
+            if (value == null || JSONObject.NULL.equals(value)) {
+                continue;
+            }
+            String text = writer.format(value);
+            if (text != null && !isEmptyValue(text)) {
+                inputs.add(input(writer.namespace, writer.key, writer.type, text));
+            }
+        }
+    }
+
+    public int size() {
+        return writers.length;
+    }
+
+    /**
+     * Builds one metafieldsSet input without ownerId.
+     */
+    public static Map<String, Object> input(String namespace, String key, String type, String value) {
+        Map<String, Object> input = new LinkedHashMap<>(8);
+        input.put("namespace", namespace);
+        input.put("key", key);
+        input.put("type", type);
+        input.put("value", value);
+        return input;
+    }
+
+    // blank values and empty lists are never sent, Shopify rejects them
+    public static boolean isEmptyValue(String value) {
+        return value.isBlank() || "[]".contains(value);
+    }
+
+    private static FieldWriter compile(String namespace, JsonNode field) {
+        String source = field.path("source").asText(null);
+        String type = field.path("type").asText(null);
+        if (source == null || type == null) {
+            throw new IllegalStateException("Metafield mapping entry needs a source and a type: " + field);
+        }
+        String key = field.path("key").asText(source);
+        String transform = field.path("transform").asText("none");
+        boolean slashToUnderscore = switch (transform) {
+            case "none" -> false;
+            case "slash_to_underscore" -> true;
+            default -> throw new IllegalStateException("Unknown metafield transform '" + transform + "' for " + source);
+        };
+
+        if (type.equals("boolean")) {
+            return new BooleanWriter(namespace, source, key);
+        }
+        if (type.contains("text_field") || type.contains("number")) {
+            return new TextWriter(namespace, source, key, type, slashToUnderscore);
+        }
+        if (type.equals("json") || type.startsWith("list.")) {
+            return new FieldWriter(namespace, source, key, type);
+        }
+        throw new IllegalStateException("Unsupported metafield type '" + type + "' for " + source);
+    }
+
+    /**
+     * Writes the value in its JSON form, for json and list types.
+     */
+    private static class FieldWriter {
+        final String namespace;
+        final String source;
+        final String key;
+        final String type;
+
+        FieldWriter(String namespace, String source, String key, String type) {
+            this.namespace = namespace;
+            this.source = source;
+            this.key = key;
+            this.type = type;
+        }
+
+        /**
+         * @return the metafield value, null to skip the field.
+         */
+        String format(Object value) {
+            return value.toString();
+        }
+    }
+
+    private static final class TextWriter extends FieldWriter {
+        private final boolean slashToUnderscore;
+
+        TextWriter(String namespace, String source, String key, String type, boolean slashToUnderscore) {
+            super(namespace, source, key, type);
+            this.slashToUnderscore = slashToUnderscore;
+        }
+
+        @Override
+        String format(Object value) {
+            String text = value.toString();
+            if (isEmptyValue(text)) {
+                return null;
+            }
+            if (slashToUnderscore) {
+                text = text.replace('/', '_');
+            }
+            // arrays are sent as their bare comma separated items
+            return text.indexOf('[') < 0 && text.indexOf(']') < 0 && text.indexOf('"') < 0
+                    ? text : text.replace("[", "").replace("]", "").replace("\"", "");
+        }
+    }
+
+    private static final class BooleanWriter extends FieldWriter {
+        BooleanWriter(String namespace, String source, String key) {
+            super(namespace, source, key, "boolean");
+        }
+
+        @Override
+        String format(Object value) {
+            String text = value.toString().trim().toLowerCase();
+            switch (text) {
+                case "1", "true":
+                    return "true";
+                case "0", "false":
+                    return "false";
+                default:
+                    logger.warn("Invalid boolean value for key {}: {}", source, value);
+                    return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.abelini_s3_migrate.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only lookup table from metaobject display value to metaobject id. Keys are normalized once
+ * when the table is built (trimmed, inner whitespace collapsed to one space, lower case) and kept in
+ * a sorted array; lookups binary search it comparing the raw name in normalized form character by
+ * character, so they allocate nothing. Names that match no entry are logged once per table.
+ */
+public final class MetaobjectDictionary {
+    private static final Logger logger = LoggerFactory.getLogger(MetaobjectDictionary.class);
+
+    public static final MetaobjectDictionary EMPTY = new MetaobjectDictionary("empty", Map.of());
+
+    private final String type;
+    private final String[] keys;
+    private final String[] ids;
+    private final Set<String> reportedMisses = ConcurrentHashMap.newKeySet();
+
+    public MetaobjectDictionary(String type, Map<String, String> entries) {
+        this.type = type;
+        String[][] pairs = new String[entries.size()][];
+        int i = 0;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            pairs[i++] = new String[]{normalize(entry.getKey()), entry.getValue().intern()};
+        }
+        Arrays.sort(pairs, (a, b) -> a[0].compareTo(b[0]));
+
+        String[] sortedKeys = new String[pairs.length];
+        String[] sortedIds = new String[pairs.length];
+        int size = 0;
+        for (String[] pair : pairs) {
+            if (size > 0 && sortedKeys[size - 1].equals(pair[0])) {
+                if (!sortedIds[size - 1].equals(pair[1])) {
+                    logger.warn("{} metaobjects {} and {} share the name '{}', keeping the first", type, sortedIds[size - 1], pair[1], pair[0]);
+                }
+                continue;
+            }
+            sortedKeys[size] = pair[0];
+            sortedIds[size] = pair[1];
+            size++;
+        }
+        this.keys = Arrays.copyOf(sortedKeys, size);
+        this.ids = Arrays.copyOf(sortedIds, size);
+    }
+
+    /**
+     * @return the metaobject id for the name, ignoring case and surrounding or repeated whitespace,
+     * or null when there is none.
+     */
+    public String lookup(String name) {
+        if (name == null) {
+            return null;
+        }
+        int low = 0;
+        int high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareNormalized(keys[mid], name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return ids[mid];
+            }
+        }
+        if (!name.isBlank() && reportedMisses.add(name)) {
+            logger.warn("No {} metaobject named '{}', the reference is skipped", type, name);
+        }
+        return null;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    static String normalize(String name) {
+        StringBuilder normalized = new StringBuilder(name.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            normalized.append(Character.toLowerCase(c));
+        }
+        return normalized.toString();
+    }
+
+    // compares a normalized key with the normalized form of the raw name, without building it
+    private static int compareNormalized(String key, String raw) {
+        int k = 0;
+        int r = 0;
+        int rawLength = raw.length();
+        while (r < rawLength && Character.isWhitespace(raw.charAt(r))) {
+            r++;
+        }
+        while (true) {
+            char next;
+            if (r < rawLength && Character.isWhitespace(raw.charAt(r))) {
+                while (r < rawLength && Character.isWhitespace(raw.charAt(r))) {
+                    r++;
+                }
+                if (r == rawLength) {
+                    return k < key.length() ? 1 : 0;
+                }
+                next = ' ';
+            } else if (r < rawLength) {
+                next = Character.toLowerCase(raw.charAt(r++));
+            } else {
+                return k < key.length() ? 1 : 0;
+            }
+            if (k == key.length()) {
+                return -1;
+            }
+            char current = key.charAt(k++);
+            if (current != next) {
+                return current - next;
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.abelini_s3_migrate.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the Shopify metaobject dictionaries (metaobject display value to metaobject id) used to
+ * build the metaobject reference metafields. The dictionaries are read from a local snapshot at
+ * startup and refreshed from Shopify in the background once the snapshot is older than
+ * metaobject_snapshot_ttl_hours, every type on its own worker and fully paginated. A refresh
+ * replaces all dictionaries at once, a type that fails to load keeps its previous entries and the
+ * refresh is retried after metaobject_retry_minutes instead of the TTL. Every
+ * refresh compiles the entries into immutable {@link MetaobjectDictionary} tables for the importers.
+ */
+@Service
+public class MetaobjectDictionaryService {
+    private static final Logger logger = LoggerFactory.getLogger(MetaobjectDictionaryService.class);
+
+    public static final List<String> TYPES = List.of("metal", "stone_type", "shape", "setting_type", "by_recipient",
+            "category", "colour", "certificate", "clarity", "ring_size", "by_occasion", "personalised", "carat",
+            "band_width", "style_product");
+
+    private static final int API_COST_PER_CALL = 40;
+    private static final String GRAPHQL_QUERY_METAOBJECTS = """
+            query GetAllMetaobjects($type: String!, $after: String) {
+              metaobjects(type: $type, first: 250, after: $after) {
+                edges {
+                  node {
+                    id
+                    fields {
+                      key
+                      value
+                    }
+                  }
+                }
+                pageInfo {
+                  hasNextPage
+                  endCursor
+                }
+              }
+            }
+            """;
+
+    private record Snapshot(long fetchedAt, Map<String, Map<String, String>> dictionaries) {
+    }
+
+    private final ShopifyGraphQLClient shopifyGraphQLClient;
+    private final ShopifyRateLimiter shopifyRateLimiter;
+    private final ShopifyRetryPolicy shopifyRetryPolicy;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Path snapshotFile;
+    private final long ttlMillis;
+    private final long retryMillis;
+    private final int fetchConcurrency;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metaobject-dictionary-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Map<String, Map<String, String>> dictionaries = Collections.emptyMap();
+    private volatile Map<String, MetaobjectDictionary> tables = Collections.emptyMap();
+    private volatile long fetchedAt;
+
+    public MetaobjectDictionaryService(ShopifyGraphQLClient shopifyGraphQLClient, ShopifyRateLimiter shopifyRateLimiter, ShopifyRetryPolicy shopifyRetryPolicy,
+                                       @Value("${metaobject_snapshot_file:metaobject-snapshot.json}") String snapshotFile,
+                                       @Value("${metaobject_snapshot_ttl_hours:24}") long ttlHours,
+                                       @Value("${metaobject_fetch_concurrency:4}") int fetchConcurrency,
+                                       @Value("${metaobject_retry_minutes:15}") long retryMinutes) {
+        this.shopifyGraphQLClient = shopifyGraphQLClient;
+        this.shopifyRateLimiter = shopifyRateLimiter;
+        this.shopifyRetryPolicy = shopifyRetryPolicy;
+        this.snapshotFile = Paths.get(snapshotFile);
+        this.ttlMillis = TimeUnit.HOURS.toMillis(Math.max(1, ttlHours));
+        this.fetchConcurrency = Math.max(1, fetchConcurrency);
+        this.retryMillis = TimeUnit.MINUTES.toMillis(Math.max(1, retryMinutes));
+    }
+
+    /**
+     * Loads the snapshot, if any, and schedules the Shopify refreshes. Does not wait for Shopify.
+     *
+     * @param beforeRefresh runs on the refresh thread before the first refresh, e.g. to sync the rate limiter.
+     */
+    public void start(Runnable beforeRefresh) {
+        readSnapshot();
+        long age = System.currentTimeMillis() - fetchedAt;
+        long firstRefresh = loaded.getCount() == 0 && age < ttlMillis ? ttlMillis - age : 0;
+        refresher.execute(beforeRefresh);
+        scheduleRefresh(firstRefresh);
+        logger.info("Metaobject dictionaries {}, next refresh in {} min",
+                loaded.getCount() == 0 ? "loaded from " + snapshotFile : "not cached yet", TimeUnit.MILLISECONDS.toMinutes(firstRefresh));
+    }
+
+    /**
+     * Returns the dictionary of a metaobject type. Blocks until the first refresh ends when the
+     * service started without a snapshot.
+     */
+    public MetaobjectDictionary get(String type) {
+        awaitLoaded();
+        return tables.getOrDefault(type, MetaobjectDictionary.EMPTY);
+    }
+
+    /**
+     * Reloads every type from Shopify and writes a new snapshot.
+     *
+     * @return true when every type was loaded, false when some kept their cached entries.
+     */
+    public synchronized boolean refresh() {
+        long start = System.currentTimeMillis();
+        Map<String, Map<String, String>> current = dictionaries;
+        Map<String, Map<String, String>> refreshed = new HashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(fetchConcurrency, TYPES.size()));
+        try {
+            Map<String, Future<Map<String, String>>> futures = new LinkedHashMap<>();
+            for (String type : TYPES) {
+                futures.put(type, executor.submit(() -> fetch(type)));
+            }
+            int failed = 0;
+            for (Map.Entry<String, Future<Map<String, String>>> future : futures.entrySet()) {
+                try {
+                    refreshed.put(future.getKey(), future.getValue().get());
+                } catch (ExecutionException e) {
+                    failed++;
+                    logger.error("Error loading metaobjects of type {}, keeping {} cached entries", future.getKey(),
+                            current.getOrDefault(future.getKey(), Collections.emptyMap()).size(), e.getCause());
+                    refreshed.put(future.getKey(), current.getOrDefault(future.getKey(), Collections.emptyMap()));
+                }
+            }
+
+            publish(refreshed);
+            if (failed == 0) {
+                fetchedAt = System.currentTimeMillis();
+                writeSnapshot();
+            }
+            logger.info("Refreshed {} metaobject dictionaries in {} ms, {} failed", TYPES.size(), System.currentTimeMillis() - start, failed);
+            return failed == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdownNow();
+            loaded.countDown();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    // a refresh that left a type on its cached entries is retried soon rather than after the full TTL
+    private void scheduleRefresh(long delayMillis) {
+        refresher.schedule(() -> {
+            boolean complete = false;
+            try {
+                complete = refresh();
+            } finally {
+                long next = complete ? ttlMillis : retryMillis;
+                if (!complete) {
+                    logger.warn("Metaobject dictionaries are incomplete, retrying in {} min", TimeUnit.MILLISECONDS.toMinutes(next));
+                }
+                scheduleRefresh(next);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private Map<String, String> fetch(String type) {
+        Map<String, String> result = new HashMap<>();
+        String cursor = null;
+        do {
+            Map<String, Object> variables = new HashMap<>();
+            variables.put("type", type);
+            variables.put("after", cursor);
+            GraphQLResponse response = shopifyRetryPolicy.execute("Metaobjects " + type, true, API_COST_PER_CALL, attempt -> {
+                shopifyRateLimiter.acquire(API_COST_PER_CALL);
+                try {
+                    GraphQLResponse page = shopifyGraphQLClient.query(GRAPHQL_QUERY_METAOBJECTS, variables);
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, page);
+                    return page;
+                } catch (ShopifyApiException e) {
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, (GraphQLResponse) null);
+                    throw e;
+                }
+            }, GraphQLResponse::isThrottled);
+            if (response.hasErrors()) {
+                throw new IllegalStateException("Shopify returned errors: " + response.getErrors());
+            }
+
+            JsonNode metaobjects = response.getData().path("metaobjects");
+            for (JsonNode edge : metaobjects.path("edges")) {
+                // the first non empty field other than filter_id is the display value
+                for (JsonNode field : edge.path("node").path("fields")) {
+                    String value = field.path("value").asText();
+                    if (!value.isEmpty() && !"filter_id".equals(field.path("key").asText())) {
+                        result.put(value, edge.path("node").path("id").asText());
+                        break;
+                    }
+                }
+            }
+            JsonNode pageInfo = metaobjects.path("pageInfo");
+            cursor = pageInfo.path("hasNextPage").asBoolean() ? pageInfo.path("endCursor").asText(null) : null;
+        } while (cursor != null);
+
+        logger.debug("Loaded {} metaobjects of type {}", result.size(), type);
+        return result;
+    }
+
+    private void publish(Map<String, Map<String, String>> entries) {
+        Map<String, MetaobjectDictionary> compiled = new HashMap<>();
+        entries.forEach((type, dictionary) -> compiled.put(type, new MetaobjectDictionary(type, dictionary)));
+        dictionaries = Collections.unmodifiableMap(new HashMap<>(entries));
+        tables = Collections.unmodifiableMap(compiled);
+    }
+
+    private void awaitLoaded() {
+        try {
+            if (!loaded.await(5, TimeUnit.MINUTES)) {
+                logger.warn("Metaobject dictionaries are still loading, continuing without them");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readSnapshot() {
+        if (!Files.exists(snapshotFile)) {
+            return;
+        }
+        try {
+            Snapshot snapshot = objectMapper.readValue(snapshotFile.toFile(), Snapshot.class);
+            publish(snapshot.dictionaries());
+            fetchedAt = snapshot.fetchedAt();
+            loaded.countDown();
+        } catch (IOException e) {
+            logger.warn("Unable to read metaobject snapshot {}, it will be rebuilt: {}", snapshotFile, e.getMessage());
+        }
+    }
+
+    private void writeSnapshot() {
+        try {
+            Path parent = snapshotFile.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path tmp = Files.createTempFile(parent, snapshotFile.getFileName().toString(), ".tmp");
+            objectMapper.writeValue(tmp.toFile(), new Snapshot(fetchedAt, dictionaries));
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Unable to write metaobject snapshot {}", snapshotFile, e);
+        }
+    }
+}
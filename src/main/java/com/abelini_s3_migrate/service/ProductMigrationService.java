@@ -3,7 +3,9 @@ package com.abelini_s3_migrate.service;
 
 import com.abelini_s3_migrate.entity.*;
 import com.abelini_s3_migrate.extra.ProductEntry;
+import com.abelini_s3_migrate.extra.VariantImportJob;
 import com.abelini_s3_migrate.repo.*;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -12,7 +14,6 @@ import com.google.gson.Gson;
 import com.opencsv.CSVReader;
 import com.opencsv.exceptions.CsvException;
 import jakarta.annotation.PostConstruct;
-import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -28,14 +29,11 @@ import org.springframework.web.multipart.MultipartFile;
 
 import java.io.*;
 import java.math.BigDecimal;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -43,8 +41,10 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.BiFunction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Service
 public class ProductMigrationService {
@@ -60,67 +60,95 @@ public class ProductMigrationService {
     @Value("${abelini_jwt_token}")
     private String jwtToken;
 
+    @Value("${shopify_one_shot_create:true}")
+    private boolean oneShotCreate;
+
+    @Value("${shopify_bulk_max_file_mb:20}")
+    private long bulkMaxFileMb;
+
+    @Value("${shopify_import_concurrency:8}")
+    private int importConcurrency;
+
+    @Value("${shopify_transform_concurrency:2}")
+    private int transformConcurrency;
+
+    @Value("${erp_fetch_concurrency:4}")
+    private int erpFetchConcurrency;
+
+    @Value("${erp_prefetch_pages:8}")
+    private int erpPrefetchPages;
+
+    @Value("${metafield_diff_updates:true}")
+    private boolean metafieldDiffUpdates;
+
+    @Value("${collection_sync_remove_others:false}")
+    private boolean collectionSyncRemoveOthers;
+
     private final ProductIdsRepository productIdsRepository;
     private final ProductVarientIdsRepository productVarientIdsRepository;
     private final Product2lakhRepository product2lakhRepository;
     private final ProductCaratRepository productCaratRepository;
     private final ProductBestsellerRepository productBestsellerRepository;
+    private final ShopifyBulkMutationService shopifyBulkMutationService;
+    private final ShopifyRateLimiter shopifyRateLimiter;
+    private final CsvAuditLogWriter auditLogWriter;
+    private final ImportCheckpointRepository importCheckpointRepository;
+    private final ImportedVariantIndexService importedVariantIndexService;
+    private final ShopifyIdMappingWriter shopifyIdMappingWriter;
+    private final ShopifyGraphQLClient shopifyGraphQLClient;
+    private final ShopifyRetryPolicy shopifyRetryPolicy;
+    private final MetaobjectDictionaryService metaobjectDictionaryService;
+    private final MetafieldHashService metafieldHashService;
+    private final ProductReferenceCache productReferenceCache;
+    private final DeferredProductReferenceService deferredProductReferenceService;
+    private final CollectionSyncService collectionSyncService;
 
     private final Gson gson = new Gson();
-    private final RestTemplate restTemplate = new RestTemplate();
+    private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper = new ObjectMapper();
-    private static final HttpClient client = HttpClient.newHttpClient();
-    private static final int MAX_CONCURRENT_BATCHES = 5;
-    private static final Semaphore semaphore = new Semaphore(MAX_CONCURRENT_BATCHES);
+    private final MetafieldMapping metafieldMapping;
+    private final MetafieldMapping stoneMetafieldMapping;
+    private final MetafieldMapping feedIdMetafieldMapping;
+    private static final String STOCK_IMPORT = "STOCK";
+    private final Map<String, ImportWorkerPool> runningImports = new ConcurrentHashMap<>();
     public static final int API_COST_PER_CALL = 40;
-    private static final int MAX_POINTS = 20000;
-    private static final int RECOVERY_RATE = 1000;
-    private static final int SAFE_THRESHOLD = 2000;
-    public static final AtomicInteger remainingPoints = new AtomicInteger(MAX_POINTS);
+    // metaobject and variant update queries still rely on fields removed after this version
+    private static final String LEGACY_API_VERSION = "2024-04";
 
     @Autowired
     @Lazy
     private ProductMigrationService self;
 
-    private final ScheduledExecutorService creditRecoveryScheduler = Executors.newScheduledThreadPool(1);
-
-    public ProductMigrationService(ProductIdsRepository productIdsRepository, ProductVarientIdsRepository productVarientIdsRepository, Product2lakhRepository product2lakhRepository, ProductCaratRepository productCaratRepository, ProductBestsellerRepository productBestsellerRepository) {
+    public ProductMigrationService(ProductIdsRepository productIdsRepository, ProductVarientIdsRepository productVarientIdsRepository, Product2lakhRepository product2lakhRepository, ProductCaratRepository productCaratRepository, ProductBestsellerRepository productBestsellerRepository, ShopifyBulkMutationService shopifyBulkMutationService, ShopifyRateLimiter shopifyRateLimiter, CsvAuditLogWriter auditLogWriter, ImportCheckpointRepository importCheckpointRepository, ImportedVariantIndexService importedVariantIndexService, ShopifyIdMappingWriter shopifyIdMappingWriter, ShopifyGraphQLClient shopifyGraphQLClient, ShopifyRetryPolicy shopifyRetryPolicy, MetaobjectDictionaryService metaobjectDictionaryService, MetafieldHashService metafieldHashService, ProductReferenceCache productReferenceCache, DeferredProductReferenceService deferredProductReferenceService, CollectionSyncService collectionSyncService, RestTemplate restTemplate) {
         this.productIdsRepository = productIdsRepository;
         this.productVarientIdsRepository = productVarientIdsRepository;
         this.product2lakhRepository = product2lakhRepository;
         this.productCaratRepository = productCaratRepository;
         this.productBestsellerRepository = productBestsellerRepository;
-        creditRecoveryScheduler.scheduleAtFixedRate(() -> {
-            int currentPoints = remainingPoints.get();
-            if (currentPoints < MAX_POINTS) {
-                int newPoints = Math.min(RECOVERY_RATE, MAX_POINTS - currentPoints);
-                remainingPoints.addAndGet(newPoints);
-                logger.debug("Recovered {} API points. Current points: {}", newPoints, remainingPoints.get());
-            }
-        }, 1, 1, TimeUnit.SECONDS);
-        createFileIfMissing();
-        createFileIfMissing2();
-        createFileIfMissing3();
-    }
-
-    public void regulateApiRate() {
-        int maxWaitTime = 5; // Maximum wait time in seconds
-        int waitTime = 0;
-
-        while (remainingPoints.get() < SAFE_THRESHOLD) {
-            if (waitTime >= maxWaitTime) {
-                logger.warn("API points still low after waiting {} seconds. Continuing anyway.", maxWaitTime);
-                break;
-            }
-            logger.info("Low API points ({}), pausing until recovery...", remainingPoints.get());
-            try {
-                Thread.sleep(1000); // Wait 1 second for recovery
-                waitTime++;
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            }
-        }
+        this.shopifyBulkMutationService = shopifyBulkMutationService;
+        this.shopifyRateLimiter = shopifyRateLimiter;
+        this.auditLogWriter = auditLogWriter;
+        this.importCheckpointRepository = importCheckpointRepository;
+        this.importedVariantIndexService = importedVariantIndexService;
+        this.shopifyIdMappingWriter = shopifyIdMappingWriter;
+        this.shopifyGraphQLClient = shopifyGraphQLClient;
+        this.shopifyRetryPolicy = shopifyRetryPolicy;
+        this.metaobjectDictionaryService = metaobjectDictionaryService;
+        this.metafieldHashService = metafieldHashService;
+        this.productReferenceCache = productReferenceCache;
+        this.deferredProductReferenceService = deferredProductReferenceService;
+        this.collectionSyncService = collectionSyncService;
+        this.restTemplate = restTemplate;
+        this.metafieldMapping = MetafieldMapping.load(objectMapper, MetafieldMapping.RESOURCE);
+        this.stoneMetafieldMapping = metafieldMapping.select("having_stone_type", "having_stone_shape");
+        this.feedIdMetafieldMapping = metafieldMapping.select("category_feed_id", "style_feed_id");
+        auditLogWriter.register(CSV_FILE, CSV_HEADER);
+        auditLogWriter.register(CSV_FILE_CARAT, CSV_HEADER);
+        auditLogWriter.register(CSV_FILE_BESTSELLER, CSV_HEADER);
+    }
+
+    private void regulateApiRate() {
+        shopifyRateLimiter.acquire(API_COST_PER_CALL);
     }
 
     public void initializeRemainingPointsFromShopify() {
@@ -132,40 +160,19 @@ public class ProductMigrationService {
             attempt++;
             try {
                 String query = "{ shop { name } }";
-                String graphqlPayload = "{\"query\": \"" + query.replace("\"", "\\\"") + "\"}";
-
-                HttpHeaders headers = new HttpHeaders();
-                headers.setContentType(MediaType.APPLICATION_JSON);
-                headers.set("X-Shopify-Access-Token", accessToken);
-
-                HttpEntity<String> entity = new HttpEntity<>(graphqlPayload, headers);
-
-                ResponseEntity<JsonNode> response = restTemplate.exchange(
-                        shopifyStore + "/admin/api/2024-04/graphql.json",
-                        HttpMethod.POST,
-                        entity,
-                        JsonNode.class
-                );
-
-                if (response.getStatusCode().is2xxSuccessful()) {
-                    JsonNode throttleStatus = response.getBody()
-                            .path("extensions")
-                            .path("cost")
-                            .path("throttleStatus");
-
-                    if (!throttleStatus.isMissingNode()) {
-                        int currentlyAvailable = throttleStatus.path("currentlyAvailable").asInt(MAX_POINTS);
-                        remainingPoints.set(currentlyAvailable);
-                        logger.info("Initialized remainingPoints from Shopify GraphQL throttleStatus: {}", currentlyAvailable);
-                    } else {
-                        logger.warn("Throttle status missing in Shopify GraphQL response. Setting remainingPoints to MAX_POINTS.");
-                        remainingPoints.set(MAX_POINTS);
-                    }
-                    success = true; // mark success to exit retry loop
-                    logger.info("Shopify remaining points initializing success: {}", remainingPoints.get());
+                GraphQLResponse response = shopifyGraphQLClient.query(LEGACY_API_VERSION, query, null);
+                GraphQLResponse.Cost cost = response.getCost();
+
+                if (cost != null && cost.throttleStatus() != null) {
+                    shopifyRateLimiter.onResponse(0, response);
+                    logger.info("Initialized remainingPoints from Shopify GraphQL throttleStatus: {}", (int) cost.throttleStatus().currentlyAvailable());
                 } else {
-                    logger.warn("Shopify API call failed with status: {}. Attempt {}/{}", response.getStatusCode(), attempt, maxRetries);
+                    logger.warn("Throttle status missing in Shopify GraphQL response. Keeping current rate limiter state.");
                 }
+                success = true; // mark success to exit retry loop
+                logger.info("Shopify remaining points initializing success: {}", shopifyRateLimiter.getCurrentlyAvailable());
+            } catch (ShopifyApiException e) {
+                logger.warn("Shopify API call failed with status: {}. Attempt {}/{}", e.getStatusCode(), attempt, maxRetries);
             } catch (Exception e) {
                 logger.error("Error initializing Shopify remainingPoints on attempt {}/{}", attempt, maxRetries, e);
             }
@@ -181,8 +188,7 @@ public class ProductMigrationService {
         }
 
         if (!success) {
-            logger.error("Failed to initialize Shopify remainingPoints after {} attempts. Defaulting to MAX_POINTS.", maxRetries);
-            remainingPoints.set(MAX_POINTS);
+            logger.error("Failed to initialize Shopify remainingPoints after {} attempts. Keeping current rate limiter state.", maxRetries);
         }
     }
 
@@ -196,28 +202,19 @@ public class ProductMigrationService {
         }
     }
 
-    private final String GRAPHQL_QUERY_METAOBJECT = """
-                query GetAllMetaobjects($type: String!) {
-                 metaobjects(type: $type, first: 250) {
-                       edges {
-                         node {
-                           id
-                           fields {
-                             key
-                             value
-                           }
-                         }
-                       }
-                     }
-                }
-            """;
-
     private final String GRAPHQL_QUERY_PRODUCTS_CREATE = """
                 mutation ProductCreateWithMetafields($product: ProductCreateInput!) {
                     productCreate(product: $product) {
                         product {
                             id
                             title
+                            variants(first: 1) {
+                                edges {
+                                    node {
+                                        id
+                                    }
+                                }
+                            }
                         }
                         userErrors {
                             field
@@ -242,253 +239,94 @@ public class ProductMigrationService {
             }
             """;
 
-    private Map<String, String> fetchMetaobjectDetails(String type) {
-        Map<String, String> result = new HashMap<>();
-        try {
-            regulateApiRate();
-            remainingPoints.addAndGet(-API_COST_PER_CALL);
-            // Prepare GraphQL payload
-            Map<String, Object> variables = Map.of("type", type);
-
-            // Make the Shopify API call
-            String response = sendGraphQLRequest(GRAPHQL_QUERY_METAOBJECT, objectMapper.writeValueAsString(variables), false);
-
-            if (response == null) {
-                logger.error("error while fetching meta object details type :: {}", type);
-                return result;
-            }
-
-            // Parse JSON response
-            JsonNode rootNode = objectMapper.readTree(response);
-            JsonNode edges = rootNode.path("data").path("metaobjects").path("edges");
-
-            for (JsonNode edge : edges) {
-                String id = edge.path("node").path("id").asText();
-                JsonNode fieldsNode = edge.path("node").path("fields");
-
-                // Dynamically extract the first valid field that is NOT `filter_id`
-                String key = "";
-                String value = "";
-
-                for (JsonNode field : fieldsNode) {
-                    key = field.path("key").asText();
-                    value = field.path("value").asText();
-
-                    // Ignore null values and `filter_id`
-                    if (!value.isEmpty() && !"filter_id".equals(key)) {
-                        result.put(value, id);
-                        break;  // Store only the first valid key-value pair per metaobject
-                    }
+    private final String GRAPHQL_QUERY_METAFIELDS_SET = """
+            mutation MetafieldsSet($metafields: [MetafieldsSetInput!]!) {
+              metafieldsSet(metafields: $metafields) {
+                metafields {
+                  id
+                  key
                 }
+                userErrors {
+                  field
+                  message
+                  code
+                }
+              }
             }
+            """;
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            logger.info("error in fetching meta object type:: {}", type);
-        }
-        return result;
-    }
-
-    private String sendGraphQLRequest(String query, String variables, boolean is24) {
-        try {
-            String url = "";
-            if (is24) {
-                url = shopifyStore + "/admin/api/2024-04/graphql.json";
-            } else {
-                url = shopifyStore + "/admin/api/2025-01/graphql.json";
-            }
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.set("X-Shopify-Access-Token", accessToken.trim());
-            headers.set("Content-Type", "application/json");
-
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("query", query);
-            requestBody.put("variables", objectMapper.readValue(variables, Map.class));
-
-            String requestJson = new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(requestBody);
-
-            // Log the full HTTP Request (excluding sensitive access token)
-            logger.info("=== Shopify HTTP Request ===");
-            logger.info("POST {}", url);
-            logger.info("Headers: {{ X-Shopify-Access-Token: [REDACTED], Content-Type: application/json }}");
-            logger.info("Body: {}", requestJson);
-
-            HttpEntity<String> request = new HttpEntity<>(requestJson, headers);
-            ResponseEntity<String> response = restTemplate.postForEntity(url, request, String.class);
-
-            // Extract X-Request-Id header
-            String requestId = response.getHeaders().getFirst("X-Request-Id");
-
-            // Log the full HTTP Response
-            String body = response.getBody();
-            logger.info("=== Shopify HTTP Response ===");
-            logger.info("Status: {}", response.getStatusCode());
-//            logger.info("Headers: {}", response.getHeaders());
-            logger.info("X-Request-Id: {}", requestId);
-            logger.info("Body: {}", body);
-
-            if (body.contains("\"userErrors\":[")) {
-                if (!body.contains("\"userErrors\":[]")) {
-                    logger.error("Error receive in shopify response: {}", response);
-                    return null;
+    private final String GRAPHQL_QUERY_VARIANTS_BULK_UPDATE = """
+            mutation ProductVariantsBulkUpdate($productId: ID!, $variants: [ProductVariantsBulkInput!]!) {
+              productVariantsBulkUpdate(productId: $productId, variants: $variants) {
+                productVariants {
+                  id
+                  sku
+                  price
                 }
-            } else if (body.contains("\"errors\":[")) {
-                if (!body.contains("\"errors\":[]")) {
-                    logger.error("Error uploading batch: {}", response);
+                userErrors {
+                  field
+                  message
                 }
-                logger.error("Error receive in shopify response: {}", response);
-                return null;
+              }
             }
+            """;
 
-            return body;
-        } catch (
-                Exception e) {
-            logger.error("Error sending GraphQL request: {}", e.getMessage(), e);
-            return null;
-        }
-    }
-
-    // Methods for each metaobject type
-    public Map<String, String> getAllMetalsDetails() {
-        return fetchMetaobjectDetails("metal");
-    }
-
-//    public Map<String, String> getAllBackingDetails() {
-//        return fetchMetaobjectDetails("backing");
-//    }
-
-    public Map<String, String> getAllRecipientDetails() {
-        return fetchMetaobjectDetails("by_recipient");
-    }
-
-    public Map<String, String> getAllSettingTypeDetails() {
-        return fetchMetaobjectDetails("setting_type");
-    }
-
-    public Map<String, String> getAllShapeDetails() {
-        return fetchMetaobjectDetails("shape");
-    }
-
-    public Map<String, String> getAllStoneTypeDetails() {
-        return fetchMetaobjectDetails("stone_type");
-    }
-
-    private Map<String, String> getAllStyleProductDetails() {
-        return fetchMetaobjectDetails("style_product");
-    }
-
-    private Map<String, String> getAllBandWidthDetails() {
-        return fetchMetaobjectDetails("band_width");
-    }
-
-    private Map<String, String> getAllCaratDetails() {
-        return fetchMetaobjectDetails("carat");
-    }
-
-    private Map<String, String> getAllPersonilizationDetails() {
-        return fetchMetaobjectDetails("personalised");
-    }
-
-    private Map<String, String> getAllOccasionDetails() {
-        return fetchMetaobjectDetails("by_occasion");
-    }
+    // Shopify accepts at most 25 metafields per metafieldsSet call
+    private static final int METAFIELDS_SET_BATCH_SIZE = 25;
 
-    private Map<String, String> getAllRingSizeDetails() {
-        return fetchMetaobjectDetails("ring_size");
+    private GraphQLResponse sendGraphQLRequest(String query, Object variables, boolean is24) {
+        return sendGraphQLRequest(query, variables, is24, true);
     }
 
-    private Map<String, String> getAllClarityDetails() {
-        return fetchMetaobjectDetails("clarity");
-    }
+    private GraphQLResponse sendGraphQLRequest(String query, Object variables, boolean is24, boolean idempotent) {
+        GraphQLResponse response = postGraphQLRequest(query, variables, is24, idempotent);
+        if (response == null) {
+            return null;
+        }
 
-    private Map<String, String> getAllCertificateDetails() {
-        return fetchMetaobjectDetails("certificate");
-    }
+        if (response.hasUserErrors()) {
+            logger.error("Error receive in shopify response: {}", response.getUserErrors());
+            return null;
+        }
+        if (response.hasErrors()) {
+            logger.error("Error receive in shopify response: {}", response.getErrors());
+            return null;
+        }
 
-    private Map<String, String> getAllColourDetails() {
-        return fetchMetaobjectDetails("colour");
+        return response;
     }
 
-    private Map<String, String> getAllCategoryDetails() {
-        return fetchMetaobjectDetails("category");
+    /**
+     * Posts a query with its variables and returns the decoded response, or null when the call itself fails.
+     * Throttled and transient failures are retried through {@link ShopifyRetryPolicy}, 5xx and timeouts
+     * only when the call is idempotent. Callers are responsible for inspecting errors and userErrors.
+     * Every attempt reserves its points from the shared rate limiter before it is sent.
+     */
+    private GraphQLResponse postGraphQLRequest(String query, Object variables, boolean is24, boolean idempotent) {
+        // request and response bodies are logged by ShopifyWireLogger
+        String apiVersion = is24 ? LEGACY_API_VERSION : shopifyGraphQLClient.getApiVersion();
+        try {
+            return shopifyRetryPolicy.execute("Shopify GraphQL request", idempotent, API_COST_PER_CALL, attempt -> {
+                regulateApiRate();
+                try {
+                    GraphQLResponse response = shopifyGraphQLClient.query(apiVersion, query, variables);
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, response);
+                    return response;
+                } catch (ShopifyApiException e) {
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, (GraphQLResponse) null);
+                    throw e;
+                }
+            }, GraphQLResponse::isThrottled);
+        } catch (Exception e) {
+            logger.error("Error sending GraphQL request: {}", e.getMessage(), e);
+            return null;
+        }
     }
 
-    private static final Map<String, String> metalMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> stoneTypeMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> shapeMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> settingTypeMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> recipientMap = new ConcurrentHashMap<>();
-    //    private static final Map<String, String> backingMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> categoryMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> colourMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> certificateMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> clarityMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> ringSizeMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> occasionMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> personilizationMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> caratMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> bandWidthMap = new ConcurrentHashMap<>();
-    private static final Map<String, String> styleProductMap = new ConcurrentHashMap<>();
-    private static final AtomicBoolean initialized = new AtomicBoolean(false);
-
     @PostConstruct
     public void init() {
-        initializeRemainingPointsFromShopify();
-        initializeStaticData();
-    }
-
-    public synchronized void initializeStaticData() {
-        if (initialized.compareAndSet(false, true)) {
-            metalMap.putAll(getAllMetalsDetails());
-            logger.info("Loaded all metal :: {}", metalMap);
-
-            stoneTypeMap.putAll(getAllStoneTypeDetails());
-            logger.info("Loaded all stone type :: {}", stoneTypeMap);
-
-            shapeMap.putAll(getAllShapeDetails());
-            logger.info("Loaded all shape :: {}", shapeMap);
-
-            settingTypeMap.putAll(getAllSettingTypeDetails());
-            logger.info("Loaded all setting type :: {}", settingTypeMap);
-
-            recipientMap.putAll(getAllRecipientDetails());
-            logger.info("Loaded all recipient :: {}", recipientMap);
-
-//            backingMap.putAll(getAllBackingDetails());
-//            logger.info("Loaded all backing :: {}", backingMap);
-
-            categoryMap.putAll(getAllCategoryDetails());
-            logger.info("Loaded all category :: {}", categoryMap);
-
-            colourMap.putAll(getAllColourDetails());
-            logger.info("Loaded all colour :: {}", colourMap);
-
-            certificateMap.putAll(getAllCertificateDetails());
-            logger.info("Loaded all certificate :: {}", certificateMap);
-
-            clarityMap.putAll(getAllClarityDetails());
-            logger.info("Loaded all clarity :: {}", clarityMap);
-
-            ringSizeMap.putAll(getAllRingSizeDetails());
-            logger.info("Loaded all ring size :: {}", ringSizeMap);
-
-            occasionMap.putAll(getAllOccasionDetails());
-            logger.info("Loaded all occasion :: {}", occasionMap);
-
-            personilizationMap.putAll(getAllPersonilizationDetails());
-            logger.info("Loaded all personilization :: {}", personilizationMap);
-
-            caratMap.putAll(getAllCaratDetails());
-            logger.info("Loaded all carat :: {}", caratMap);
-
-            bandWidthMap.putAll(getAllBandWidthDetails());
-            logger.info("Loaded all band width :: {}", bandWidthMap);
-
-            styleProductMap.putAll(getAllStyleProductDetails());
-            logger.info("Loaded all style product :: {}", styleProductMap);
-
-        }
+        // boots from the metaobject snapshot, Shopify is only called on the refresh thread
+        metaobjectDictionaryService.start(this::initializeRemainingPointsFromShopify);
     }
 
     @Async
@@ -530,34 +368,18 @@ public class ProductMigrationService {
                         continue;
                     }
 
-                    Map<String, Object> data = processResponse(apiResponse);
-                    regulateApiRate();
-                    remainingPoints.addAndGet(-API_COST_PER_CALL);
-
-                    Map<String, Object> product = new HashMap<>();
-                    product.put("product", data);
-                    String response = sendGraphQLRequest(GRAPHQL_QUERY_PRODUCTS_CREATE, objectMapper.writeValueAsString(product), false);
+                    String sku = apiResponse.has("sku") ? apiResponse.optString("sku") : null;
+                    Map<String, String> extratcIds = createShopifyProduct(apiResponse, sku, this::getBaseVarientAndSetSkuAndPrice);
 
-                    if (response == null) {
+                    if (extratcIds == null) {
                         logger.error("shopify response null error while creating product id: " + id);
                         totalFailed.incrementAndGet();
                         logger.info("processed product id: {}, with status :: {} , processed till now :: {}/{}", id, false, totalProcessed.get(), totalCount);
                         continue;
                     }
 
-                    Map<String, String> extratcIds = extractProductIdAndVariendId(response);
-
                     //saved ids in db
-                    ProductIds pi = new ProductIds();
-                    pi.setProductId(id);
-                    pi.setShopifyProductId(extratcIds.get("product"));
-                    productIdsRepository.save(pi);
-
-                    getBaseVarientAndSetSkuAndPrice(extratcIds.get("product"), apiResponse);
-
-                    List<JSONObject> metaFields = processMetafields(apiResponse);
-
-                    processApiResponseAndUploadMetafields(extratcIds.get("product"), metaFields);
+                    shopifyIdMappingWriter.saveProductIds(id, extratcIds.get("product"));
 
                     logger.info("Product created successfully for product id: " + id);
                     totalSuccess.incrementAndGet();
@@ -568,6 +390,8 @@ public class ProductMigrationService {
                     logger.error("error in product create for id :: {} :: {}", id, e.getMessage(), e);
                 }
             }
+            shopifyIdMappingWriter.flush();
+            backfillDeferredProductReferences();
 
             logger.info("Import process complete with total processed :: {}/{} with success: {}, failed: {} and started at :: {} and ended at :: {}", totalProcessed.get(), totalCount, totalSuccess.get(), totalFailed.get(), startTime, ZonedDateTime.now(ZoneId.of("Asia/Kolkata")).format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z")));
 
@@ -598,49 +422,26 @@ public class ProductMigrationService {
             Map<String, Object> variable = new HashMap<>();
             variable.put("productId", productId);
 
-            regulateApiRate();
-            remainingPoints.addAndGet(-API_COST_PER_CALL);
-            String response = sendGraphQLRequest(query, objectMapper.writeValueAsString(variable), false);
+            GraphQLResponse response = sendGraphQLRequest(query, variable, false);
             if (response == null) {
                 logger.error("Failed to fetch base variant for product ID: {}", productId);
                 return;
             }
 
-            JSONObject responseObj = new JSONObject(response);
-
-            // Extract base variant ID
-            JSONObject data = responseObj.optJSONObject("data");
-            if (data == null) {
-                logger.error("Invalid GraphQL response: 'data' is missing");
-                return;
-            }
-
-            JSONObject product = data.optJSONObject("product");
-            if (product == null) {
+            JsonNode product = response.getData().path("product");
+            if (!product.isObject()) {
                 logger.warn("No product found for ID: {}", productId);
                 return;
             }
 
-            JSONObject variants = product.optJSONObject("variants");
-            if (variants == null) {
-                logger.warn("No variants found for product ID: {}", productId);
-                return;
-            }
-
-            JSONArray edges = variants.optJSONArray("edges");
-            if (edges == null || edges.isEmpty()) {
+            JsonNode edges = product.path("variants").path("edges");
+            if (edges.isEmpty()) {
                 logger.warn("No variant edges found for product ID: {}", productId);
                 return;
             }
 
             // Extract base variant
-            JSONObject baseVariant = edges.getJSONObject(0).optJSONObject("node");
-            if (baseVariant == null) {
-                logger.warn("Base variant node is missing for product ID: {}", productId);
-                return;
-            }
-
-            String variantId = baseVariant.optString("id", null);
+            String variantId = edges.path(0).path("node").path("id").asText(null);
             if (variantId == null) {
                 logger.warn("Variant ID is missing for product ID: {}", productId);
                 return;
@@ -675,9 +476,7 @@ public class ProductMigrationService {
                     }
                     """;
 
-            regulateApiRate();
-            remainingPoints.addAndGet(-API_COST_PER_CALL);
-            String updateResponse = sendGraphQLRequest(mutation, objectMapper.writeValueAsString(variables), true);
+            GraphQLResponse updateResponse = sendGraphQLRequest(mutation, variables, true);
             if (updateResponse == null) {
                 logger.error("Failed to update variant ID: {}", variantId);
             }
@@ -689,13 +488,167 @@ public class ProductMigrationService {
         }
     }
 
-    private Map<String, String> extractProductIdAndVariendId(String response) throws JsonProcessingException {
-        // Parse JSON response
+    /**
+     * Creates a Shopify product for the ERP record and sets its default variant's SKU and price.
+     * In one-shot mode the metafields travel inline with productCreate and the variant is updated in a
+     * single productVariantsBulkUpdate using the variant id from the create response. Otherwise the
+     * legacy path is used: create, query the base variant, update it, then write the metafields.
+     *
+     * @return the created product/variant ids, or null when the product could not be created.
+     */
+    private Map<String, String> createShopifyProduct(JSONObject apiResponse, String sku, BiConsumer<String, JSONObject> legacyVariantUpdate) throws JsonProcessingException {
+        return createShopifyProduct(prepareShopifyProduct(apiResponse, sku), legacyVariantUpdate);
+    }
+
+    private static class PreparedProduct {
+        private final JSONObject apiResponse;
+        private final String sku;
+        private final Map<String, Object> data;
+        private final List<Map<String, Object>> metaFields;
+        private final List<DeferredProductReferenceService.Pending> deferredReferences;
+
+        private PreparedProduct(JSONObject apiResponse, String sku, Map<String, Object> data, List<Map<String, Object>> metaFields,
+                                List<DeferredProductReferenceService.Pending> deferredReferences) {
+            this.apiResponse = apiResponse;
+            this.sku = sku;
+            this.data = data;
+            this.metaFields = metaFields;
+            this.deferredReferences = deferredReferences;
+        }
+    }
+
+    /**
+     * Builds everything createShopifyProduct sends without touching Shopify, so the work can run ahead of the writers.
+     */
+    private PreparedProduct prepareShopifyProduct(JSONObject apiResponse, String sku) throws JsonProcessingException {
+        Map<String, Object> data = processResponse(apiResponse);
+        List<DeferredProductReferenceService.Pending> deferredReferences = new ArrayList<>();
+        List<Map<String, Object>> metaFields = processMetafields(apiResponse, deferredReferences);
+        if (oneShotCreate) {
+            data.put("metafields", metaFields);
+        }
+        return new PreparedProduct(apiResponse, sku, data, metaFields, deferredReferences);
+    }
+
+    private Map<String, String> createShopifyProduct(PreparedProduct prepared, BiConsumer<String, JSONObject> legacyVariantUpdate) throws JsonProcessingException {
+        JSONObject apiResponse = prepared.apiResponse;
+        String sku = prepared.sku;
+        Map<String, Object> data = prepared.data;
+        List<Map<String, Object>> metaFields = prepared.metaFields;
+
+        if (data.containsKey("metafields")) {
+            GraphQLResponse response = postProductCreate(data);
+            Map<String, String> ids = createdProductIds(response);
+            if (ids == null) {
+                if (!hasMetafieldUserErrors(response)) {
+                    // a timeout or 5xx may still have created the product, a second create could duplicate it
+                    return null;
+                }
+                // one bad metafield fails the whole create, so retry bare and let the batched writer report per field
+                logger.warn("one-shot product create rejected its metafields, retrying without inline metafields");
+                data.remove("metafields");
+                ids = sendProductCreate(data);
+                if (ids == null) {
+                    return null;
+                }
+                processApiResponseAndUploadMetafields(ids.get("product"), metaFields);
+            } else {
+                // the inline metafields were accepted with the product
+                List<Map<String, Object>> inputs = withOwner(ids.get("product"), metaFields);
+                metafieldHashService.record(metafieldHashService.diff(ids.get("product"), inputs), inputs, Collections.emptyList());
+            }
+
+            updateDefaultVariant(ids.get("product"), ids.get("varient"), sku, apiResponse);
+            deferredProductReferenceService.defer(ids.get("product"), prepared.deferredReferences);
+            return ids;
+        }
+
+        Map<String, String> ids = sendProductCreate(data);
+        if (ids == null) {
+            return null;
+        }
+        legacyVariantUpdate.accept(ids.get("product"), apiResponse);
+        processApiResponseAndUploadMetafields(ids.get("product"), metaFields);
+        deferredProductReferenceService.defer(ids.get("product"), prepared.deferredReferences);
+        return ids;
+    }
+
+    private Map<String, String> sendProductCreate(Map<String, Object> data) {
+        return createdProductIds(postProductCreate(data));
+    }
+
+    // productCreate is not idempotent, so it is never retried on a timeout or 5xx
+    private GraphQLResponse postProductCreate(Map<String, Object> data) {
+        Map<String, Object> product = new HashMap<>();
+        product.put("product", data);
+        return postGraphQLRequest(GRAPHQL_QUERY_PRODUCTS_CREATE, product, false, false);
+    }
+
+    /**
+     * @return the created product/variant ids, or null when the call failed or Shopify reported errors.
+     */
+    private Map<String, String> createdProductIds(GraphQLResponse response) {
+        if (response == null) {
+            return null;
+        }
+        if (response.hasUserErrors()) {
+            logger.error("Error receive in shopify response: {}", response.getUserErrors());
+            return null;
+        }
+        if (response.hasErrors()) {
+            logger.error("Error receive in shopify response: {}", response.getErrors());
+            return null;
+        }
+
+        Map<String, String> ids = extractProductIdAndVariendId(response);
+        return ids.isEmpty() ? null : ids;
+    }
+
+    private static boolean hasMetafieldUserErrors(GraphQLResponse response) {
+        return response != null && response.getUserErrors().stream()
+                .anyMatch(error -> !error.field().isEmpty() && "metafields".equals(error.field().get(0)));
+    }
+
+    private void updateDefaultVariant(String productId, String variantId, String sku, JSONObject apiResponse) {
+        if (variantId == null) {
+            logger.warn("Default variant id missing in create response for product ID: {}", productId);
+            return;
+        }
+
+        try {
+            Map<String, Object> variant = new HashMap<>();
+            variant.put("id", variantId);
+
+            if (sku != null) {
+                variant.put("inventoryItem", Map.of("sku", sku));
+            }
+
+            if (apiResponse.has("price")) {
+                variant.put("price", String.format("%.2f", apiResponse.optDouble("price", 0.0))); // Ensure 2 decimal places
+            }
+
+            Map<String, Object> variables = new HashMap<>();
+            variables.put("productId", productId);
+            variables.put("variants", List.of(variant));
+
+            GraphQLResponse response = sendGraphQLRequest(GRAPHQL_QUERY_VARIANTS_BULK_UPDATE, variables, false);
+            if (response == null) {
+                logger.error("Failed to update variant ID: {}", variantId);
+                return;
+            }
+
+            logger.info("varient update successfully for product id: " + productId);
+        } catch (Exception e) {
+            logger.error("Error processing default variant update: {}", e.getMessage(), e);
+        }
+    }
+
+    private Map<String, String> extractProductIdAndVariendId(GraphQLResponse response) {
         Map<String, String> result = new HashMap<>();
-        JsonNode rootNode = objectMapper.readTree(response);
+        JsonNode createdProduct = response.getData().path("productCreate").path("product");
 
         // Extract product ID
-        JsonNode productNode = rootNode.path("data").path("productCreate").path("product").path("id");
+        JsonNode productNode = createdProduct.path("id");
         if (productNode.isMissingNode()) {
             System.out.println("Error: Product ID not found in API response.");
             return Collections.emptyMap();
@@ -704,9 +657,8 @@ public class ProductMigrationService {
         System.out.println("Extracted Product ID: " + productId);
         result.put("product", productId);
 
-        JsonNode vairent = rootNode.path("data").path("productCreate")
-                .path("product").path("variants").path("edges")
-                .path("node").path("id");
+        JsonNode vairent = createdProduct.path("variants").path("edges")
+                .path(0).path("node").path("id");
         if (!vairent.isMissingNode()) {
             String va = vairent.asText();
             result.put("varient", va);
@@ -715,134 +667,134 @@ public class ProductMigrationService {
         return result;
     }
 
-    public void processApiResponseAndUploadMetafields(String productId, List<JSONObject> metaFields) {
-        try {
-            // Add metafields one by one
-            for (JSONObject metafield : metaFields) {
-                regulateApiRate();
-                remainingPoints.addAndGet(-API_COST_PER_CALL);
-                logger.info("uploading meta field :: {}", metafield.get("key"));
-                addMetafieldToProduct(productId, metafield);
-            }
+    public void processApiResponseAndUploadMetafields(String productId, List<Map<String, Object>> metaFields) {
+        uploadMetafields(productId, metaFields, false);
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Re-sync variant of {@link #processApiResponseAndUploadMetafields}: when metafield_diff_updates is on,
+     * only the metafields whose value changed since the last accepted write are sent.
+     */
+    public void uploadChangedMetafields(String productId, List<Map<String, Object>> metaFields) {
+        uploadMetafields(productId, metaFields, metafieldDiffUpdates);
     }
 
-    private void addMetafieldToProduct(String productId, JSONObject metafield) throws JsonProcessingException {
-        String namespace = metafield.get("namespace").toString();
-        String key = metafield.get("key").toString();
-        String type = metafield.get("type").toString();
-        var value = metafield.get("value");
+    private void uploadMetafields(String productId, List<Map<String, Object>> metaFields, boolean changedOnly) {
+        List<Map<String, Object>> inputs = withOwner(productId, metaFields);
+        MetafieldHashService.Diff diff = metafieldHashService.diff(productId, inputs);
+        List<Map<String, Object>> sent = changedOnly ? diff.changed() : inputs;
 
-        if (value == null || StringUtils.isBlank(value.toString()) || "[]".contains(value.toString())) {
-            return;
-        }
+        List<Map<String, Object>> failed = writeMetafieldsInBatches(sent);
+        metafieldHashService.record(diff, sent, failed);
+        logger.info("uploaded meta fields for product :: {}, total :: {}, sent :: {}, failed :: {}", productId, inputs.size(), sent.size(), failed.size());
+    }
 
+    /**
+     * Writes the given metafieldsSet inputs in batches of {@value #METAFIELDS_SET_BATCH_SIZE}.
+     * Inputs may belong to different owners.
+     *
+     * @return the number of metafields Shopify did not accept.
+     */
+    public int uploadMetafieldsInBatches(List<Map<String, Object>> inputs) {
+        return writeMetafieldsInBatches(inputs).size();
+    }
 
-        if (type.contains("text_field") || type.contains("number") || type.equals("boolean")) {
-            if (value instanceof List) {
-                logger.info("instance of list");
-                // Convert list to a comma-separated string
-                value = ((List<?>) value).stream()
-                        .map(Object::toString)
-                        .collect(Collectors.joining(","));
-            } else {
-                value = value.toString().replace("[", "").replace("]", "").replace("\"", "");  // Remove brackets if present
-            }
-            value = "\"" + value + "\""; // Ensure it's treated as a string in GraphQL
-        } else if (type.contains("list")) {
-            // Convert to a valid JSON array format if it's a list
-            if (value instanceof List) {
-                logger.info("list value ::: {}", value);
-                value = objectMapper.writeValueAsString(value);
-            }
-            value = objectMapper.writeValueAsString(value);
-        } else if (type.contains("json")) {
-            value = objectMapper.writeValueAsString(value.toString());
+    /**
+     * Rewrites the product reference metafields that were written while some of their products
+     * were not imported yet, grouped into metafieldsSet batches across owners.
+     */
+    public void backfillDeferredProductReferences() {
+        try {
+            deferredProductReferenceService.backfill(this::writeMetafieldsInBatches);
+        } catch (Exception e) {
+            logger.error("Error while back-filling deferred product references: {}", e.getMessage(), e);
         }
-//        else if (type.equals("boolean")) {
-//            value = value.toString();
-//        }
-
-        // Construct GraphQL mutation for adding a metafield
-        String graphqlMutation = String.format("""
-                mutation {
-                  metafieldsSet(metafields: [{
-                    ownerId: "%s",
-                    namespace: "%s",
-                    key: "%s",
-                    type: "%s",
-                    value: %s
-                  }]) {
-                    metafields {
-                      id
-                      key
-                      value
-                    }
-                    userErrors {
-                      field
-                      message
-                    }
-                  }
-                }
-                """, productId, namespace, key, type, value);
+    }
 
-        // Execute the GraphQL request
-        executeGraphQLRequest(graphqlMutation);
+    private List<Map<String, Object>> writeMetafieldsInBatches(List<Map<String, Object>> inputs) {
+        List<Map<String, Object>> failed = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i += METAFIELDS_SET_BATCH_SIZE) {
+            List<Map<String, Object>> batch = inputs.subList(i, Math.min(i + METAFIELDS_SET_BATCH_SIZE, inputs.size()));
+            failed.addAll(sendMetafieldsSetBatch(batch, true));
+        }
+        return failed;
     }
 
-    private String executeGraphQLRequest(String graphqlQuery) {
+    /**
+     * @return the inputs of the batch Shopify did not accept.
+     */
+    private List<Map<String, Object>> sendMetafieldsSetBatch(List<Map<String, Object>> batch, boolean retryAccepted) {
         try {
-            // Escape GraphQL query properly
-            String requestBody = objectMapper.writeValueAsString(Map.of("query", graphqlQuery));
-            logger.info("=== Shopify GraphQL Request ===");
-            logger.info("Body: {}", requestBody);
-            String url = shopifyStore + "/admin/api/2025-01/graphql.json";
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .header("Content-Type", "application/json")
-                    .header("X-Shopify-Access-Token", accessToken)
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                    .build();
-
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-
-            int statusCode = response.statusCode();
-            String responseBody = response.body();
-            String requestId = response.headers().firstValue("X-Request-Id").orElse("N/A");
-
-            // Log response
-            logger.info("=== Shopify HTTP Response ===");
-            logger.info("Status: {}", statusCode);
-            logger.info("X-Request-Id: {}", requestId);
-            logger.info("Body: {}", responseBody);
-
-            // Parse JSON response
-            JsonNode responseJson = objectMapper.readTree(responseBody);
-
-            // Check for errors
-            if (responseJson.has("errors") && !responseJson.get("errors").isEmpty()) {
-                logger.error("GraphQL request error: {}", responseJson.get("errors"));
-                return null;
+            GraphQLResponse response = postGraphQLRequest(GRAPHQL_QUERY_METAFIELDS_SET, Map.of("metafields", batch), false, true);
+            if (response == null) {
+                logger.error("metafieldsSet request failed for {} metafields", batch.size());
+                return batch;
             }
 
-            // Check for userErrors in response data
-            if (responseJson.has("data")) {
-                JsonNode dataNode = responseJson.get("data");
-                if (dataNode.has("userErrors") && !dataNode.get("userErrors").isEmpty()) {
-                    logger.error("User Errors in Shopify response: {}", dataNode.get("userErrors"));
-                    return null;
+            if (response.hasErrors()) {
+                logger.error("metafieldsSet request error: {}", response.getErrors());
+                return batch;
+            }
+
+            if (!response.hasUserErrors()) {
+                return Collections.emptyList();
+            }
+
+            // userErrors point at the input by position, e.g. ["metafields", "3", "value"]
+            Set<Integer> rejected = new TreeSet<>();
+            for (GraphQLResponse.UserError userError : response.getUserErrors()) {
+                int index = metafieldIndexOf(userError.field());
+                if (index >= 0 && index < batch.size()) {
+                    rejected.add(index);
+                    Map<String, Object> input = batch.get(index);
+                    logger.error("metafield rejected for owner :: {}, key :: {}.{}, message :: {}",
+                            input.get("ownerId"), input.get("namespace"), input.get("key"), userError.message());
+                } else {
+                    logger.error("metafieldsSet user error without field index :: {}", userError);
                 }
             }
 
-            return responseBody;
+            if (rejected.isEmpty() || !retryAccepted) {
+                return batch;
+            }
 
+            // metafieldsSet is atomic, so the valid inputs of a rejected batch are sent once more on their own
+            List<Map<String, Object>> failed = new ArrayList<>();
+            List<Map<String, Object>> accepted = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                (rejected.contains(i) ? failed : accepted).add(batch.get(i));
+            }
+            if (!accepted.isEmpty()) {
+                failed.addAll(sendMetafieldsSetBatch(accepted, false));
+            }
+            return failed;
         } catch (Exception e) {
-            logger.error("Exception during GraphQL request: ", e);
-            return null;
+            logger.error("Error while sending metafieldsSet batch: {}", e.getMessage(), e);
+            return batch;
+        }
+    }
+
+    private int metafieldIndexOf(List<String> field) {
+        if (field.size() > 1 && "metafields".equals(field.get(0))) {
+            try {
+                return Integer.parseInt(field.get(1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    // the prepared inputs are shared with productCreate, so the owner goes on copies
+    private List<Map<String, Object>> withOwner(String ownerId, List<Map<String, Object>> metaFields) {
+        List<Map<String, Object>> inputs = new ArrayList<>(metaFields.size());
+        for (Map<String, Object> metafield : metaFields) {
+            Map<String, Object> input = new LinkedHashMap<>(8);
+            input.put("ownerId", ownerId);
+            input.putAll(metafield);
+            inputs.add(input);
         }
+        return inputs;
     }
 
 
@@ -915,472 +867,80 @@ public class ProductMigrationService {
         return response;
     }
 
-    private List<JSONObject> processMetafields(JSONObject rawMetafields) throws JsonProcessingException {
-        List<JSONObject> processedMetafields = new ArrayList<>();
-
-        addMetafield(processedMetafields, rawMetafields, "having_down_360_single", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_front_360_single", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_stone_shape_single", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_stone_type_single", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_modal_image", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_image_view", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_carat", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_down_360", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_front_360", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "default_view", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "meta_keyword", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "upc", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "product_type_id", "number_integer");
-        addMetafield(processedMetafields, rawMetafields, "diamond_selection", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "view_360", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_modal_image_single", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_image_view_single", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_carat_single", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "image_counter", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "product_minimum_price", "json", "minimum_price_json");
-        addMetafield(processedMetafields, rawMetafields, "product_id", "number_integer", "open_cart_product_id");
-        addMetafield(processedMetafields, rawMetafields, "product_options", "json", "option_json");
-
-        addMetafield(processedMetafields, rawMetafields, "having_stone_type", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_stone_shape", "multi_line_text_field");
-
-        addMetafield(processedMetafields, rawMetafields, "category_feed_id", "number_integer", "opencart_category_id");
-        addMetafield(processedMetafields, rawMetafields, "style_feed_id", "number_integer", "opencart_style_id");
-
-        addProductReferenceListMetafield(processedMetafields, rawMetafields, "matching_products", "matching_product_open_cart");
-        addProductReferenceListMetafield(processedMetafields, rawMetafields, "related_products", "related_product_open_cart");
-
-        addMetafield(processedMetafields, rawMetafields, "tag_no", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "certificate_number", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "is_quickship", "boolean");
-
-        addMetafield(processedMetafields, rawMetafields, "is_child", "boolean");
-
-        addMetafield(processedMetafields, rawMetafields, "is_carat", "boolean");
-        addMetafield(processedMetafields, rawMetafields, "is_best_seller", "boolean");
-
-        addMetafield(processedMetafields, rawMetafields, "location", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "quantity_text", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "quantity", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "sort_order", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "viewed", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "sold", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "delivery_days", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "multistone", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "rrp", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "setting_code", "single_line_text_field");
-
-        addMetafield(processedMetafields, rawMetafields, "filter", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "model", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "single_image", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "image", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "title_logic", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "default_stone", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "rtr_sample_text", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "rtr_hide_options", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "rtr", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "design", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "model_sizes", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "how_it_fits_type", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "how_it_fits", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "single", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "best_seller", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "single_image_counter", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "option_shape", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "option_stone", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "weight", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "option_metal_wt", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "date_added", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "product_markup", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "gemstone", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "bandwidth", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "stonetype_display", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "carat_slider", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "carat_range", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "discount", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "markup", "single_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "keyword", "single_line_text_field");
+    /**
+     * @param deferredReferences collects the product reference lists written without some of their
+     *                           products, to be deferred once the owner's Shopify id is known.
+     */
+    private List<Map<String, Object>> processMetafields(JSONObject rawMetafields, List<DeferredProductReferenceService.Pending> deferredReferences) throws JsonProcessingException {
+        List<Map<String, Object>> processedMetafields = new ArrayList<>(metafieldMapping.size() + 20);
+
+        // plain fields, see metafield-mapping.json
+        metafieldMapping.write(rawMetafields, processedMetafields);
+
+        addProductReferenceListMetafield(processedMetafields, rawMetafields, "matching_products", "matching_product_open_cart", deferredReferences);
+        addProductReferenceListMetafield(processedMetafields, rawMetafields, "related_products", "related_product_open_cart", deferredReferences);
 
         // Special metafields requiring processing
-//      Setting Type
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "setting_type", this::getSettingTypeIds);
-//      Colour
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "colour", this::getColourIds);
-//      Metal
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "metal", this::getMetalIds);
-//      Certificate
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "certificate", this::getCertificateIds);
-//      Clarity
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "clarity", this::getClarityIds);
-//        Shape
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "shape", this::getShapeIds);
-//        Ring Size
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "ring_size", this::getRingSizeIds);
-//        By Occasion
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "by_occasion", this::getOccasionIds);
-//        Personalised
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "personalised", this::getPersonalisedIds);
-//        By Recipient
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "by_recipient", this::getRecipientIds);
-//        Carat
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_options", "product_options", "list.metaobject_reference", "carat", this::getCaratIds);
-//        Band Width
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "band_width", this::getBandWidthIds);
-//        Stone type
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "stone_type", this::getStoneTypeIds);
-//        Style Product
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "style_product", this::getStyleProductIds);
-//        Category
-        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "product_options", "list.metaobject_reference", "category", this::getCategoryIds);
+        addMetaobjectReferenceMetafields(processedMetafields, rawMetafields);
 
 //        addProcessedMetafield(processedMetafields, rawMetafields, "product_filters", "list.metaobject_reference", "backing", this::getBackingIds);
 
         return processedMetafields;
     }
 
+    /**
+     * Metaobject reference metafields: metafield key (also the metaobject type), product_filters
+     * filter_group_id and product_options key the names are collected from.
+     */
+    private static final String[][] METAOBJECT_REFERENCE_FIELDS = {
+            {"setting_type", "6", "setting_type"},
+            {"colour", "2", "color"},
+            {"metal", "1", "metal"},
+            {"certificate", "15", "certificate"},
+            {"clarity", "14", "clarity"},
+            {"shape", "4", "shape"},
+            {"ring_size", "16", "ring_size"},
+            {"by_occasion", "7", "by_occasion"},
+            {"personalised", "9", "personalised"},
+            {"by_recipient", "8", "by_recipient"},
+            {"band_width", "11", "band_width"},
+            {"stone_type", "3", "stone_type"},
+            {"style_product", "5", "style"},
+            {"category", "10", "category"},
+    };
+
+    // product_filters and product_options are parsed once per product for all reference metafields
+    private void addMetaobjectReferenceMetafields(List<Map<String, Object>> metafields, JSONObject rawMetafields) throws JsonProcessingException {
+        boolean hasFilters = rawMetafields.has("product_filters") && !rawMetafields.isNull("product_filters");
+        boolean hasOptions = rawMetafields.has("product_options") && !rawMetafields.isNull("product_options");
+        if (!hasOptions) {
+            return;
+        }
 
-    private void addMetafield(List<JSONObject> metafields, JSONObject rawMetafields, String key, String type) {
-        addMetafield(metafields, rawMetafields, key, type, key);
+        ProductOptionIndex optionIndex = ProductOptionIndex.parse(objectMapper,
+                hasFilters ? rawMetafields.get("product_filters") : null, rawMetafields.get("product_options"));
+        if (hasFilters) {
+            for (String[] field : METAOBJECT_REFERENCE_FIELDS) {
+                addMetaobjectReferenceMetafield(metafields, field[0], optionIndex.names(field[1], field[2]));
+            }
+        }
+        // carat options carry their own filter_group_id
+        addMetaobjectReferenceMetafield(metafields, "carat", optionIndex.optionNames("17", "carat"));
     }
 
-    private void addMetafield(List<JSONObject> metafields, JSONObject rawMetafields, String key, String type, String metafieldKey) {
-        logger.info("checking for meta fields :: {}", key);
-        if (rawMetafields.has(key) && !rawMetafields.isNull(key)) {
-            logger.info("checking success for meta fields :: {}", key);
-            JSONObject metafield = new JSONObject();
-
-            Object value = rawMetafields.get(key);
-
-            if (key.equals("image") || key.equals("single_image")) {
-                value = value.toString().replace("/", "_");
+    private void addMetaobjectReferenceMetafield(List<Map<String, Object>> metafields, String type, Set<String> names) throws JsonProcessingException {
+        logger.debug("extract {} :: {}", type, names);
+        List<String> ids = new ArrayList<>();
+        MetaobjectDictionary dictionary = metaobjectDictionaryService.get(type);
+        for (String name : names) {
+            String id = dictionary.lookup(name);
+            if (id != null && !ids.contains(id)) {
+                ids.add(id);
             }
+        }
 
-            if (type.equals("boolean")) {
-                String boolStr = value.toString().trim().toLowerCase();
-                if (boolStr.equals("1")) {
-                    boolStr = "true";
-                } else if (boolStr.equals("0")) {
-                    boolStr = "false";
-                } else if (!boolStr.equals("true") && !boolStr.equals("false")) {
-                    logger.warn("Invalid boolean value for key {}: {}", key, value);
-                    return;
-                }
-                value = boolStr;
-            }
-
-            metafield.put("namespace", "custom");
-            metafield.put("key", metafieldKey);
-            metafield.put("type", type);
-            metafield.put("value", value);
-            metafields.add(metafield);
-        }
-    }
-
-    private void addProcessedMetafield(List<JSONObject> metafields, JSONObject rawMetafields, String key, String option, String type, String metafieldKey, BiFunction<Object, Object, Object> processor) throws JsonProcessingException {
-        logger.info("checking for processed meta fields :: {} :: {}", key, option);
-        if (rawMetafields.has(key) && !rawMetafields.isNull(key) &&
-                rawMetafields.has(option) && !rawMetafields.isNull(option)) {
-            logger.info("checking for success processed meta fields :: {} :: {}", key, option);
-            JSONObject metafield = new JSONObject();
-            metafield.put("namespace", "custom");
-            metafield.put("key", metafieldKey);
-            metafield.put("type", type);
-            metafield.put("value", processor.apply(rawMetafields.get(key), rawMetafields.get(option)));
-            metafields.add(metafield);
-        }
-    }
-
-    private List<String> getRecipientIds(Object o, Object productOptions) {
-        Set<String> names = new HashSet<>();
-        List<String> filterNames = extractNamesByFilterGroupId(o, "8");
-        List<String> optionNames = extractOptionNames(productOptions, "by_recipient");
-        names.addAll(filterNames);
-        names.addAll(optionNames);
-        logger.info("extract recipient :: {}", names);
-        List<String> ids = new ArrayList<>();
-        for (String name : names) {
-            if (recipientMap.containsKey(name)) {
-                ids.add(recipientMap.get(name));
-            }
-        }
-        return ids;
-    }
-
-    private List<String> getSettingTypeIds(Object o, Object productOptions) {
-        Set<String> names = new HashSet<>();
-        List<String> filterNames = extractNamesByFilterGroupId(o, "6");
-        List<String> optionNames = extractOptionNames(productOptions, "setting_type");
-        names.addAll(filterNames);
-        names.addAll(optionNames);
-        logger.info("extract setting type :: {}", names);
-        List<String> ids = new ArrayList<>();
-        for (String name : names) {
-            if (settingTypeMap.containsKey(name)) {
-                ids.add(settingTypeMap.get(name));
-            }
-        }
-        return ids;
-    }
-
-    private List<String> getShapeIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "4");
-            List<String> optionNames = extractOptionNames(productOptions, "shape");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract shape names :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (shapeMap.containsKey(name)) {
-                    ids.add(shapeMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getStoneTypeIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-
-            List<String> filterNames = extractNamesByFilterGroupId(o, "3");
-            List<String> optionNames = extractOptionNames(productOptions, "stone_type");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract stone type :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (stoneTypeMap.containsKey(name)) {
-                    ids.add(stoneTypeMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getMetalIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-
-            List<String> filterNames = extractNamesByFilterGroupId(o, "1");
-            List<String> optionNames = extractOptionNames(productOptions, "metal");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract metal :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (metalMap.containsKey(name)) {
-                    ids.add(metalMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getCategoryIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "10");
-            List<String> optionNames = extractOptionNames(productOptions, "category");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract category :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (categoryMap.containsKey(name)) {
-                    ids.add(categoryMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getStyleProductIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "5");
-            List<String> optionNames = extractOptionNames(productOptions, "style");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract style product :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (styleProductMap.containsKey(name)) {
-                    ids.add(styleProductMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getBandWidthIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "11");
-            List<String> optionNames = extractOptionNames(productOptions, "band_width");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract band width :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (bandWidthMap.containsKey(name)) {
-                    ids.add(bandWidthMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getPersonalisedIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "9");
-            List<String> optionNames = extractOptionNames(productOptions, "personalised");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract personalized :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (personilizationMap.containsKey(name)) {
-                    ids.add(personilizationMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getCaratIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "17");
-            List<String> optionNames = extractOptionNames(productOptions, "carat");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract carat :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (caratMap.containsKey(name)) {
-                    ids.add(caratMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getOccasionIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "7");
-            List<String> optionNames = extractOptionNames(productOptions, "by_occasion");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract occasion :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (occasionMap.containsKey(name)) {
-                    ids.add(occasionMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getRingSizeIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "16");
-            List<String> optionNames = extractOptionNames(productOptions, "ring_size");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract ring size :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (ringSizeMap.containsKey(name)) {
-                    ids.add(ringSizeMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getClarityIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "14");
-            List<String> optionNames = extractOptionNames(productOptions, "clarity");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract clarity :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (clarityMap.containsKey(name)) {
-                    ids.add(clarityMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getCertificateIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "15");
-            List<String> optionNames = extractOptionNames(productOptions, "certificate");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract certificate :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (certificateMap.containsKey(name)) {
-                    ids.add(certificateMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
-        }
-    }
-
-    private List<String> getColourIds(Object o, Object productOptions) {
-        try {
-            Set<String> names = new HashSet<>();
-            List<String> filterNames = extractNamesByFilterGroupId(o, "2");
-            List<String> optionNames = extractOptionNames(productOptions, "color");
-            names.addAll(filterNames);
-            names.addAll(optionNames);
-            logger.info("extract colour :: {}", names);
-            List<String> ids = new ArrayList<>();
-            for (String name : names) {
-                if (colourMap.containsKey(name)) {
-                    ids.add(colourMap.get(name));
-                }
-            }
-            return ids;
-        } catch (Exception e) {
-            return new ArrayList<>();
+        if (!ids.isEmpty()) {
+            metafields.add(MetafieldMapping.input("custom", type, "list.metaobject_reference", objectMapper.writeValueAsString(ids)));
         }
     }
 
@@ -1401,86 +961,6 @@ public class ProductMigrationService {
 //        }
 //    }
 
-    public List<String> extractOptionNames(Object json, String optionKey) {
-        List<String> names = new ArrayList<>();
-
-        try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            JsonNode rootNode = objectMapper.readTree(json.toString());
-
-            logger.info("Extracting option names for key: {} :: {}", optionKey, rootNode.toPrettyString());
-
-            if (rootNode.has(optionKey)) {
-                JsonNode optionNode = rootNode.get(optionKey);
-
-                if (optionNode.has("product_option_value")) {
-                    JsonNode valuesNode = optionNode.get("product_option_value");
-
-                    // Iterate over each nested object (keys like "121")
-                    for (JsonNode item : valuesNode) {
-                        if (item.has("name") && !item.get("name").isNull()) {
-                            String name = item.get("name").asText();
-                            logger.info("Found name: {}", name);
-                            names.add(name);
-                        }
-                    }
-                } else {
-                    logger.warn("No 'product_option_value' found inside '{}'", optionKey);
-                }
-            } else {
-                logger.warn("Key '{}' not found in JSON", optionKey);
-            }
-
-        } catch (Exception e) {
-            logger.error("Error parsing JSON: {}", e.getMessage(), e);
-        }
-
-        return names;
-    }
-
-
-    private List<String> extractNamesByFilterGroupId(Object json, String targetFilterGroupId) {
-        List<String> names = new ArrayList<>();
-
-        try {
-            JsonNode rootNode = objectMapper.readTree(json.toString());
-
-            logger.info("Extracting names for filter_group_id: {} :: {}", targetFilterGroupId, rootNode.toPrettyString());
-
-            if (rootNode.isArray()) {
-                // Process JSON if it's an array
-                for (JsonNode filter : rootNode) {
-                    processFilterNode(filter, targetFilterGroupId, names);
-                }
-            } else if (rootNode.isObject()) {
-                // Process JSON if it's an object
-                for (JsonNode filter : rootNode) {
-                    processFilterNode(filter, targetFilterGroupId, names);
-                }
-            } else {
-                logger.warn("Unexpected JSON structure. Expected an array or object.");
-            }
-
-        } catch (Exception e) {
-            logger.error("Error parsing JSON: {}", e.getMessage(), e);
-        }
-
-        return names;
-    }
-
-    private void processFilterNode(JsonNode filter, String targetFilterGroupId, List<String> names) {
-        if (filter.has("filter_group_id") && filter.has("name")) {
-            String filterGroupId = filter.get("filter_group_id").asText();
-
-            if (targetFilterGroupId.equals(filterGroupId)) {
-                String name = filter.get("name").asText();
-                logger.info("Found name: {}", name);
-                names.add(name);
-            }
-        }
-    }
-
-
     private String formatGraphQLValue(Object value) {
         if (value instanceof String) {
             return "\"" + ((String) value).replace("\"", "\\\"") + "\"";
@@ -1505,11 +985,7 @@ public class ProductMigrationService {
         String filePath = "src/main/resources/s3file/active-products.csv";
         List<String> ids = readCSVFromPath(filePath);
 
-        // Fetch all product IDs from the database
-        List<ProductIds> products = productIdsRepository.findAll();
-        Set<String> existingProductIds = products.stream()
-                .map(ProductIds::getProductId)
-                .collect(Collectors.toSet());
+        Set<String> existingProductIds = productReferenceCache.resolve(ids).keySet();
 
         // Find missing IDs (present in CSV but not in DB)
         List<String> missingIds = ids.stream()
@@ -1522,62 +998,17 @@ public class ProductMigrationService {
 
     @Async
     public void addProductsToCollection(String collectionId, List<String> productIdToShopifyId) {
-
-        logger.info("total product ids count ::{}", productIdToShopifyId.size());
-
-        int batchSize = 240;
-        int totalProcessed = 0;
-        int batchNumber = 0;
-
-        for (int i = 0; i < productIdToShopifyId.size(); i += batchSize) {
-            regulateApiRate();
-            remainingPoints.addAndGet(-API_COST_PER_CALL);
-            batchNumber++;
-            List<String> batch = productIdToShopifyId.subList(i, Math.min(i + batchSize, productIdToShopifyId.size()));
-            logger.info("Start Processing batch {} ({} - {}), Batch size: {}",
-                    batchNumber, i + 1, i + batch.size(), batch.size());
-
-            try {
-                processBatch(collectionId, batch);
-                totalProcessed += batch.size();
-                logger.info("Completed batch {}. Total processed so far: {}", batchNumber, totalProcessed);
-            } catch (Exception e) {
-                logger.info("error while processing batch {}", batchNumber);
-            }
-        }
-        logger.info("All batches processed. Total products added: {}", totalProcessed);
-        logger.info("Import product in collection process complete :: {}", ZonedDateTime.now(ZoneId.of("Asia/Kolkata")).format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z")));
+        syncCollection(collectionId, productIdToShopifyId, false);
     }
 
-    private void processBatch(String collectionId, List<String> batch) {
-        StringBuilder mutation = new StringBuilder();
-        mutation.append("mutation { collectionAddProducts(id: \"")
-                .append(collectionId)
-                .append("\", productIds: [");
-
-        for (String productGid : batch) {
-            mutation.append("\"").append(productGid).append("\", ");
-        }
-
-        if (!batch.isEmpty()) {
-            mutation.setLength(mutation.length() - 2);
-        }
-
-        mutation.append("]) { collection { id } userErrors { field message } } }");
-
-        logger.info("Generated Mutation: {}", mutation);
-
-        Map<String, Object> requestBody = new HashMap<>();
-        requestBody.put("query", mutation.toString());
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Content-Type", "application/json");
-        headers.set("X-Shopify-Access-Token", accessToken);
-
-        HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
-        ResponseEntity<String> response = restTemplate.postForEntity(shopifyStore + "/admin/api/2025-01/graphql.json", request, String.class);
-
-        logger.info("Shopify Response: {}", response.getBody());
+    /**
+     * Adds the missing products to the collection, optionally removes the others, and applies the
+     * order of the list when the collection is sorted manually.
+     */
+    public void syncCollection(String collectionId, List<String> shopifyProductIds, boolean removeOthers) {
+        logger.info("total product ids count ::{}", shopifyProductIds.size());
+        collectionSyncService.sync(collectionId, shopifyProductIds, removeOthers);
+        logger.info("Import product in collection process complete :: {}", ZonedDateTime.now(ZoneId.of("Asia/Kolkata")).format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z")));
     }
 
     @Async
@@ -1587,102 +1018,6 @@ public class ProductMigrationService {
                     .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
             logger.info("Starting product import at: {}", startTime);
 
-            String json;
-
-            if (!isTest) {
-                logger.info("fetching live all_stock_product");
-                String firstApiUrl = "https://www.abelini.com/shopify/api/all_stock_product.php";
-
-                ResponseEntity<String> firstApiResponse = restTemplate.exchange(
-                        firstApiUrl,
-                        HttpMethod.POST,
-                        null,
-                        String.class
-                );
-
-                if (firstApiResponse.getStatusCode() != HttpStatus.OK) {
-                    logger.error("Error fetching all stock products from Abelini API. Response: {}", firstApiResponse.getBody());
-                    return;
-                }
-
-                json = firstApiResponse.getBody();
-            } else {
-                logger.info("fetching test all_stock_product");
-                json = """
-                        [
-                          {
-                              "product_id": "1228",
-                              "sort_order": "0",
-                              "parent_id": "1552646",
-                              "stock_id": "40749",
-                              "tag_no": "VR-61534"
-                          },
-                          {
-                              "product_id": "1228",
-                              "sort_order": "0",
-                              "parent_id": "1552840",
-                              "stock_id": "50603",
-                              "tag_no": "VR-71000"
-                          },
-                          {
-                              "product_id": "1228",
-                              "sort_order": "0",
-                              "parent_id": "1553007",
-                              "stock_id": "57173",
-                              "tag_no": "VR-77701"
-                          },
-                          {
-                              "product_id": "1228",
-                              "sort_order": "0",
-                              "parent_id": "1553172",
-                              "stock_id": "64819",
-                              "tag_no": "VR-85466"
-                          },
-                          {
-                              "product_id": "1228",
-                              "sort_order": "0",
-                              "parent_id": "1553410",
-                              "stock_id": "70439",
-                              "tag_no": "VR-90958"
-                          },
-                          {
-                              "product_id": "1228",
-                              "sort_order": "0",
-                              "parent_id": "1553411",
-                              "stock_id": "70496",
-                              "tag_no": "VR-90893"
-                          },
-                          {
-                              "product_id": "1228",
-                              "sort_order": "0",
-                              "parent_id": "1553422",
-                              "stock_id": "70762",
-                              "tag_no": "VR-91051"
-                          },
-                          {
-                              "product_id": "1228",
-                              "sort_order": "0",
-                              "parent_id": "1553568",
-                              "stock_id": "71563",
-                              "tag_no": "VR-91831"
-                          }
-                        ]
-                        """;
-            }
-
-            if (StringUtils.isBlank(json)) {
-                logger.info("json response is empty");
-                return;
-            }
-
-            List<Map<String, Object>> productList = objectMapper.readValue(json, new TypeReference<>() {
-            });
-
-            long totalProductsVarient = productList.size();
-            Set<String> uniqueProductIds = productList.stream()
-                    .map(m -> m.get("product_id").toString())
-                    .collect(Collectors.toSet());
-
             AtomicInteger totalProcessed = new AtomicInteger(0);
             AtomicInteger totalVariants = new AtomicInteger(0);
             AtomicInteger totalProductSuccess = new AtomicInteger(0);
@@ -1690,71 +1025,95 @@ public class ProductMigrationService {
             AtomicInteger totalVariantSuccess = new AtomicInteger(0);
             AtomicInteger totalVariantFailed = new AtomicInteger(0);
 
-            logger.info("Total products varient: {}", totalProductsVarient);
-            logger.info("Unique product count: {}", uniqueProductIds.size());
+            ImportWorkerPool pool = new ImportWorkerPool("stock-variant-import", importConcurrency, (id, succeeded, failed) -> {
+                if (succeeded + failed > 0) {
+                    totalProductSuccess.incrementAndGet();
+                }
+                logger.info("Completed product ID: {} with {} variants processed", id, succeeded + failed);
+            });
+            if (runningImports.putIfAbsent(STOCK_IMPORT, pool) != null) {
+                logger.warn("Stock variant import is already running");
+                pool.close();
+                return;
+            }
 
-            for (String id : uniqueProductIds) {
-                try {
-                    totalProcessed.incrementAndGet();
-                    logger.info("Processing product ID: {}", id);
-                    JSONArray apiResponseArray = fetchProductVarientDetailsFromApi(id);
+            // product ids are handed to the import as soon as their first row is read while the feed keeps downloading
+            BlockingQueue<String> productQueue = new LinkedBlockingQueue<>();
+            Set<String> uniqueProductIds = new HashSet<>();
+            Map<String, ProductEntry> productEntryMap = new LinkedHashMap<>();
+            ExecutorService feedReader = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "stock-feed-reader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Future<Long> feed = feedReader.submit(() -> readStockFeed(isTest, entry -> {
+                productEntryMap.putIfAbsent(entry.getProductId() + "::" + entry.getTagNo(), entry);
+                if (uniqueProductIds.add(entry.getProductId())) {
+                    productQueue.add(entry.getProductId());
+                }
+            }));
+            feedReader.shutdown();
 
-                    if (apiResponseArray == null || apiResponseArray.isEmpty()) {
-                        logger.error("No variants found for product ID: {}", id);
-                        totalProductFailed.incrementAndGet();
+            try {
+                while (!pool.isCancelled()) {
+                    String id = productQueue.poll(1, TimeUnit.SECONDS);
+                    if (id == null) {
+                        if (feed.isDone() && productQueue.isEmpty()) break;
                         continue;
                     }
-
-                    int variantCount = apiResponseArray.length();
-                    totalVariants.addAndGet(variantCount);
-                    AtomicInteger processedVariants = new AtomicInteger(0);
-
-                    for (int i = 0; i < apiResponseArray.length(); i++) {
-                        JSONObject apiResponse = apiResponseArray.getJSONObject(i);
-                        String tagNo = apiResponse.optString("tag_no", "N/A");
-                        logger.info("starting product id :: {}, varient tag no :: {}", id, tagNo);
-                        processedVariants.incrementAndGet();
-
-                        Map<String, Object> data = processResponse(apiResponse);
-                        regulateApiRate();
-                        remainingPoints.addAndGet(-API_COST_PER_CALL);
-
-                        Map<String, Object> product = new HashMap<>();
-                        product.put("product", data);
-                        String response = sendGraphQLRequest(GRAPHQL_QUERY_PRODUCTS_CREATE, objectMapper.writeValueAsString(product), false);
-
-                        if (response == null) {
-                            logger.error("Shopify response null for product ID: {}, tag_no: {}", id, tagNo);
-                            totalVariantFailed.incrementAndGet();
+                    pool.startProduct(id);
+                    try {
+                        totalProcessed.incrementAndGet();
+                        logger.info("Processing product ID: {}", id);
+                        JSONArray apiResponseArray = fetchProductVarientDetailsFromApi(id);
+
+                        if (apiResponseArray == null || apiResponseArray.isEmpty()) {
+                            logger.error("No variants found for product ID: {}", id);
+                            totalProductFailed.incrementAndGet();
                             continue;
                         }
 
-                        Map<String, String> extractIds = extractProductIdAndVariendId(response);
+                        totalVariants.addAndGet(apiResponseArray.length());
 
-                        ProductVarientIds pi = new ProductVarientIds();
-                        pi.setProductId(id);
-                        pi.setShopifyProductId(extractIds.get("product"));
-                        pi.setTagNo(tagNo);
-                        productVarientIdsRepository.save(pi);
-
-                        getBaseVarientAndSetSkuAndPrice2(extractIds.get("product"), apiResponse);
-                        List<JSONObject> metaFields = processMetafields(apiResponse);
-                        processApiResponseAndUploadMetafields(extractIds.get("product"), metaFields);
-
-                        logger.info("Successfully created variant for product ID: {}, tag_no: {}", id, tagNo);
-                        totalVariantSuccess.incrementAndGet();
+                        for (int i = 0; i < apiResponseArray.length(); i++) {
+                            JSONObject apiResponse = apiResponseArray.getJSONObject(i);
+                            boolean queued = pool.submit(id, () -> {
+                                boolean success = importStockVariant(id, apiResponse);
+                                (success ? totalVariantSuccess : totalVariantFailed).incrementAndGet();
+                                return success;
+                            });
+                            if (!queued) break;
+                        }
+                    } catch (Exception e) {
+                        totalProductFailed.incrementAndGet();
+                        logger.error("Error processing product ID: {} :: {}", id, e.getMessage(), e);
+                    } finally {
+                        pool.finishProduct(id);
                     }
+                }
+                pool.awaitCompletion();
+            } finally {
+                feed.cancel(true);
+                runningImports.remove(STOCK_IMPORT, pool);
+                pool.close();
+                shopifyIdMappingWriter.flush();
+            }
+            backfillDeferredProductReferences();
 
-                    if (processedVariants.get() > 0) {
-                        totalProductSuccess.incrementAndGet();
-                    }
+            if (pool.isCancelled()) {
+                logger.warn("Stock variant import cancelled, skipping collection import");
+                return;
+            }
 
-                    logger.info("Completed product ID: {} with {} variants processed", id, variantCount);
-                } catch (Exception e) {
-                    totalProductFailed.incrementAndGet();
-                    logger.error("Error processing product ID: {} :: {}", id, e.getMessage(), e);
-                }
+            long totalProductsVarient;
+            try {
+                totalProductsVarient = feed.get();
+            } catch (ExecutionException e) {
+                // a partial feed would drop the unread products from the collection
+                logger.error("Error reading all_stock_product, skipping collection import: {}", e.getCause().getMessage(), e.getCause());
+                return;
             }
+            logger.info("Total products varient: {}, unique product count: {}", totalProductsVarient, uniqueProductIds.size());
 
             String endTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
                     .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
@@ -1764,28 +1123,16 @@ public class ProductMigrationService {
                     totalVariants.get(), totalProductsVarient, totalVariantSuccess.get(), totalVariantFailed.get(), startTime, endTime);
 
             logger.info("start collection import process");
-            Map<String, ProductEntry> productEntryMap = new LinkedHashMap<>();
-            for (Map<String, Object> map : productList) {
-                String productId = String.valueOf(map.get("product_id"));
-                String tagNo = String.valueOf(map.get("tag_no"));
-                int sortOrder = Integer.parseInt(String.valueOf(map.get("sort_order")));
-
-                String key = productId + "::" + tagNo;
-                productEntryMap.putIfAbsent(key, new ProductEntry(productId, tagNo, sortOrder));
-            }
-
             logger.info("Unique (product_id + tag_no) entries to process: {}", productEntryMap.size());
 
-            // Fetch all variant records
-            List<ProductVarientIds> allVariants = productVarientIdsRepository.findAll();
-
-            // Build a lookup map: (productId + "::" + tagNo) -> shopifyProductId
-            Map<String, String> variantLookup = allVariants.stream()
-                    .collect(Collectors.toMap(
-                            v -> v.getProductId() + "::" + v.getTagNo(),
-                            ProductVarientIds::getShopifyProductId,
-                            (a, b) -> a
-                    ));
+            // Build a lookup map of the feed's entries only: (productId + "::" + tagNo) -> shopifyProductId
+            Map<String, String> variantLookup = new HashMap<>();
+            productVarientIdsRepository.streamShopifyIds().forEach(row -> {
+                String key = row[1] + "::" + row[2];
+                if (row[3] != null && productEntryMap.containsKey(key)) {
+                    variantLookup.putIfAbsent(key, (String) row[3]);
+                }
+            });
 
             // Sort and collect matching Shopify product IDs
             List<String> shopifyIds = productEntryMap.values().stream()
@@ -1796,8 +1143,8 @@ public class ProductMigrationService {
 
             logger.info("Final Shopify product IDs to migrate: {}", shopifyIds.size());
 
-            // Call migration
-            addProductsToCollection("gid://shopify/Collection/675274621268", shopifyIds);
+            // a test run reads a small built-in feed, removing everything else would empty the live collection
+            syncCollection("gid://shopify/Collection/675274621268", shopifyIds, collectionSyncRemoveOthers && !isTest);
 
             logger.info("Import process complete! Products processed: {}/{}, Success: {}, Failed: {} | Variants processed: {}/{}, Success: {}, Failed: {} | Started at: {}, Ended at: {}",
                     totalProcessed.get(), uniqueProductIds.size(), totalProductSuccess.get(), totalProductFailed.get(),
@@ -1807,6 +1154,113 @@ public class ProductMigrationService {
         }
     }
 
+    /**
+     * Streams the all_stock_product feed row by row to the consumer, live or from the test sample.
+     *
+     * @return the number of rows read.
+     */
+    private long readStockFeed(boolean isTest, Consumer<ProductEntry> consumer) throws IOException {
+        if (isTest) {
+            logger.info("fetching test all_stock_product");
+            String testFeed = """
+                    [
+                      {
+                          "product_id": "1228",
+                          "sort_order": "0",
+                          "parent_id": "1552646",
+                          "stock_id": "40749",
+                          "tag_no": "VR-61534"
+                      },
+                      {
+                          "product_id": "1228",
+                          "sort_order": "0",
+                          "parent_id": "1552840",
+                          "stock_id": "50603",
+                          "tag_no": "VR-71000"
+                      },
+                      {
+                          "product_id": "1228",
+                          "sort_order": "0",
+                          "parent_id": "1553007",
+                          "stock_id": "57173",
+                          "tag_no": "VR-77701"
+                      },
+                      {
+                          "product_id": "1228",
+                          "sort_order": "0",
+                          "parent_id": "1553172",
+                          "stock_id": "64819",
+                          "tag_no": "VR-85466"
+                      },
+                      {
+                          "product_id": "1228",
+                          "sort_order": "0",
+                          "parent_id": "1553410",
+                          "stock_id": "70439",
+                          "tag_no": "VR-90958"
+                      },
+                      {
+                          "product_id": "1228",
+                          "sort_order": "0",
+                          "parent_id": "1553411",
+                          "stock_id": "70496",
+                          "tag_no": "VR-90893"
+                      },
+                      {
+                          "product_id": "1228",
+                          "sort_order": "0",
+                          "parent_id": "1553422",
+                          "stock_id": "70762",
+                          "tag_no": "VR-91051"
+                      },
+                      {
+                          "product_id": "1228",
+                          "sort_order": "0",
+                          "parent_id": "1553568",
+                          "stock_id": "71563",
+                          "tag_no": "VR-91831"
+                      }
+                    ]
+                    """;
+            try (JsonParser parser = objectMapper.createParser(testFeed)) {
+                return StockFeedReader.read(parser, consumer);
+            }
+        }
+
+        logger.info("fetching live all_stock_product");
+        Long rows = restTemplate.execute("https://www.abelini.com/shopify/api/all_stock_product.php", HttpMethod.POST, null, response -> {
+            if (response.getStatusCode() != HttpStatus.OK) {
+                throw new IOException("Error fetching all stock products from Abelini API: " + response.getStatusCode());
+            }
+            try (JsonParser parser = objectMapper.createParser(response.getBody())) {
+                return StockFeedReader.read(parser, consumer);
+            }
+        });
+        return rows == null ? 0 : rows;
+    }
+
+    private boolean importStockVariant(String id, JSONObject apiResponse) {
+        String tagNo = apiResponse.optString("tag_no", "N/A");
+        logger.info("starting product id :: {}, varient tag no :: {}", id, tagNo);
+        try {
+            String sku = apiResponse.has("sku") ? apiResponse.optString("sku") + "_" + apiResponse.optString("tag_no") : null;
+            Map<String, String> extractIds = createShopifyProduct(apiResponse, sku, this::getBaseVarientAndSetSkuAndPrice2);
+
+            if (extractIds == null) {
+                logger.error("Shopify response null for product ID: {}, tag_no: {}", id, tagNo);
+                return false;
+            }
+
+            shopifyIdMappingWriter.saveStockVariant(id, tagNo, extractIds.get("product"));
+
+            logger.info("Successfully created variant for product ID: {}, tag_no: {}", id, tagNo);
+            return true;
+        } catch (Exception e) {
+            logger.error("Error creating variant for product ID: {}, tag_no: {}", id, tagNo, e);
+            return false;
+        }
+    }
+
     private JSONArray fetchProductVarientDetailsFromApi(String id) {
         String url = "https://www.abelini.com/shopify/api/stock_product.php";
         Map<String, String> request = new HashMap<>();
@@ -1855,47 +1309,26 @@ public class ProductMigrationService {
             Map<String, Object> variable = new HashMap<>();
             variable.put("productId", productId);
 
-            String response = sendGraphQLRequest(query, objectMapper.writeValueAsString(variable), false);
+            GraphQLResponse response = sendGraphQLRequest(query, variable, false);
             if (response == null) {
                 logger.error("Failed to fetch base variant for product ID: {}", productId);
                 return;
             }
 
-            JSONObject responseObj = new JSONObject(response);
-
-            // Extract base variant ID
-            JSONObject data = responseObj.optJSONObject("data");
-            if (data == null) {
-                logger.error("Invalid GraphQL response: 'data' is missing");
-                return;
-            }
-
-            JSONObject product = data.optJSONObject("product");
-            if (product == null) {
+            JsonNode product = response.getData().path("product");
+            if (!product.isObject()) {
                 logger.warn("No product found for ID: {}", productId);
                 return;
             }
 
-            JSONObject variants = product.optJSONObject("variants");
-            if (variants == null) {
-                logger.warn("No variants found for product ID: {}", productId);
-                return;
-            }
-
-            JSONArray edges = variants.optJSONArray("edges");
-            if (edges == null || edges.isEmpty()) {
+            JsonNode edges = product.path("variants").path("edges");
+            if (edges.isEmpty()) {
                 logger.warn("No variant edges found for product ID: {}", productId);
                 return;
             }
 
             // Extract base variant
-            JSONObject baseVariant = edges.getJSONObject(0).optJSONObject("node");
-            if (baseVariant == null) {
-                logger.warn("Base variant node is missing for product ID: {}", productId);
-                return;
-            }
-
-            String variantId = baseVariant.optString("id", null);
+            String variantId = edges.path(0).path("node").path("id").asText(null);
             if (variantId == null) {
                 logger.warn("Variant ID is missing for product ID: {}", productId);
                 return;
@@ -1930,7 +1363,7 @@ public class ProductMigrationService {
                     }
                     """;
 
-            String updateResponse = sendGraphQLRequest(mutation, objectMapper.writeValueAsString(variables), true);
+            GraphQLResponse updateResponse = sendGraphQLRequest(mutation, variables, true);
             if (updateResponse == null) {
                 logger.error("Failed to update variant ID: {}", variantId);
             }
@@ -1953,13 +1386,12 @@ public class ProductMigrationService {
             AtomicInteger totalSuccess = new AtomicInteger(0);
             AtomicInteger totalFailed = new AtomicInteger(0);
 
-            List<ProductIds> productIds = productIdsRepository.findAll();
-
-            if (productIds.isEmpty()) {
+            long totalCount = productIdsRepository.count();
+            if (totalCount == 0) {
                 logger.error("no id found");
                 return;
             }
-            long totalCount = productIds.size();
+            Iterable<ProductIds> productIds = productIdsRepository.streamAll()::iterator;
 
             for (ProductIds product : productIds) {
                 totalProcessed.incrementAndGet();
@@ -1975,9 +1407,9 @@ public class ProductMigrationService {
                         continue;
                     }
 
-                    List<JSONObject> metaFields = process2Metafields(apiResponse);
+                    List<Map<String, Object>> metaFields = process2Metafields(apiResponse);
 
-                    processApiResponseAndUploadMetafields(product.getShopifyProductId(), metaFields);
+                    uploadChangedMetafields(product.getShopifyProductId(), metaFields);
 
                     logger.info("Product created successfully for product id: " + id);
                     totalSuccess.incrementAndGet();
@@ -1998,12 +1430,9 @@ public class ProductMigrationService {
         }
     }
 
-    private List<JSONObject> process2Metafields(JSONObject rawMetafields) {
-        List<JSONObject> processedMetafields = new ArrayList<>();
-
-        addMetafield(processedMetafields, rawMetafields, "having_stone_type", "multi_line_text_field");
-        addMetafield(processedMetafields, rawMetafields, "having_stone_shape", "multi_line_text_field");
-
+    private List<Map<String, Object>> process2Metafields(JSONObject rawMetafields) {
+        List<Map<String, Object>> processedMetafields = new ArrayList<>();
+        stoneMetafieldMapping.write(rawMetafields, processedMetafields);
         return processedMetafields;
     }
 
@@ -2018,13 +1447,13 @@ public class ProductMigrationService {
             AtomicInteger totalSuccess = new AtomicInteger(0);
             AtomicInteger totalFailed = new AtomicInteger(0);
 
-            List<ProductIds> productIds = productIdsRepository.findAll();
-//            List<ProductIds> productIds = productIdsRepository.findByProductId("1228");
-            if (productIds.isEmpty()) {
+            long totalCount = productIdsRepository.count();
+            if (totalCount == 0) {
                 logger.error("no id found");
                 return;
             }
-            long totalCount = productIds.size();
+            Iterable<ProductIds> productIds = productIdsRepository.streamAll()::iterator;
+//            Iterable<ProductIds> productIds = productIdsRepository.findByProductId("1228");
 
             for (ProductIds product : productIds) {
                 totalProcessed.incrementAndGet();
@@ -2040,9 +1469,9 @@ public class ProductMigrationService {
                         continue;
                     }
 
-                    List<JSONObject> metaFields = process2MetafieldsSecond(apiResponse);
+                    List<Map<String, Object>> metaFields = process2MetafieldsSecond(apiResponse);
 
-                    processApiResponseAndUploadMetafields(product.getShopifyProductId(), metaFields);
+                    uploadChangedMetafields(product.getShopifyProductId(), metaFields);
 
                     logger.info("Product created successfully for product id: " + id);
                     totalSuccess.incrementAndGet();
@@ -2069,19 +1498,17 @@ public class ProductMigrationService {
         }
     }
 
-    private List<JSONObject> process2MetafieldsSecond(JSONObject rawMetafields) {
-        List<JSONObject> processedMetafields = new ArrayList<>();
-
-        addMetafield(processedMetafields, rawMetafields, "category_feed_id", "number_integer", "opencart_category_id");
-        addMetafield(processedMetafields, rawMetafields, "style_feed_id", "number_integer", "opencart_style_id");
+    private List<Map<String, Object>> process2MetafieldsSecond(JSONObject rawMetafields) {
+        List<Map<String, Object>> processedMetafields = new ArrayList<>();
+        feedIdMetafieldMapping.write(rawMetafields, processedMetafields);
 
 //        addProductReferenceListMetafield(processedMetafields, rawMetafields, "matching_products", "matching_product_open_cart");
 //        addProductReferenceListMetafield(processedMetafields, rawMetafields, "related_products", "related_product_open_cart");
         return processedMetafields;
     }
 
-    private void addProductReferenceListMetafield(List<JSONObject> metafields, JSONObject raw, String
-            key, String metafieldName) {
+    private void addProductReferenceListMetafield(List<Map<String, Object>> metafields, JSONObject raw, String key, String metafieldName,
+                                                  List<DeferredProductReferenceService.Pending> deferredReferences) throws JsonProcessingException {
         if (raw.has(key)) {
             JSONArray idsArray = raw.optJSONArray(key);
             if (idsArray == null && raw.get(key) instanceof String) {
@@ -2089,32 +1516,26 @@ public class ProductMigrationService {
             }
 
             if (idsArray != null && !idsArray.isEmpty()) {
-                logger.info(metafieldName + " found size: " + idsArray.length());
-                List<String> idList = new ArrayList<>();
+                Set<String> idList = new LinkedHashSet<>();
                 for (int i = 0; i < idsArray.length(); i++) {
                     idList.add(idsArray.getString(i));
                 }
 
-                // Fetch GIDs from DB
-                List<ProductIds> products = productIdsRepository.findAllById(idList);
-                logger.info("products my db found : {}/{}", products.size(), idsArray.length());
-                JSONArray gidList = new JSONArray();
-                for (ProductIds product : products) {
-                    gidList.put(product.getShopifyProductId()); // Assuming this returns gid://shopify/Product/...
+                // resolved in ERP order, products not imported yet are written by the back-fill
+                Map<String, String> products = productReferenceCache.resolve(idList);
+                logger.debug("{} products found : {}/{}", metafieldName, products.size(), idList.size());
+                if (products.size() < idList.size()) {
+                    deferredReferences.add(new DeferredProductReferenceService.Pending(metafieldName, new ArrayList<>(idList), products.size()));
                 }
 
-                // Build metafield JSON
-                JSONObject metafield = new JSONObject();
-                metafield.put("namespace", "custom");
-                metafield.put("key", metafieldName);
-                metafield.put("type", "list.product_reference");
-                metafield.put("value", gidList.toString());
-
-                metafields.add(metafield);
+                if (!products.isEmpty()) {
+                    metafields.add(MetafieldMapping.input("custom", metafieldName, "list.product_reference", objectMapper.writeValueAsString(products.values())));
+                }
             }
         }
     }
 
+    private static final String CSV_HEADER = "product_id,variant_id,page,status,shopify_id";
     private static final String CSV_FILE = "src/main/resources/log/variant_processing_log_12-06-25-final-failed-reimport.csv";
     private static final AtomicBoolean headerWritten = new AtomicBoolean(false);
     private static final String BASE_URL = "https://erp.abelini.com/shopify/api/product/";
@@ -2151,42 +1572,6 @@ public class ProductMigrationService {
     private final List<String> failedProductsBestseller = Collections.synchronizedList(new ArrayList<>());
     private final List<String> failedVariantsBestseller = Collections.synchronizedList(new ArrayList<>());
 
-    private void createFileIfMissing() {
-        try {
-            Path path = Paths.get(CSV_FILE);
-            if (!Files.exists(path)) {
-                Files.createDirectories(path.getParent());
-                Files.writeString(path, "product_id,variant_id,page,status,shopify_id\n", StandardOpenOption.CREATE);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Error creating log CSV file", e);
-        }
-    }
-
-    private void createFileIfMissing2() {
-        try {
-            Path path = Paths.get(CSV_FILE_CARAT);
-            if (!Files.exists(path)) {
-                Files.createDirectories(path.getParent());
-                Files.writeString(path, "product_id,variant_id,page,status,shopify_id\n", StandardOpenOption.CREATE);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Error creating log CSV file", e);
-        }
-    }
-
-    private void createFileIfMissing3() {
-        try {
-            Path path = Paths.get(CSV_FILE_BESTSELLER);
-            if (!Files.exists(path)) {
-                Files.createDirectories(path.getParent());
-                Files.writeString(path, "product_id,variant_id,page,status,shopify_id\n", StandardOpenOption.CREATE);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Error creating log CSV file", e);
-        }
-    }
-
     public void logVariant(String productId, String variantId, int page, boolean success, String shopifyId) {
         totalVariants.incrementAndGet();
         if (success) {
@@ -2196,7 +1581,7 @@ public class ProductMigrationService {
             failedVariants.add(productId + "___" + variantId);
         }
 
-        writeToCsv(productId, variantId, page, success ? "SUCCESS" : "FAILED", shopifyId.isBlank() ? "NA" : shopifyId);
+        auditLogWriter.append(CSV_FILE, productId, variantId, page, success ? "SUCCESS" : "FAILED", shopifyId.isBlank() ? "NA" : shopifyId);
     }
 
     public void logProduct(String productId, boolean success) {
@@ -2209,14 +1594,6 @@ public class ProductMigrationService {
         }
     }
 
-    private void writeToCsv(String productId, String variantId, int page, String status, String shopifyId) {
-        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(CSV_FILE), StandardOpenOption.APPEND)) {
-            writer.write(String.format("%s,%s,%d,%s,%s%n", productId, variantId, page, status, shopifyId));
-        } catch (IOException e) {
-            System.err.println("Failed to write log entry: " + e.getMessage());
-        }
-    }
-
     public void logVariantCarat(String productId, String variantId, int page, boolean success, String shopifyId) {
         totalVariantsCarat.incrementAndGet();
         if (success) {
@@ -2226,7 +1603,7 @@ public class ProductMigrationService {
             failedVariantsCarat.add(productId + "___" + variantId);
         }
 
-        writeToCsvCarat(productId, variantId, page, success ? "SUCCESS" : "FAILED", shopifyId.isBlank() ? "NA" : shopifyId);
+        auditLogWriter.append(CSV_FILE_CARAT, productId, variantId, page, success ? "SUCCESS" : "FAILED", shopifyId.isBlank() ? "NA" : shopifyId);
     }
 
     public void logProductCarat(String productId, boolean success) {
@@ -2239,14 +1616,6 @@ public class ProductMigrationService {
         }
     }
 
-    private void writeToCsvCarat(String productId, String variantId, int page, String status, String shopifyId) {
-        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(CSV_FILE_CARAT), StandardOpenOption.APPEND)) {
-            writer.write(String.format("%s,%s,%d,%s,%s%n", productId, variantId, page, status, shopifyId));
-        } catch (IOException e) {
-            System.err.println("Failed to write log entry: " + e.getMessage());
-        }
-    }
-
     public void logVariantBestseller(String productId, String variantId, int page, boolean success, String shopifyId) {
         totalVariantsBestseller.incrementAndGet();
         if (success) {
@@ -2256,7 +1625,7 @@ public class ProductMigrationService {
             failedVariantsBestseller.add(productId + "___" + variantId);
         }
 
-        writeToCsvBestseller(productId, variantId, page, success ? "SUCCESS" : "FAILED", shopifyId.isBlank() ? "NA" : shopifyId);
+        auditLogWriter.append(CSV_FILE_BESTSELLER, productId, variantId, page, success ? "SUCCESS" : "FAILED", shopifyId.isBlank() ? "NA" : shopifyId);
     }
 
     public void logProductBestseller(String productId, boolean success) {
@@ -2269,14 +1638,6 @@ public class ProductMigrationService {
         }
     }
 
-    private void writeToCsvBestseller(String productId, String variantId, int page, String status, String shopifyId) {
-        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(CSV_FILE_BESTSELLER), StandardOpenOption.APPEND)) {
-            writer.write(String.format("%s,%s,%d,%s,%s%n", productId, variantId, page, status, shopifyId));
-        } catch (IOException e) {
-            System.err.println("Failed to write log entry: " + e.getMessage());
-        }
-    }
-
 //    public void printSummary() {
 //        System.out.println("\n======= IMPORT SUMMARY =======");
 //        System.out.printf("Total Products Processed: %d%n", totalProducts.get());
@@ -2379,165 +1740,241 @@ public class ProductMigrationService {
 
     @Async
     public CompletableFuture<Void> imported2LakhProduct(boolean isTest, Set<Long> targetProductIds) {
-        try {
-            String startTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
-                    .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
-            logger.info("Starting import 2 Lakh Product at: {}", startTime);
+        runVariantImport(VariantImportJob.LAKH, isTest, targetProductIds);
+        return CompletableFuture.completedFuture(null);
+    }
 
-            if (isTest) {
-                List<Map<String, Object>> productList = new ArrayList<>();
+    private static class VariantPage {
+        private final String productId;
+        private final int page;
+        private final CompletableFuture<List<Map<String, Object>>> variants;
+
+        private VariantPage(String productId, int page, CompletableFuture<List<Map<String, Object>>> variants) {
+            this.productId = productId;
+            this.page = page;
+            this.variants = variants;
+        }
+    }
+
+    /**
+     * Walks the ERP products and pages of the job and imports every variant that is not stored yet.
+     * The import is a pipeline: up to erp_prefetch_pages ERP pages are fetched ahead on
+     * erp_fetch_concurrency threads, payloads are built on shopify_transform_concurrency threads and
+     * Shopify writes run on shopify_import_concurrency threads that draw from the shared rate limiter.
+     *
+     * Outside test mode every page whose variants were all imported is checkpointed, so a rerun
+     * skips those pages without fetching them from the ERP again and resumes inside a product.
+     *
+     * @param targetProductIds when not null only these products are imported, ignored in test mode.
+     */
+    private void runVariantImport(VariantImportJob job, boolean isTest, Set<Long> targetProductIds) {
+        String startTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
+                .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
+        logger.info("Starting import {} Product at: {}", job, startTime);
+
+        ImportWorkerPool pool = new ImportWorkerPool("variant-import-" + job.name().toLowerCase(), transformConcurrency, importConcurrency,
+                (productId, succeeded, failed) -> {
+                    logImportedProduct(job, productId, failed == 0);
+                    logger.info("Completed {} product id: {}, variants imported: {}, failed: {}", job, productId, succeeded, failed);
+                });
+        if (runningImports.putIfAbsent(job.name(), pool) != null) {
+            logger.warn("{} import is already running", job);
+            pool.close();
+            return;
+        }
 
+        ExecutorService erpExecutor = Executors.newFixedThreadPool(Math.max(1, erpFetchConcurrency));
+        Deque<VariantPage> prefetched = new ArrayDeque<>();
+        try {
+            List<Map<String, Object>> productList;
+            if (isTest) {
+                productList = new ArrayList<>();
                 Map<String, Object> productl = new HashMap<>();
                 productl.put("product_id", "459");
                 productl.put("total_page", 1);
                 productList.add(productl);
-                for (Map<String, Object> product : productList) {
-                    String productId = String.valueOf(product.get("product_id"));
-                    int totalPages = Integer.parseInt(String.valueOf(product.get("total_page")));
-                    Set<String> importedVarients = product2lakhRepository.findVarientIdsByProductId(productId);
-                    for (int page = 1; page <= totalPages; page++) {
-                        callProductDetails(productId, page, importedVarients);
-                    }
-                }
             } else {
-                // 1. Get all products
-                String allProductsUrl = BASE_URL + "all_products.php";
-                HttpHeaders headers = new HttpHeaders();
-                headers.setContentType(MediaType.APPLICATION_JSON);
-                headers.set("Authorization", jwtToken);
-                HttpEntity<?> request = new HttpEntity<>(headers);
-                ResponseEntity<String> response = restTemplate.postForEntity(allProductsUrl, request, String.class);
-
-                if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
-                    List<Map<String, Object>> productList = objectMapper.readValue(
-                            response.getBody(),
-                            new TypeReference<>() {
-                            }
-                    );
+                productList = fetchErpList(job.getProductListUrl(), null);
+                if (productList == null) {
+                    return;
+                }
+                totalProductsOf(job).addAndGet(targetProductIds != null ? targetProductIds.size() : productList.size());
+            }
 
-                    totalProducts.addAndGet(targetProductIds.size());
-                    // 2. For each product, loop over pages and call detail API
-                    for (Map<String, Object> product : productList) {
-                        try {
-                            String productId = String.valueOf(product.get("product_id"));
-                            int totalPages = Integer.parseInt(String.valueOf(product.get("total_page")));
+            Iterator<Map<String, Object>> products = productList.iterator();
+            String nextProductId = null;
+            int nextPage = 0;
+            int nextTotalPages = 0;
+            Set<Integer> completedPages = Collections.emptySet();
 
-                            if (!productId.isBlank() && totalPages > 0) {
-                                Long productIdL = Long.parseLong(productId);
+            String currentProductId = null;
+            ImportedVariantIndex importedVarients = importedVariantIndexService.load(job);
 
-                                if (!targetProductIds.contains(productIdL)) continue;
+            while (!pool.isCancelled()) {
+                // stage 1: keep the ERP prefetch window full
+                while (prefetched.size() < Math.max(1, erpPrefetchPages)) {
+                    if (nextPage >= nextTotalPages) {
+                        nextProductId = null;
+                        while (products.hasNext() && nextProductId == null) {
+                            Map<String, Object> product = products.next();
+                            String productId = String.valueOf(product.get("product_id"));
+                            int totalPages;
+                            try {
+                                totalPages = Integer.parseInt(String.valueOf(product.get("total_page")));
+                            } catch (NumberFormatException e) {
+                                logger.error("Invalid total_page for {} product {}", job, productId);
+                                continue;
+                            }
+                            if (productId.isBlank() || totalPages <= 0) continue;
+                            if (!isTest && targetProductIds != null && !targetProductIds.contains(Long.parseLong(productId))) continue;
+                            Set<Integer> checkpointedPages = isTest ? Collections.emptySet() : findCompletedPages(job, productId);
+                            if (IntStream.rangeClosed(1, totalPages).allMatch(checkpointedPages::contains)) {
+                                logger.info("Skipping {} product {}, all {} pages are checkpointed", job, productId, totalPages);
+                                productsProcessedOf(job).incrementAndGet();
+                                continue;
+                            }
+                            nextProductId = productId;
+                            nextTotalPages = totalPages;
+                            nextPage = 0;
+                            completedPages = checkpointedPages;
+                        }
+                        if (nextProductId == null) break;
+                    }
 
+                    nextPage++;
+                    if (completedPages.contains(nextPage)) continue;
+                    String productId = nextProductId;
+                    int page = nextPage;
+                    prefetched.addLast(new VariantPage(productId, page,
+                            CompletableFuture.supplyAsync(() -> fetchVariantPage(job, productId, page), erpExecutor)));
+                }
 
-                                totalProductsProcessed.incrementAndGet();
-                                Set<String> importedVarients = product2lakhRepository.findVarientIdsByProductId(productId);
+                VariantPage variantPage = prefetched.pollFirst();
+                if (variantPage == null) break;
 
-                                for (int page = 1; page <= totalPages; page++) {
-                                    callProductDetails(productId, page, importedVarients);
-                                }
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+                if (!variantPage.productId.equals(currentProductId)) {
+                    if (currentProductId != null) {
+                        pool.finishProduct(currentProductId);
                     }
+                    currentProductId = variantPage.productId;
+                    if (!isTest) {
+                        productsProcessedOf(job).incrementAndGet();
+                    }
+                    pool.startProduct(currentProductId);
+                }
 
-                } else {
-                    System.err.println("Failed to fetch products: " + response.getStatusCode());
+                // stages 2 and 3: hand the page's variants to the transform and write workers
+                try {
+                    submitVariantPage(job, pool, variantPage, importedVarients, !isTest);
+                } catch (Exception e) {
+                    pool.recordFailure(currentProductId);
+                    logger.error("Error while importing page {} of {} product {}", variantPage.page, job, currentProductId, e);
                 }
             }
 
-            printSummary();
-
-            String endTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
-                    .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
-            logger.info("2 lakh product import process ended..... started at : {} and ended at : {}", startTime, endTime);
+            if (currentProductId != null) {
+                pool.finishProduct(currentProductId);
+            }
+            pool.awaitCompletion();
         } catch (Exception e) {
-            logger.error("Error while importing 2 lakh product", e);
-            e.printStackTrace();
+            logger.error("Error while importing {} product", job, e);
+        } finally {
+            prefetched.forEach(variantPage -> variantPage.variants.cancel(true));
+            erpExecutor.shutdownNow();
+            runningImports.remove(job.name(), pool);
+            pool.close();
         }
-        return CompletableFuture.completedFuture(null);
-    }
 
+        shopifyIdMappingWriter.flush();
+        auditLogWriter.sync();
+        backfillDeferredProductReferences();
+        printSummaryOf(job);
 
-    private void callProductDetails(String productId, int page, Set<String> importedVarients) {
-        String detailsUrl = BASE_URL + "all_product_pnc.php";
+        String endTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
+                .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
+        logger.info("{} product import process ended{}..... started at : {} and ended at : {}", job, pool.isCancelled() ? " (cancelled)" : "", startTime, endTime);
+    }
 
+    private List<Map<String, Object>> fetchVariantPage(VariantImportJob job, String productId, int page) {
         Map<String, String> payload = new HashMap<>();
         payload.put("product_id", productId);
         payload.put("page", String.valueOf(page));
         payload.put("limit", "50");
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.set("Authorization", jwtToken);
-        HttpEntity<?> request = new HttpEntity<>(payload, headers);
+        List<Map<String, Object>> variants = fetchErpList(job.getVariantDetailsUrl(), payload);
+        logger.info("Fetched page {} for {} product {}", page, job, productId);
+        return variants;
+    }
+
+    private void submitVariantPage(VariantImportJob job, ImportWorkerPool pool, VariantPage variantPage, ImportedVariantIndex importedVarients, boolean checkpoint) {
+        String productId = variantPage.productId;
+        int page = variantPage.page;
 
+        List<Map<String, Object>> variants;
         try {
-            ResponseEntity<String> response = restTemplate.postForEntity(detailsUrl, request, String.class);
-            System.out.printf("Fetched page %d for product %s%n", page, productId);
-            if (response.getStatusCode() == HttpStatus.OK) {
-                String json = response.getBody();
-                List<Map<String, Object>> productList = objectMapper.readValue(json, new TypeReference<>() {
-                });
+            variants = variantPage.variants.join();
+        } catch (CompletionException | CancellationException e) {
+            logger.error("Error while fetching page {} for {} product {}", page, job, productId, e);
+            variants = null;
+        }
+        if (variants == null || variants.isEmpty()) {
+            pool.recordFailure(productId);
+            if (checkpoint) {
+                saveCheckpoint(job, productId, page, null, ImportCheckpoint.FAILED);
+            }
+            return;
+        }
 
-                if (!productList.isEmpty()) {
-                    for (Map<String, Object> product : productList) {
-                        String variantId = String.valueOf(product.get("code"));
+        List<Map<String, Object>> pending = variants.stream()
+                .filter(variant -> !importedVarients.contains(productId, String.valueOf(variant.get("code"))))
+                .toList();
+        String lastVariantCode = String.valueOf(variants.get(variants.size() - 1).get("code"));
+        // the page is checkpointed once every pending variant was written, a failure keeps it open for the next run
+        AtomicInteger remaining = new AtomicInteger(pending.size());
+        AtomicBoolean pageFailed = new AtomicBoolean(false);
+        if (checkpoint && pending.isEmpty()) {
+            saveCheckpoint(job, productId, page, lastVariantCode, ImportCheckpoint.COMPLETED);
+        }
 
-                        if (importedVarients.contains(variantId)) continue;
+        for (Map<String, Object> variant : pending) {
+            String variantId = String.valueOf(variant.get("code"));
 
-                        try {
-                            String shopifyId = importProductShopify(product, variantId, productId);
-                            logVariant(productId, variantId, page, shopifyId != null, shopifyId);
-                        } catch (Exception e) {
-                            e.printStackTrace();
+            boolean queued = pool.submit(productId, () -> {
+                JSONObject apiResponse = new JSONObject(variant);
+                String sku = apiResponse.has("code") ? apiResponse.optString("code") : null;
+                try {
+                    return prepareShopifyProduct(apiResponse, sku);
+                } catch (JsonProcessingException e) {
+                    throw new IllegalStateException("Unable to build payload for variant " + variantId, e);
+                }
+            }, prepared -> {
+                String shopifyId = importVariantShopify(job, prepared, variantId, productId);
+                logImportedVariant(job, productId, variantId, page, shopifyId != null, shopifyId == null ? "" : shopifyId);
+                if (checkpoint) {
+                    if (shopifyId == null) {
+                        if (pageFailed.compareAndSet(false, true)) {
+                            saveCheckpoint(job, productId, page, variantId, ImportCheckpoint.FAILED);
                         }
+                    } else if (remaining.decrementAndGet() == 0 && !pageFailed.get()) {
+                        saveCheckpoint(job, productId, page, lastVariantCode, ImportCheckpoint.COMPLETED);
                     }
-
-                    logProduct(productId, true);
-                } else {
-                    logProduct(productId, false);
                 }
-            } else {
-                logProduct(productId, false);
-                System.err.printf("Failed to fetch page %d for product %s: %s%n", page, productId, response.getStatusCode());
-            }
-        } catch (Exception e) {
-            logProduct(productId, false);
-            System.err.printf("Error while calling product detail for %s page %d: %s%n", productId, page, e.getMessage());
+                return shopifyId != null;
+            });
+            if (!queued) return;
         }
     }
 
-    private String importProductShopify(Map<String, Object> product1, String variantId, String productId) {
+    private String importVariantShopify(VariantImportJob job, PreparedProduct prepared, String variantId, String productId) {
         try {
-            JSONObject apiResponse = new JSONObject(product1);
-            Map<String, Object> data = processResponse(apiResponse);
-            regulateApiRate();
-            remainingPoints.addAndGet(-API_COST_PER_CALL);
+            Map<String, String> extractIds = createShopifyProduct(prepared, this::getBaseVarientAndSetSkuAndPrice3);
 
-            Map<String, Object> product = new HashMap<>();
-            product.put("product", data);
-            String response = sendGraphQLRequest(GRAPHQL_QUERY_PRODUCTS_CREATE, objectMapper.writeValueAsString(product), false);
-
-            if (response == null) {
+            if (extractIds == null) {
                 logger.error("Shopify response null for product ID: {}, variant id: {}", productId, variantId);
                 return null;
             }
 
-            Map<String, String> extractIds = extractProductIdAndVariendId(response);
-
-            try {
-                Product2Lakh pi = new Product2Lakh();
-                pi.setProductId(productId);
-                pi.setShopifyProductId(extractIds.get("product"));
-                pi.setVariantCode(variantId);
-                product2lakhRepository.save(pi);
-            } catch (Exception e) {
-                logger.error("Exception while saving product: {} vaient: {} in db", productId, variantId);
-            }
-
-            getBaseVarientAndSetSkuAndPrice3(extractIds.get("product"), apiResponse);
-            List<JSONObject> metaFields = processMetafields(apiResponse);
-            processApiResponseAndUploadMetafields(extractIds.get("product"), metaFields);
+            saveImportedVariant(job, productId, variantId, extractIds.get("product"));
 
             logger.info("Successfully created variant for product ID: {}, variant id: {}", productId, variantId);
             return extractIds.get("product");
@@ -2547,6 +1984,84 @@ public class ProductMigrationService {
         }
     }
 
+    private Set<Integer> findCompletedPages(VariantImportJob job, String productId) {
+        try {
+            return importCheckpointRepository.findCompletedPages(job.name(), productId);
+        } catch (Exception e) {
+            logger.error("Unable to load checkpoints for {} product {}", job, productId, e);
+            return Collections.emptySet();
+        }
+    }
+
+    private void saveCheckpoint(VariantImportJob job, String productId, int page, String lastVariantCode, String status) {
+        try {
+            // the page may only be skipped later if its id mappings are stored
+            if (ImportCheckpoint.COMPLETED.equals(status) && !shopifyIdMappingWriter.flushVariants(job, productId)) {
+                logger.error("Not checkpointing {} product {} page {}, its Shopify id mappings were not all stored", job, productId, page);
+                return;
+            }
+            ImportCheckpoint checkpoint = importCheckpointRepository.findByJobTypeAndProductIdAndPage(job.name(), productId, page)
+                    .orElseGet(ImportCheckpoint::new);
+            checkpoint.setJobType(job.name());
+            checkpoint.setProductId(productId);
+            checkpoint.setPage(page);
+            checkpoint.setLastVariantCode(lastVariantCode);
+            checkpoint.setStatus(status);
+            checkpoint.setUpdatedAt(LocalDateTime.now());
+            importCheckpointRepository.save(checkpoint);
+        } catch (Exception e) {
+            logger.error("Unable to save {} checkpoint for {} product {} page {}", status, job, productId, page, e);
+        }
+    }
+
+    /**
+     * Drops the page checkpoints of a job so the next run walks every ERP page again.
+     */
+    public int resetCheckpoints(VariantImportJob job) {
+        int deleted = importCheckpointRepository.deleteByJobType(job.name());
+        logger.info("Deleted {} checkpoints of {}", deleted, job);
+        return deleted;
+    }
+
+    /**
+     * Stops a running import. Variants already sent to Shopify finish, queued ones are skipped.
+     *
+     * @param name LAKH, CARAT, BESTSELLER or STOCK.
+     * @return false when no import with that name is running.
+     */
+    public boolean cancelImport(String name) {
+        ImportWorkerPool pool = runningImports.get(name);
+        if (pool == null) {
+            return false;
+        }
+        pool.cancel();
+        return true;
+    }
+
+    private AtomicInteger totalProductsOf(VariantImportJob job) {
+        return switch (job) {
+            case LAKH -> totalProducts;
+            case CARAT -> totalProductsCarat;
+            case BESTSELLER -> totalProductsBestseller;
+        };
+    }
+
+    private AtomicInteger productsProcessedOf(VariantImportJob job) {
+        return switch (job) {
+            case LAKH -> totalProductsProcessed;
+            case CARAT -> totalProductsProcessedCarat;
+            case BESTSELLER -> totalProductsProcessedBestseller;
+        };
+    }
+
+    private String printSummaryOf(VariantImportJob job) {
+        return switch (job) {
+            case LAKH -> printSummary();
+            case CARAT -> printSummaryCarat();
+            case BESTSELLER -> printSummaryBestSeller();
+        };
+    }
+
     private void getBaseVarientAndSetSkuAndPrice3(String productId, JSONObject apiResponse) {
         try {
             // Step 1: Fetch Base Variant ID
@@ -2569,49 +2084,26 @@ public class ProductMigrationService {
             Map<String, Object> variable = new HashMap<>();
             variable.put("productId", productId);
 
-            regulateApiRate();
-            remainingPoints.addAndGet(-API_COST_PER_CALL);
-            String response = sendGraphQLRequest(query, objectMapper.writeValueAsString(variable), false);
+            GraphQLResponse response = sendGraphQLRequest(query, variable, false);
             if (response == null) {
                 logger.error("Failed to fetch base variant for product ID: {}", productId);
                 return;
             }
 
-            JSONObject responseObj = new JSONObject(response);
-
-            // Extract base variant ID
-            JSONObject data = responseObj.optJSONObject("data");
-            if (data == null) {
-                logger.error("Invalid GraphQL response: 'data' is missing");
-                return;
-            }
-
-            JSONObject product = data.optJSONObject("product");
-            if (product == null) {
+            JsonNode product = response.getData().path("product");
+            if (!product.isObject()) {
                 logger.warn("No product found for ID: {}", productId);
                 return;
             }
 
-            JSONObject variants = product.optJSONObject("variants");
-            if (variants == null) {
-                logger.warn("No variants found for product ID: {}", productId);
-                return;
-            }
-
-            JSONArray edges = variants.optJSONArray("edges");
-            if (edges == null || edges.isEmpty()) {
+            JsonNode edges = product.path("variants").path("edges");
+            if (edges.isEmpty()) {
                 logger.warn("No variant edges found for product ID: {}", productId);
                 return;
             }
 
             // Extract base variant
-            JSONObject baseVariant = edges.getJSONObject(0).optJSONObject("node");
-            if (baseVariant == null) {
-                logger.warn("Base variant node is missing for product ID: {}", productId);
-                return;
-            }
-
-            String variantId = baseVariant.optString("id", null);
+            String variantId = edges.path(0).path("node").path("id").asText(null);
             if (variantId == null) {
                 logger.warn("Variant ID is missing for product ID: {}", productId);
                 return;
@@ -2646,9 +2138,7 @@ public class ProductMigrationService {
                     }
                     """;
 
-            regulateApiRate();
-            remainingPoints.addAndGet(-API_COST_PER_CALL);
-            String updateResponse = sendGraphQLRequest(mutation, objectMapper.writeValueAsString(variables), true);
+            GraphQLResponse updateResponse = sendGraphQLRequest(mutation, variables, true);
             if (updateResponse == null) {
                 logger.error("Failed to update variant ID: {}", variantId);
             }
@@ -2667,7 +2157,8 @@ public class ProductMigrationService {
                     .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
             logger.info("Starting minPriceUpdateBaseProduct Product at: {}", startTime);
 
-            List<ProductIds> productIds = productIdsRepository.findAll();
+            long totalCount = productIdsRepository.count();
+            Iterable<ProductIds> productIds = productIdsRepository.streamAll()::iterator;
 
 //            List<ProductIds> productIds = new ArrayList<>();
 //            ProductIds pro = new ProductIds();
@@ -2709,12 +2200,9 @@ public class ProductMigrationService {
                         data.put("id", product.getShopifyProductId());
                     }
 
-                    regulateApiRate();
-                    remainingPoints.addAndGet(-API_COST_PER_CALL);
-
                     Map<String, Object> input = new HashMap<>();
                     input.put("input", data);
-                    String response = sendGraphQLRequest(GRAPHQL_QUERY_PRODUCTS_UPDATE, objectMapper.writeValueAsString(input), false);
+                    GraphQLResponse response = sendGraphQLRequest(GRAPHQL_QUERY_PRODUCTS_UPDATE, input, false);
 
                     if (response == null) {
                         logger.error("shopify response null error while creating product id: " + product.getProductId());
@@ -2725,9 +2213,11 @@ public class ProductMigrationService {
 
                     getBaseVarientAndSetSkuAndPrice(product.getShopifyProductId(), apiResponse);
 
-                    List<JSONObject> metaFields = processMetafields(apiResponse);
+                    List<DeferredProductReferenceService.Pending> deferredReferences = new ArrayList<>();
+                    List<Map<String, Object>> metaFields = processMetafields(apiResponse, deferredReferences);
 
-                    processApiResponseAndUploadMetafields(product.getShopifyProductId(), metaFields);
+                    uploadChangedMetafields(product.getShopifyProductId(), metaFields);
+                    deferredProductReferenceService.defer(product.getShopifyProductId(), deferredReferences);
 
                     logger.info("Product updated successfully for product id: " + product.getProductId());
                     totalSuccess.incrementAndGet();
@@ -2737,10 +2227,11 @@ public class ProductMigrationService {
                     logger.error("Exception while minPriceUpdateBaseProduct for product id:{} ::: ", product.getProductId(), e);
                 }
             }
+            backfillDeferredProductReferences();
 
             String endTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
                     .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
-            logger.info("Completed minPriceUpdateBaseProduct Product started at :{} and ended at :{} :::  total count :{}, processed count :{}, success count :{}, failed count :{}, failed ids:{}", startTime, endTime, productIds.size(), totalProcessed.get(), totalSuccess.get(), totalFailed.get(), failedIds);
+            logger.info("Completed minPriceUpdateBaseProduct Product started at :{} and ended at :{} :::  total count :{}, processed count :{}, success count :{}, failed count :{}, failed ids:{}", startTime, endTime, totalCount, totalProcessed.get(), totalSuccess.get(), totalFailed.get(), failedIds);
         } catch (Exception e) {
             logger.error("Exception while minPriceUpdateBaseProduct ::: ", e);
         }
@@ -2793,339 +2284,269 @@ public class ProductMigrationService {
         }
     }
 
+    private static final String GRAPHQL_BULK_PRODUCT_SET = """
+            mutation ProductSet($input: ProductSetInput!) {
+              productSet(input: $input) {
+                product {
+                  id
+                }
+                userErrors {
+                  field
+                  message
+                  code
+                }
+              }
+            }
+            """;
+
+    private static class BulkChunk {
+        private final Path file;
+        private final BufferedWriter writer;
+        // productId, variant code and ERP page of every JSONL line, indexed by line number
+        private final List<String[]> lines = new ArrayList<>();
+        // partly resolved product references, by line number
+        private final Map<Integer, List<DeferredProductReferenceService.Pending>> deferredReferences = new HashMap<>();
+        private long bytes;
+
+        private BulkChunk(Path file) throws IOException {
+            this.file = file;
+            this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Imports the variants of one of the ERP variant jobs through a bulk productSet mutation instead
+     * of one synchronous create per variant. Inputs are streamed into JSONL chunks no larger than
+     * shopify_bulk_max_file_mb, each chunk is run as one bulk operation and its result file is used to
+     * store the created Shopify ids.
+     */
     @Async
-    public CompletableFuture<Void> importedBulkCaratProduct(boolean isTest) {
-        try {
-            String startTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
-                    .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
-            logger.info("Starting import carat Product at: {}", startTime);
+    public CompletableFuture<Void> importedVariantsBulkMutation(VariantImportJob job, boolean isTest, Set<Long> targetProductIds) {
+        String startTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
+                .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
+        logger.info("Starting bulk mutation import for {} at: {}", job, startTime);
 
+        BulkChunk chunk = null;
+        int chunkCount = 0;
+        try {
+            ImportedVariantIndex importedVarients = importedVariantIndexService.load(job);
+            List<Map<String, Object>> productList;
             if (isTest) {
-                List<Map<String, Object>> productList = new ArrayList<>();
-
+                productList = new ArrayList<>();
                 Map<String, Object> productl = new HashMap<>();
                 productl.put("product_id", "459");
                 productl.put("total_page", 1);
                 productList.add(productl);
-                for (Map<String, Object> product : productList) {
-                    String productId = String.valueOf(product.get("product_id"));
-                    int totalPages = Integer.parseInt(String.valueOf(product.get("total_page")));
-                    Set<String> importedVarients = productCaratRepository.findVarientIdsByProductId(productId);
-                    for (int page = 1; page <= totalPages; page++) {
-                        callProductDetailsCarat(productId, page, importedVarients);
-                    }
-                }
             } else {
-                // 1. Get all products
-                String allProductsUrl = BASE_URL + "all_products_carat.php";
-                HttpHeaders headers = new HttpHeaders();
-                headers.setContentType(MediaType.APPLICATION_JSON);
-                headers.set("Authorization", jwtToken);
-                HttpEntity<?> request = new HttpEntity<>(headers);
-                ResponseEntity<String> response = restTemplate.postForEntity(allProductsUrl, request, String.class);
-
-                if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
-                    List<Map<String, Object>> productList = objectMapper.readValue(
-                            response.getBody(),
-                            new TypeReference<>() {
-                            }
-                    );
+                productList = fetchErpList(job.getProductListUrl(), null);
+                if (productList == null) {
+                    logger.error("Failed to fetch product list for {}", job);
+                    return CompletableFuture.completedFuture(null);
+                }
+            }
 
-                    totalProductsCarat.addAndGet(productList.size());
-                    // 2. For each product, loop over pages and call detail API
-                    for (Map<String, Object> product : productList) {
-                        try {
-                            String productId = String.valueOf(product.get("product_id"));
-                            int totalPages = Integer.parseInt(String.valueOf(product.get("total_page")));
+            long maxFileBytes = bulkMaxFileMb * 1024 * 1024;
+            for (Map<String, Object> product : productList) {
+                String productId = String.valueOf(product.get("product_id"));
+                int totalPages = Integer.parseInt(String.valueOf(product.get("total_page")));
+                if (productId.isBlank() || totalPages <= 0) continue;
+                if (targetProductIds != null && !targetProductIds.isEmpty()
+                        && !targetProductIds.contains(Long.parseLong(productId))) continue;
 
-                            if (!productId.isBlank() && totalPages > 0) {
-                                Long productIdL = Long.parseLong(productId);
+                for (int page = 1; page <= totalPages; page++) {
+                    Map<String, String> payload = new HashMap<>();
+                    payload.put("product_id", productId);
+                    payload.put("page", String.valueOf(page));
+                    payload.put("limit", "50");
 
-//                                if (!targetProductIds.contains(productIdL)) continue;
+                    List<Map<String, Object>> variants = fetchErpList(job.getVariantDetailsUrl(), payload);
+                    logImportedProduct(job, productId, variants != null && !variants.isEmpty());
+                    if (variants == null) continue;
 
-                                totalProductsProcessedCarat.incrementAndGet();
-                                Set<String> importedVarients = productCaratRepository.findVarientIdsByProductId(productId);
+                    for (Map<String, Object> variant : variants) {
+                        String variantId = String.valueOf(variant.get("code"));
+                        if (importedVarients.contains(productId, variantId)) continue;
 
-                                for (int page = 1; page <= totalPages; page++) {
-                                    callProductDetailsCarat(productId, page, importedVarients);
+                        try {
+                            JSONObject apiResponse = new JSONObject(variant);
+                            String sku = apiResponse.has("code") ? apiResponse.optString("code") : null;
+                            List<DeferredProductReferenceService.Pending> deferredReferences = new ArrayList<>();
+                            String line = objectMapper.writeValueAsString(Map.of("input", buildProductSetInput(apiResponse, sku, deferredReferences))) + "\n";
+                            long lineBytes = line.getBytes(StandardCharsets.UTF_8).length;
+
+                            if (chunk != null && chunk.bytes + lineBytes > maxFileBytes) {
+                                try {
+                                    runBulkChunk(job, chunk, ++chunkCount);
+                                } finally {
+                                    // the chunk's writer is closed even when the run failed
+                                    chunk = null;
                                 }
                             }
+                            if (chunk == null) {
+                                chunk = new BulkChunk(Files.createTempFile("bulk-" + job.name().toLowerCase() + "-", ".jsonl"));
+                            }
+
+                            chunk.writer.write(line);
+                            chunk.bytes += lineBytes;
+                            if (!deferredReferences.isEmpty()) {
+                                chunk.deferredReferences.put(chunk.lines.size(), deferredReferences);
+                            }
+                            chunk.lines.add(new String[]{productId, variantId, String.valueOf(page)});
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            logger.error("Error while preparing bulk input for product id: {}, variant id: {}", productId, variantId, e);
+                            logImportedVariant(job, productId, variantId, page, false, "");
                         }
                     }
-
-                } else {
-                    System.err.println("Failed to fetch products: " + response.getStatusCode());
                 }
             }
 
-            printSummaryCarat();
-
-            String endTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
-                    .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
-            logger.info("Carat product import process ended..... started at : {} and ended at : {}", startTime, endTime);
+            if (chunk != null) {
+                BulkChunk last = chunk;
+                chunk = null;
+                runBulkChunk(job, last, ++chunkCount);
+            }
         } catch (Exception e) {
-            logger.error("Error while importing carat product", e);
-            e.printStackTrace();
+            logger.error("Error while importing {} variants through bulk mutation", job, e);
+        } finally {
+            if (chunk != null) {
+                discardBulkChunk(chunk);
+            }
         }
+
+        shopifyIdMappingWriter.flush();
+        auditLogWriter.sync();
+        backfillDeferredProductReferences();
+        String endTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
+                .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
+        logger.info("Bulk mutation import for {} ended, chunks: {}, started at : {} and ended at : {}", job, chunkCount, startTime, endTime);
         return CompletableFuture.completedFuture(null);
     }
 
-    private void callProductDetailsCarat(String productId, int page, Set<String> importedVarients) {
-        String detailsUrl = "https://erp.abelini.com/shopify/api/all_product_variation_carat.php";
-
-        Map<String, String> payload = new HashMap<>();
-        payload.put("product_id", productId);
-        payload.put("page", String.valueOf(page));
-        payload.put("limit", "50");
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.set("Authorization", jwtToken);
-        HttpEntity<?> request = new HttpEntity<>(payload, headers);
-
-        try {
-            ResponseEntity<String> response = restTemplate.postForEntity(detailsUrl, request, String.class);
-            System.out.printf("Fetched page %d for product %s%n", page, productId);
-            if (response.getStatusCode() == HttpStatus.OK) {
-                String json = response.getBody();
-                List<Map<String, Object>> productList = objectMapper.readValue(json, new TypeReference<>() {
-                });
-
-                if (!productList.isEmpty()) {
-                    for (Map<String, Object> product : productList) {
-                        String variantId = String.valueOf(product.get("code"));
-
-                        if (importedVarients.contains(variantId)) continue;
-                        try {
-                            String shopifyId = importProductShopifyCarat(product, variantId, productId);
-                            logVariantCarat(productId, variantId, page, shopifyId != null, shopifyId);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
+    private void runBulkChunk(VariantImportJob job, BulkChunk chunk, int chunkNumber) throws IOException {
+        chunk.writer.close();
+        logger.info("Running bulk chunk {} for {} with {} inputs, {} bytes", chunkNumber, job, chunk.lines.size(), chunk.bytes);
 
-                    logProductCarat(productId, true);
-                } else {
-                    logProductCarat(productId, false);
-                }
-            } else {
-                logProductCarat(productId, false);
-                System.err.printf("Failed to fetch page %d for product %s: %s%n", page, productId, response.getStatusCode());
+        boolean[] answered = new boolean[chunk.lines.size()];
+        boolean completed = shopifyBulkMutationService.runBulkMutation(GRAPHQL_BULK_PRODUCT_SET, chunk.file, (lineNumber, result) -> {
+            if (lineNumber < 0 || lineNumber >= chunk.lines.size()) {
+                logger.warn("Bulk result for unknown line {}: {}", lineNumber, result);
+                return;
             }
-        } catch (Exception e) {
-            logProductCarat(productId, false);
-            System.err.printf("Error while calling product detail for %s page %d: %s%n", productId, page, e.getMessage());
-        }
-    }
-
-    private String importProductShopifyCarat(Map<String, Object> product1, String variantId, String productId) {
-        try {
-            JSONObject apiResponse = new JSONObject(product1);
-            Map<String, Object> data = processResponse(apiResponse);
-            regulateApiRate();
-            remainingPoints.addAndGet(-API_COST_PER_CALL);
-
-            Map<String, Object> product = new HashMap<>();
-            product.put("product", data);
-            String response = sendGraphQLRequest(GRAPHQL_QUERY_PRODUCTS_CREATE, objectMapper.writeValueAsString(product), false);
+            answered[lineNumber] = true;
+            String[] key = chunk.lines.get(lineNumber);
 
-            if (response == null) {
-                logger.error("Shopify response null for product ID: {}, variant id: {}", productId, variantId);
-                return null;
+            JsonNode productSet = result.path("data").path("productSet");
+            String shopifyId = productSet.path("product").path("id").asText(null);
+            if (shopifyId == null || !productSet.path("userErrors").isEmpty()) {
+                logger.error("Bulk productSet failed for product id: {}, variant id: {}, errors: {}", key[0], key[1], result.has("errors") ? result.path("errors") : productSet.path("userErrors"));
+                logImportedVariant(job, key[0], key[1], Integer.parseInt(key[2]), false, "");
+                return;
             }
 
-            Map<String, String> extractIds = extractProductIdAndVariendId(response);
+            saveImportedVariant(job, key[0], key[1], shopifyId);
+            deferredProductReferenceService.defer(shopifyId, chunk.deferredReferences.get(lineNumber));
+            logImportedVariant(job, key[0], key[1], Integer.parseInt(key[2]), true, shopifyId);
+        });
 
-            try {
-                ProductCarat pi = new ProductCarat();
-                pi.setProductId(productId);
-                pi.setShopifyProductId(extractIds.get("product"));
-                pi.setVariantCode(variantId);
-                productCaratRepository.save(pi);
-            } catch (Exception e) {
-                logger.error("Exception while saving product: {} vaient: {} in db", productId, variantId);
+        for (int i = 0; i < answered.length; i++) {
+            if (!answered[i]) {
+                String[] key = chunk.lines.get(i);
+                logImportedVariant(job, key[0], key[1], Integer.parseInt(key[2]), false, "");
             }
+        }
 
-            getBaseVarientAndSetSkuAndPrice3(extractIds.get("product"), apiResponse);
-            List<JSONObject> metaFields = processMetafields(apiResponse);
-            processApiResponseAndUploadMetafields(extractIds.get("product"), metaFields);
-
-            logger.info("Successfully created variant for product ID: {}, variant id: {}", productId, variantId);
-            return extractIds.get("product");
-        } catch (Exception e) {
-            logger.error("Error while creating product id: {}, variant id: {}", productId, variantId);
-            return null;
+        if (completed) {
+            Files.deleteIfExists(chunk.file);
+        } else {
+            logger.error("Bulk chunk {} for {} did not complete, variables kept at {}", chunkNumber, job, chunk.file);
         }
     }
 
-    @Async
-    public CompletableFuture<Void> importedBulkBestsellerProduct(boolean isTest) {
+    // a chunk that was never run, e.g. when the job stopped on an error
+    private void discardBulkChunk(BulkChunk chunk) {
         try {
-            String startTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
-                    .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
-            logger.info("Starting import bestseller Product at: {}", startTime);
-
-            if (isTest) {
-                List<Map<String, Object>> productList = new ArrayList<>();
-
-                Map<String, Object> productl = new HashMap<>();
-                productl.put("product_id", "459");
-                productl.put("total_page", 1);
-                productList.add(productl);
-                for (Map<String, Object> product : productList) {
-                    String productId = String.valueOf(product.get("product_id"));
-                    int totalPages = Integer.parseInt(String.valueOf(product.get("total_page")));
-                    Set<String> importedVarients = productBestsellerRepository.findVarientIdsByProductId(productId);
-                    for (int page = 1; page <= totalPages; page++) {
-                        callProductDetailsBestseller(productId, page, importedVarients);
-                    }
-                }
-            } else {
-                // 1. Get all products
-                String allProductsUrl = BASE_URL + "all_products_shape_stone.php";
-                HttpHeaders headers = new HttpHeaders();
-                headers.setContentType(MediaType.APPLICATION_JSON);
-                headers.set("Authorization", jwtToken);
-                HttpEntity<?> request = new HttpEntity<>(headers);
-                ResponseEntity<String> response = restTemplate.postForEntity(allProductsUrl, request, String.class);
-
-                if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
-                    List<Map<String, Object>> productList = objectMapper.readValue(
-                            response.getBody(),
-                            new TypeReference<>() {
-                            }
-                    );
-
-                    totalProductsBestseller.addAndGet(productList.size());
-                    // 2. For each product, loop over pages and call detail API
-                    for (Map<String, Object> product : productList) {
-                        try {
-                            String productId = String.valueOf(product.get("product_id"));
-                            int totalPages = Integer.parseInt(String.valueOf(product.get("total_page")));
-
-                            if (!productId.isBlank() && totalPages > 0) {
-                                Long productIdL = Long.parseLong(productId);
-
-//                                if (!targetProductIds.contains(productIdL)) continue;
-
-                                totalProductsProcessedBestseller.incrementAndGet();
-                                Set<String> importedVarients = productBestsellerRepository.findVarientIdsByProductId(productId);
-
-                                for (int page = 1; page <= totalPages; page++) {
-                                    callProductDetailsBestseller(productId, page, importedVarients);
-                                }
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                } else {
-                    System.err.println("Failed to fetch products: " + response.getStatusCode());
-                }
-            }
-
-            printSummaryBestSeller();
-
-            String endTime = ZonedDateTime.now(ZoneId.of("Asia/Kolkata"))
-                    .format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z"));
-            logger.info("bestseller product import process ended..... started at : {} and ended at : {}", startTime, endTime);
-        } catch (Exception e) {
-            logger.error("Error while importing bestseller product", e);
-            e.printStackTrace();
+            chunk.writer.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close bulk chunk {}: {}", chunk.file, e.getMessage());
+        }
+        try {
+            Files.deleteIfExists(chunk.file);
+        } catch (IOException e) {
+            logger.warn("Unable to delete bulk chunk {}: {}", chunk.file, e.getMessage());
         }
-        return CompletableFuture.completedFuture(null);
     }
 
-    private void callProductDetailsBestseller(String productId, int page, Set<String> importedVarients) {
-        String detailsUrl = "https://erp.abelini.com/shopify/api/all_product_variation_shape_stone.php";
+    private Map<String, Object> buildProductSetInput(JSONObject apiResponse, String sku, List<DeferredProductReferenceService.Pending> deferredReferences) throws JsonProcessingException {
+        Map<String, Object> input = processResponse(apiResponse);
+        input.put("metafields", processMetafields(apiResponse, deferredReferences));
+        input.put("productOptions", List.of(Map.of("name", "Title", "values", List.of(Map.of("name", "Default Title")))));
 
-        Map<String, String> payload = new HashMap<>();
-        payload.put("product_id", productId);
-        payload.put("page", String.valueOf(page));
-        payload.put("limit", "50");
+        Map<String, Object> variant = new HashMap<>();
+        variant.put("optionValues", List.of(Map.of("optionName", "Title", "name", "Default Title")));
+        if (sku != null) {
+            variant.put("sku", sku);
+        }
+        if (apiResponse.has("price")) {
+            variant.put("price", String.format("%.2f", apiResponse.optDouble("price", 0.0))); // Ensure 2 decimal places
+        }
+        input.put("variants", List.of(variant));
+        return input;
+    }
 
+    private List<Map<String, Object>> fetchErpList(String url, Map<String, String> payload) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
         headers.set("Authorization", jwtToken);
         HttpEntity<?> request = new HttpEntity<>(payload, headers);
 
         try {
-            ResponseEntity<String> response = restTemplate.postForEntity(detailsUrl, request, String.class);
-            System.out.printf("Fetched page %d for product %s%n", page, productId);
-            if (response.getStatusCode() == HttpStatus.OK) {
-                String json = response.getBody();
-                List<Map<String, Object>> productList = objectMapper.readValue(json, new TypeReference<>() {
-                });
-
-                if (!productList.isEmpty()) {
-                    for (Map<String, Object> product : productList) {
-                        String variantId = String.valueOf(product.get("code"));
-
-                        if (importedVarients.contains(variantId)) continue;
-
-                        try {
-                            String shopifyId = importProductShopifyBestseller(product, variantId, productId);
-                            logVariantBestseller(productId, variantId, page, shopifyId != null, shopifyId);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    logProductBestseller(productId, true);
-                } else {
-                    logProductBestseller(productId, false);
-                }
-            } else {
-                logProductBestseller(productId, false);
-                System.err.printf("Failed to fetch page %d for product %s: %s%n", page, productId, response.getStatusCode());
+            ResponseEntity<String> response = restTemplate.postForEntity(url, request, String.class);
+            if (response.getStatusCode() != HttpStatus.OK || response.getBody() == null) {
+                logger.error("Failed to fetch {} with payload {}: {}", url, payload, response.getStatusCode());
+                return null;
             }
+            return objectMapper.readValue(response.getBody(), new TypeReference<>() {
+            });
         } catch (Exception e) {
-            logProductBestseller(productId, false);
-            System.err.printf("Error while calling product detail for %s page %d: %s%n", productId, page, e.getMessage());
+            logger.error("Error while calling {} with payload {}: {}", url, payload, e.getMessage());
+            return null;
         }
     }
 
-    private String importProductShopifyBestseller(Map<String, Object> product1, String variantId, String productId) {
+    private void saveImportedVariant(VariantImportJob job, String productId, String variantId, String shopifyId) {
         try {
-            JSONObject apiResponse = new JSONObject(product1);
-            Map<String, Object> data = processResponse(apiResponse);
-            regulateApiRate();
-            remainingPoints.addAndGet(-API_COST_PER_CALL);
-
-            Map<String, Object> product = new HashMap<>();
-            product.put("product", data);
-            String response = sendGraphQLRequest(GRAPHQL_QUERY_PRODUCTS_CREATE, objectMapper.writeValueAsString(product), false);
-
-            if (response == null) {
-                logger.error("Shopify response null for product ID: {}, variant id: {}", productId, variantId);
-                return null;
-            }
-
-            Map<String, String> extractIds = extractProductIdAndVariendId(response);
-
-            try {
-                ProductBestseller pi = new ProductBestseller();
-                pi.setProductId(productId);
-                pi.setShopifyProductId(extractIds.get("product"));
-                pi.setVariantCode(variantId);
-                productBestsellerRepository.save(pi);
-            } catch (Exception e) {
-                logger.error("Exception while saving product: {} vaient: {} in db", productId, variantId);
-            }
+            shopifyIdMappingWriter.saveImportedVariant(job, productId, variantId, shopifyId);
+            importedVariantIndexService.markImported(job, productId, variantId);
+        } catch (Exception e) {
+            logger.error("Exception while saving product: {} vaient: {} in db", productId, variantId);
+        }
+    }
 
-            getBaseVarientAndSetSkuAndPrice3(extractIds.get("product"), apiResponse);
-            List<JSONObject> metaFields = processMetafields(apiResponse);
-            processApiResponseAndUploadMetafields(extractIds.get("product"), metaFields);
+    private void logImportedVariant(VariantImportJob job, String productId, String variantId, int page, boolean success, String shopifyId) {
+        switch (job) {
+            case LAKH -> logVariant(productId, variantId, page, success, shopifyId);
+            case CARAT -> logVariantCarat(productId, variantId, page, success, shopifyId);
+            case BESTSELLER -> logVariantBestseller(productId, variantId, page, success, shopifyId);
+        }
+    }
 
-            logger.info("Successfully created variant for product ID: {}, variant id: {}", productId, variantId);
-            return extractIds.get("product");
-        } catch (Exception e) {
-            logger.error("Error while creating product id: {}, variant id: {}", productId, variantId);
-            return null;
+    private void logImportedProduct(VariantImportJob job, String productId, boolean success) {
+        switch (job) {
+            case LAKH -> logProduct(productId, success);
+            case CARAT -> logProductCarat(productId, success);
+            case BESTSELLER -> logProductBestseller(productId, success);
         }
     }
 
+    @Async
+    public CompletableFuture<Void> importedBulkCaratProduct(boolean isTest) {
+        runVariantImport(VariantImportJob.CARAT, isTest, null);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Async
+    public CompletableFuture<Void> importedBulkBestsellerProduct(boolean isTest) {
+        runVariantImport(VariantImportJob.BESTSELLER, isTest, null);
+        return CompletableFuture.completedFuture(null);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+package com.abelini_s3_migrate.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * The filter and option names of one product, read from its product_filters and product_options
+ * JSON in a single pass each. Filters are indexed by filter_group_id, options by option key with the
+ * names of their product_option_value entries.
+ */
+public class ProductOptionIndex {
+    private static final Logger logger = LoggerFactory.getLogger(ProductOptionIndex.class);
+
+    private final Map<String, List<String>> filterNamesByGroupId = new HashMap<>();
+    private final Map<String, List<String>> optionFilterNamesByGroupId = new HashMap<>();
+    private final Map<String, List<String>> optionValueNamesByKey = new HashMap<>();
+
+    private ProductOptionIndex() {
+    }
+
+    /**
+     * @param filters the product_filters value, null when the product has none.
+     * @param options the product_options value, null when the product has none.
+     */
+    public static ProductOptionIndex parse(ObjectMapper objectMapper, Object filters, Object options) {
+        ProductOptionIndex index = new ProductOptionIndex();
+        JsonNode filtersNode = read(objectMapper, filters);
+        if (filtersNode.isContainerNode()) {
+            for (JsonNode filter : filtersNode) {
+                indexFilter(filter, index.filterNamesByGroupId);
+            }
+        }
+
+        JsonNode optionsNode = read(objectMapper, options);
+        for (Iterator<Map.Entry<String, JsonNode>> fields = optionsNode.fields(); fields.hasNext(); ) {
+            Map.Entry<String, JsonNode> option = fields.next();
+            indexFilter(option.getValue(), index.optionFilterNamesByGroupId);
+            List<String> names = new ArrayList<>();
+            for (JsonNode value : option.getValue().path("product_option_value")) {
+                JsonNode name = value.get("name");
+                if (name != null && !name.isNull()) {
+                    names.add(name.asText());
+                }
+            }
+            index.optionValueNamesByKey.put(option.getKey(), names);
+        }
+        return index;
+    }
+
+    /**
+     * @return the names of the filters in the group plus the values of the option, without duplicates.
+     */
+    public Set<String> names(String filterGroupId, String optionKey) {
+        return union(filterNamesByGroupId.get(filterGroupId), optionValueNamesByKey.get(optionKey));
+    }
+
+    /**
+     * Like {@link #names(String, String)}, but matches the filter group against the options, for
+     * options such as carat that carry their filter_group_id themselves.
+     */
+    public Set<String> optionNames(String filterGroupId, String optionKey) {
+        return union(optionFilterNamesByGroupId.get(filterGroupId), optionValueNamesByKey.get(optionKey));
+    }
+
+    private static Set<String> union(List<String> first, List<String> second) {
+        Set<String> names = new LinkedHashSet<>();
+        if (first != null) {
+            names.addAll(first);
+        }
+        if (second != null) {
+            names.addAll(second);
+        }
+        return names;
+    }
+
+    private static void indexFilter(JsonNode filter, Map<String, List<String>> index) {
+        if (filter.has("filter_group_id") && filter.has("name")) {
+            index.computeIfAbsent(filter.get("filter_group_id").asText(), key -> new ArrayList<>()).add(filter.get("name").asText());
+        }
+    }
+
+    private static JsonNode read(ObjectMapper objectMapper, Object json) {
+        if (json == null) {
+            return objectMapper.missingNode();
+        }
+        try {
+            return objectMapper.readTree(json.toString());
+        } catch (Exception e) {
+            logger.error("Error parsing product option JSON: {}", e.getMessage());
+            return objectMapper.missingNode();
+        }
+    }
+}
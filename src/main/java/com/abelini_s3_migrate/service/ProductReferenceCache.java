@@ -0,0 +1,130 @@
+package com.abelini_s3_migrate.service;
+
+import com.abelini_s3_migrate.entity.ProductIds;
+import com.abelini_s3_migrate.repo.ProductIdsRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * In-process OpenCart product id to Shopify product GID mapping of dd_product_to_shopify. The table
+ * is loaded once on first use, in keyset pages, into an LRU map bounded by product_reference_cache_size; products
+ * saved afterwards are added through {@link #put}. When the whole table fits, a miss means the
+ * product is not imported and costs no query, otherwise misses are read from the database in one
+ * query per call and cached.
+ */
+@Service
+public class ProductReferenceCache {
+    private static final Logger logger = LoggerFactory.getLogger(ProductReferenceCache.class);
+
+    private final ProductIdsRepository productIdsRepository;
+    private final int capacity;
+    private final LinkedHashMap<String, String> entries;
+    private volatile boolean loaded;
+    private boolean complete;
+
+    public ProductReferenceCache(ProductIdsRepository productIdsRepository,
+                                 @Value("${product_reference_cache_size:100000}") int capacity) {
+        this.productIdsRepository = productIdsRepository;
+        this.capacity = Math.max(1, capacity);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() <= ProductReferenceCache.this.capacity) {
+                    return false;
+                }
+                // an evicted product is no longer known to be missing
+                complete = false;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the Shopify product GID of the product, or null when it is not imported.
+     */
+    public String resolve(String productId) {
+        return resolve(List.of(productId)).get(productId);
+    }
+
+    /**
+     * @return the Shopify product GIDs of the imported products among the given ids, in the order of the ids.
+     */
+    public Map<String, String> resolve(Collection<String> productIds) {
+        ensureLoaded();
+        Map<String, String> resolved = new LinkedHashMap<>();
+        List<String> misses = new ArrayList<>();
+        synchronized (this) {
+            for (String productId : productIds) {
+                String shopifyProductId = entries.get(productId);
+                if (shopifyProductId != null) {
+                    resolved.put(productId, shopifyProductId);
+                } else if (!complete) {
+                    misses.add(productId);
+                }
+            }
+        }
+        if (misses.isEmpty()) {
+            return resolved;
+        }
+
+        Map<String, String> found = new HashMap<>();
+        for (ProductIds product : productIdsRepository.findAllById(misses)) {
+            found.put(product.getProductId(), product.getShopifyProductId());
+            put(product.getProductId(), product.getShopifyProductId());
+        }
+        Map<String, String> ordered = new LinkedHashMap<>();
+        for (String productId : productIds) {
+            String shopifyProductId = resolved.containsKey(productId) ? resolved.get(productId) : found.get(productId);
+            if (shopifyProductId != null) {
+                ordered.put(productId, shopifyProductId);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Records a product saved to dd_product_to_shopify.
+     */
+    public synchronized void put(String productId, String shopifyProductId) {
+        if (productId != null && shopifyProductId != null) {
+            entries.put(productId, shopifyProductId);
+        }
+    }
+
+    /**
+     * Drops every entry, the table is read again on next use.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        complete = false;
+        loaded = false;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            int rows = 0;
+            for (ProductIds product : (Iterable<ProductIds>) productIdsRepository.streamAll()::iterator) {
+                rows++;
+                // entries put before the load are newer than rows the mapping writer has not flushed yet
+                if (product.getShopifyProductId() != null) {
+                    entries.putIfAbsent(product.getProductId(), product.getShopifyProductId());
+                }
+            }
+            complete = rows <= capacity;
+            loaded = true;
+            logger.info("Loaded {} product references in {} ms{}", entries.size(), System.currentTimeMillis() - start,
+                    complete ? "" : ", table is larger than the cache, misses are read from the database");
+        }
+    }
+}
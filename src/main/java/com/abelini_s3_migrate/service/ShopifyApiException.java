@@ -0,0 +1,37 @@
+package com.abelini_s3_migrate.service;
+
+/**
+ * A Shopify call that did not return a successful HTTP response. The status code is -1 when no
+ * response was received at all, e.g. on a connect or read timeout.
+ */
+public class ShopifyApiException extends RuntimeException {
+    private final int statusCode;
+    private final String responseBody;
+    private final String retryAfter;
+
+    public ShopifyApiException(int statusCode, String responseBody, String retryAfter) {
+        super("Shopify responded with HTTP " + statusCode + ": " + responseBody);
+        this.statusCode = statusCode;
+        this.responseBody = responseBody;
+        this.retryAfter = retryAfter;
+    }
+
+    public ShopifyApiException(String message, Throwable cause) {
+        super(message, cause);
+        this.statusCode = -1;
+        this.responseBody = null;
+        this.retryAfter = null;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getResponseBody() {
+        return responseBody;
+    }
+
+    public String getRetryAfter() {
+        return retryAfter;
+    }
+}
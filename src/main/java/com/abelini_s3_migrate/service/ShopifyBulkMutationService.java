@@ -0,0 +1,183 @@
+package com.abelini_s3_migrate.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.*;
+import org.springframework.stereotype.Service;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.RestTemplate;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs a GraphQL mutation over a JSONL variables file with Shopify bulk operations:
+ * stagedUploadsCreate, upload of the file to the staged target, bulkOperationRunMutation,
+ * polling until the operation finishes and streaming the result file back.
+ */
+@Service
+public class ShopifyBulkMutationService {
+    private static final Logger logger = LoggerFactory.getLogger(ShopifyBulkMutationService.class);
+    private final RestTemplate restTemplate;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ShopifyFileFetcherService shopifyFileFetcherService;
+    private final ShopifyRateLimiter shopifyRateLimiter;
+    private final ShopifyGraphQLClient shopifyGraphQLClient;
+    private final ShopifyRetryPolicy shopifyRetryPolicy;
+    private static final int API_COST_PER_CALL = 10;
+
+    private static final String GRAPHQL_STAGED_UPLOADS_CREATE = """
+            mutation StagedUploadsCreate($input: [StagedUploadInput!]!) {
+              stagedUploadsCreate(input: $input) {
+                stagedTargets {
+                  url
+                  resourceUrl
+                  parameters {
+                    name
+                    value
+                  }
+                }
+                userErrors {
+                  field
+                  message
+                }
+              }
+            }
+            """;
+
+    private static final String GRAPHQL_BULK_OPERATION_RUN_MUTATION = """
+            mutation BulkOperationRunMutation($mutation: String!, $stagedUploadPath: String!) {
+              bulkOperationRunMutation(mutation: $mutation, stagedUploadPath: $stagedUploadPath) {
+                bulkOperation {
+                  id
+                  status
+                }
+                userErrors {
+                  field
+                  message
+                }
+              }
+            }
+            """;
+
+    public ShopifyBulkMutationService(ShopifyFileFetcherService shopifyFileFetcherService, ShopifyRateLimiter shopifyRateLimiter, ShopifyGraphQLClient shopifyGraphQLClient, ShopifyRetryPolicy shopifyRetryPolicy, RestTemplate restTemplate) {
+        this.shopifyFileFetcherService = shopifyFileFetcherService;
+        this.shopifyRateLimiter = shopifyRateLimiter;
+        this.shopifyGraphQLClient = shopifyGraphQLClient;
+        this.shopifyRetryPolicy = shopifyRetryPolicy;
+        this.restTemplate = restTemplate;
+    }
+
+    /**
+     * Uploads the JSONL file and runs the mutation once per line. Shopify allows only one bulk
+     * mutation per shop at a time, so concurrent callers are serialized here.
+     *
+     * @param mutation       the mutation, its variables are read from each JSONL line.
+     * @param jsonlFile      the variables file, at most the staged upload size limit.
+     * @param resultConsumer receives the zero based line number and the mutation result for that line.
+     * @return true when the bulk operation completed and its results were streamed.
+     */
+    public synchronized boolean runBulkMutation(String mutation, Path jsonlFile, BiConsumer<Integer, JsonNode> resultConsumer) {
+        try {
+            String stagedUploadPath = stageUpload(jsonlFile);
+            if (stagedUploadPath == null) {
+                return false;
+            }
+
+            Map<String, Object> variables = new HashMap<>();
+            variables.put("mutation", mutation);
+            variables.put("stagedUploadPath", stagedUploadPath);
+            GraphQLResponse started = sendGraphQLRequest(GRAPHQL_BULK_OPERATION_RUN_MUTATION, variables, false);
+            JsonNode bulkOperation = started == null ? null : started.getData().path("bulkOperationRunMutation").path("bulkOperation");
+            if (bulkOperation == null || !bulkOperation.isObject() || started.hasErrors() || started.hasUserErrors()) {
+                logger.error("Error starting bulk mutation for file {}: {}", jsonlFile, started);
+                return false;
+            }
+            logger.info("Bulk mutation {} started for file {}", bulkOperation.path("id").asText(), jsonlFile);
+
+            JsonNode bulkInfo = shopifyFileFetcherService.pollBulkOperation("MUTATION");
+            if (bulkInfo == null) {
+                logger.error("Bulk mutation did not complete successfully for file {}", jsonlFile);
+                return false;
+            }
+
+            String resultUrl = bulkInfo.path("url").asText(null);
+            if (resultUrl == null || resultUrl.isEmpty()) {
+                logger.warn("Bulk mutation completed without a result file, objectCount: {}", bulkInfo.path("objectCount").asText());
+                return true;
+            }
+
+            logger.info("Bulk mutation completed, objectCount: {}. Streaming results from: {}", bulkInfo.path("objectCount").asText(), resultUrl);
+            shopifyFileFetcherService.streamBulkFile(resultUrl, line -> {
+                try {
+                    JsonNode result = objectMapper.readTree(line);
+                    resultConsumer.accept(result.path("__lineNumber").asInt(-1), result);
+                } catch (Exception e) {
+                    logger.error("Unable to read bulk mutation result line: {}", line, e);
+                }
+            });
+            return true;
+        } catch (Exception e) {
+            logger.error("Error running bulk mutation for file {}", jsonlFile, e);
+            return false;
+        }
+    }
+
+    private String stageUpload(Path jsonlFile) throws Exception {
+        Map<String, Object> input = new HashMap<>();
+        input.put("resource", "BULK_MUTATION_VARIABLES");
+        input.put("filename", jsonlFile.getFileName().toString());
+        input.put("mimeType", "text/jsonl");
+        input.put("httpMethod", "POST");
+
+        GraphQLResponse response = sendGraphQLRequest(GRAPHQL_STAGED_UPLOADS_CREATE, Map.of("input", List.of(input)), true);
+        JsonNode target = response == null ? null : response.getData().path("stagedUploadsCreate").path("stagedTargets").path(0);
+        if (target == null || target.isMissingNode()) {
+            logger.error("Invalid staged upload target received from Shopify: {}", response);
+            return null;
+        }
+
+        MultiValueMap<String, Object> form = new LinkedMultiValueMap<>();
+        String stagedUploadPath = null;
+        for (JsonNode parameter : target.path("parameters")) {
+            form.add(parameter.path("name").asText(), parameter.path("value").asText());
+            if ("key".equals(parameter.path("name").asText())) {
+                stagedUploadPath = parameter.path("value").asText();
+            }
+        }
+        // the file has to be the last form field
+        form.add("file", new FileSystemResource(jsonlFile));
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        restTemplate.postForEntity(target.path("url").asText(), new HttpEntity<>(form, headers), String.class);
+        logger.info("Uploaded bulk variables file {} to staged path {}", jsonlFile, stagedUploadPath);
+        return stagedUploadPath;
+    }
+
+    private GraphQLResponse sendGraphQLRequest(String query, Map<String, Object> variables, boolean idempotent) {
+        try {
+            return shopifyRetryPolicy.execute("Shopify bulk mutation request", idempotent, API_COST_PER_CALL, attempt -> {
+                shopifyRateLimiter.acquire(API_COST_PER_CALL);
+                try {
+                    GraphQLResponse response = shopifyGraphQLClient.query(query, variables);
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, response);
+                    return response;
+                } catch (ShopifyApiException e) {
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, (GraphQLResponse) null);
+                    throw e;
+                }
+            }, GraphQLResponse::isThrottled);
+        } catch (Exception e) {
+            logger.error("Error sending GraphQL request: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+}
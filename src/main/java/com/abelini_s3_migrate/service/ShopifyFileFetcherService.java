@@ -1,10 +1,10 @@
 package com.abelini_s3_migrate.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.opencsv.CSVReader;
 import com.opencsv.CSVWriter;
 import com.opencsv.exceptions.CsvException;
 import org.apache.tika.Tika;
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -12,10 +12,10 @@ import org.springframework.http.*;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -25,8 +25,8 @@ import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 @Service
 public class ShopifyFileFetcherService {
@@ -36,37 +36,29 @@ public class ShopifyFileFetcherService {
 
     @Value("${shopify_access_token}")
     private String ACCESS_TOKEN;
-    private final String SHOPIFY_GRAPHQL_URL = "/admin/api/2025-01/graphql.json";
     private static final String CSV_FILE_PATH = "src/main/resources/s3file/shopify_filename_export_26-03.csv";
     private static final String CSV_FILE_PATH_BULK = "src/main/resources/s3file/shopify_filename_bulk_export_26-03.csv";
     private static final int API_COST_PER_CALL = 35;
-    private static final int MAX_POINTS = 20000;
-    private static final int RECOVERY_RATE = 1000;
-    private static final int SAFE_THRESHOLD = 2000;
-    private static final AtomicInteger remainingPoints = new AtomicInteger(MAX_POINTS);
     private static final AtomicInteger totalFilesStored = new AtomicInteger(0);
     private static final AtomicInteger batchNumber = new AtomicInteger(1); // AtomicInteger for thread-safe batch number
     private static final Logger LOGGER = Logger.getLogger(ShopifyFileFetcherService.class.getName());
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(ShopifyFileFetcherService.class);
-    private final RestTemplate restTemplate = new RestTemplate();
+    private final RestTemplate restTemplate;
     private final ThreadPoolTaskExecutor taskExecutor;
-    private final ScheduledExecutorService creditRecoveryScheduler = Executors.newScheduledThreadPool(1);
-
-    public ShopifyFileFetcherService(ThreadPoolTaskExecutor taskExecutor) {
+    private final ShopifyRateLimiter shopifyRateLimiter;
+    private final ShopifyGraphQLClient shopifyGraphQLClient;
+    private final ShopifyRetryPolicy shopifyRetryPolicy;
+
+    public ShopifyFileFetcherService(ThreadPoolTaskExecutor taskExecutor, ShopifyRateLimiter shopifyRateLimiter, ShopifyGraphQLClient shopifyGraphQLClient, ShopifyRetryPolicy shopifyRetryPolicy, RestTemplate restTemplate) {
+        this.shopifyRateLimiter = shopifyRateLimiter;
+        this.shopifyGraphQLClient = shopifyGraphQLClient;
+        this.shopifyRetryPolicy = shopifyRetryPolicy;
+        this.restTemplate = restTemplate;
         this.taskExecutor = taskExecutor = new ThreadPoolTaskExecutor();
         taskExecutor.setCorePoolSize(10);
         taskExecutor.setMaxPoolSize(20);
         taskExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
         taskExecutor.initialize();
-
-        creditRecoveryScheduler.scheduleAtFixedRate(() -> {
-            int currentPoints = remainingPoints.get();
-            if (currentPoints < MAX_POINTS) {
-                int newPoints = Math.min(RECOVERY_RATE, MAX_POINTS - currentPoints);
-                remainingPoints.addAndGet(newPoints);
-                logger.debug("Recovered {} API points. Current points: {}", newPoints, remainingPoints.get());
-            }
-        }, 1, 1, TimeUnit.SECONDS);
     }
 
     @Async
@@ -112,36 +104,27 @@ public class ShopifyFileFetcherService {
                     """.formatted(afterClause);
 
             try {
-                JSONObject response = executeGraphQLQuery(query);
-                logger.info("shopify api response ::: {}", response);
+                GraphQLResponse response = executeGraphQLQuery(query, true);
 
-                if (!response.has("data") || response.isNull("data")) {
-                    LOGGER.severe("Shopify response data is null. Retrying...");
-                    continue;
+                // transient failures were already retried, so another pass would fail the same way
+                JsonNode filesObject = response == null ? null : response.getData().path("files");
+                if (filesObject == null || !filesObject.isObject()) {
+                    LOGGER.severe("Shopify response data is null, stopping at cursor: " + cursor + ", response: " + response);
+                    break;
                 }
 
-                JSONObject filesObject = response.getJSONObject("data").getJSONObject("files");
-                JSONArray edges = filesObject.getJSONArray("edges");
-                hasNextPage = filesObject.getJSONObject("pageInfo").getBoolean("hasNextPage");
-                cursor = filesObject.getJSONObject("pageInfo").optString("endCursor", null);
+                hasNextPage = filesObject.path("pageInfo").path("hasNextPage").asBoolean();
+                cursor = filesObject.path("pageInfo").path("endCursor").asText(null);
 
                 // Process each file
-                for (int i = 0; i < edges.length(); i++) {
-                    JSONObject edge = edges.getJSONObject(i);
-                    JSONObject node = edge.optJSONObject("node");
-                    if (node == null) continue;
+                for (JsonNode edge : filesObject.path("edges")) {
+                    JsonNode node = edge.path("node");
+                    if (!node.isObject()) continue;
 
-                    String alt = node.optString("alt", "");
+                    String alt = node.path("alt").asText("");
 
                     // Optionally still check for preview image altText
-                    String imageAltText = "";
-                    JSONObject preview = node.optJSONObject("preview");
-                    if (preview != null) {
-                        JSONObject image = preview.optJSONObject("image");
-                        if (image != null) {
-                            imageAltText = image.optString("altText", "");
-                        }
-                    }
+                    String imageAltText = node.path("preview").path("image").path("altText").asText("");
 
                     if (!alt.isBlank()) {
                         fileData.add(new String[]{alt});
@@ -155,16 +138,14 @@ public class ShopifyFileFetcherService {
 
                 LOGGER.info("Total files stored so far: " + totalFilesStored.get());
 
-                regulateApiRate();
-
                 // Write to CSV every 5 batches
                 if (currentBatchNumber % 5 == 0) {
                     writeToCSV(fileData, false);  // Pass 'false' to not write header again
                     fileData.clear();
                 }
             } catch (Exception e) {
-                LOGGER.severe("Error fetching batch " + currentBatchNumber + ": " + e.getMessage());
-                continue;
+                LOGGER.severe("Error fetching batch " + currentBatchNumber + ", stopping at cursor " + cursor + ": " + e.getMessage());
+                break;
             }
 
             LOGGER.info("Batch " + currentBatchNumber + " completed.");
@@ -175,48 +156,27 @@ public class ShopifyFileFetcherService {
         LOGGER.info("Completed Shopify file fetching process. Total files stored: " + totalFilesStored.get() + " ,ended at: " + ZonedDateTime.now(ZoneId.of("Asia/Kolkata")).format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z")));
     }
 
-    private JSONObject executeGraphQLQuery(String query) {
+    /**
+     * Sends the query with retries, reserving the rate limiter points for every attempt.
+     *
+     * @return the response, null when the call kept failing.
+     */
+    private GraphQLResponse executeGraphQLQuery(String query, boolean idempotent) {
         try {
-            JSONObject requestBody = new JSONObject();
-            requestBody.put("query", query);
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.set("X-Shopify-Access-Token", ACCESS_TOKEN);
-            headers.setContentType(MediaType.APPLICATION_JSON);
-
-            HttpEntity<String> entity = new HttpEntity<>(requestBody.toString(), headers);
-
-            LOGGER.info("Sending Shopify GraphQL request:");
-            LOGGER.info("URL: " + shopifyStore + SHOPIFY_GRAPHQL_URL);
-            LOGGER.info("Headers: " + headers.entrySet().stream()
-                    .map(e -> e.getKey() + ": " + (e.getKey().equals("X-Shopify-Access-Token") ? "****" : e.getValue()))
-                    .collect(Collectors.joining(", ")));
-            LOGGER.info("Request Body: " + requestBody.toString(2));  // Pretty-print JSON
-
-            ResponseEntity<String> responseEntity = restTemplate.exchange(
-                    shopifyStore + SHOPIFY_GRAPHQL_URL,
-                    HttpMethod.POST,
-                    entity,
-                    String.class
-            );
-
-            // Log Response Headers and Body
-            HttpHeaders responseHeaders = responseEntity.getHeaders();
-            String responseBody = responseEntity.getBody();
-            String requestId = responseHeaders.getFirst("x-request-id");
-
-            LOGGER.info("Received Response:");
-            LOGGER.info("Status: " + responseEntity.getStatusCode());
-            LOGGER.info("Headers: " + responseHeaders);
-            LOGGER.info("X-Request-ID: " + requestId);
-            LOGGER.info("Response Body: " + responseBody);
-
-            remainingPoints.addAndGet(-API_COST_PER_CALL);
-            return new JSONObject(responseBody);
-
-        } catch (HttpClientErrorException e) {
+            return shopifyRetryPolicy.execute("Shopify files query", idempotent, API_COST_PER_CALL, attempt -> {
+                regulateApiRate();
+                try {
+                    GraphQLResponse response = shopifyGraphQLClient.query(query, null);
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, response);
+                    return response;
+                } catch (ShopifyApiException e) {
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, (GraphQLResponse) null);
+                    throw e;
+                }
+            }, GraphQLResponse::isThrottled);
+        } catch (ShopifyApiException e) {
             LOGGER.severe("API error: " + e.getMessage());
-            return new JSONObject();
+            return null;
         }
     }
 
@@ -235,23 +195,7 @@ public class ShopifyFileFetcherService {
     }
 
     private void regulateApiRate() {
-        int maxWaitTime = 10; // Maximum wait time in seconds
-        int waitTime = 0;
-
-        while (remainingPoints.get() < SAFE_THRESHOLD) {
-            if (waitTime >= maxWaitTime) {
-                logger.warn("API points still low after waiting {} seconds. Continuing anyway.", maxWaitTime);
-                break;
-            }
-            logger.info("Low API points ({}), pausing until recovery...", remainingPoints.get());
-            try {
-                Thread.sleep(1000); // Wait 1 second for recovery
-                waitTime++;
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            }
-        }
+        shopifyRateLimiter.acquire(API_COST_PER_CALL);
     }
 
     @Async
@@ -276,11 +220,8 @@ public class ShopifyFileFetcherService {
                 }
                 """;
 
-        JSONObject startResponse = executeGraphQLQuery(mutation);
-        if (startResponse.has("errors") || startResponse
-                .optJSONObject("data")
-                .optJSONObject("bulkOperationRunQuery")
-                .optJSONArray("userErrors").length() > 0) {
+        GraphQLResponse startResponse = executeGraphQLQuery(mutation, false);
+        if (startResponse == null || startResponse.hasErrors() || startResponse.hasUserErrors()) {
             LOGGER.severe("Error starting bulk operation: " + startResponse);
             return;
         }
@@ -288,18 +229,18 @@ public class ShopifyFileFetcherService {
         LOGGER.info("Bulk operation initiated. Polling for completion...");
 
         // Step 2: Poll for the bulk operation completion.
-        JSONObject bulkInfo = pollBulkOperation();
+        JsonNode bulkInfo = pollBulkOperation("QUERY");
         if (bulkInfo == null) {
             LOGGER.severe("Bulk operation did not complete successfully.");
             return;
         }
 
-        if (!"COMPLETED".equals(bulkInfo.optString("status"))) {
-            LOGGER.severe("Bulk operation failed with status: " + bulkInfo.optString("status"));
+        if (!"COMPLETED".equals(bulkInfo.path("status").asText())) {
+            LOGGER.severe("Bulk operation failed with status: " + bulkInfo.path("status").asText());
             return;
         }
 
-        String fileUrl = bulkInfo.optString("url");
+        String fileUrl = bulkInfo.path("url").asText(null);
         if (fileUrl == null || fileUrl.isEmpty()) {
             LOGGER.severe("Bulk operation completed, but no file URL was returned.");
             return;
@@ -314,12 +255,13 @@ public class ShopifyFileFetcherService {
     /**
      * Polls the bulk operation status until it's completed.
      *
-     * @return a JSONObject with bulk operation information.
+     * @param type the bulk operation type to poll, QUERY or MUTATION.
+     * @return the currentBulkOperation node of the completed operation, null when it failed.
      */
-    private JSONObject pollBulkOperation() {
+    public JsonNode pollBulkOperation(String type) {
         String query = """
                 {
-                  currentBulkOperation {
+                  currentBulkOperation(type: %s) {
                     id
                     status
                     errorCode
@@ -328,9 +270,10 @@ public class ShopifyFileFetcherService {
                     objectCount
                     fileSize
                     url
+                    partialDataUrl
                   }
                 }
-                """;
+                """.formatted(type);
 
         while (true) {  // Infinite loop, will break when operation completes or fails
             try {
@@ -344,23 +287,23 @@ public class ShopifyFileFetcherService {
             LOGGER.info("Calling Shopify GraphQL API to check bulk operation status...");
 
             // Call the API to check the status of the bulk operation
-            JSONObject response = executeGraphQLQueryBulk(query);
+            GraphQLResponse response = executeGraphQLQueryBulk(query);
 
             LOGGER.info("Received response from Shopify API.");
 
-            JSONObject bulkOperation = response.optJSONObject("data").optJSONObject("currentBulkOperation");
+            JsonNode bulkOperation = response == null ? null : response.getData().path("currentBulkOperation");
 
-            if (bulkOperation == null) {
+            if (bulkOperation == null || !bulkOperation.isObject()) {
                 LOGGER.warning("Bulk operation info not available yet.");
             } else {
-                String status = bulkOperation.optString("status");
+                String status = bulkOperation.path("status").asText();
                 LOGGER.info("Current bulk operation status: " + status);
 
                 if ("COMPLETED".equals(status)) {
                     LOGGER.info("Bulk operation completed successfully.");
                     return bulkOperation;  // Return the completed bulk operation
-                } else if ("FAILED".equals(status)) {
-                    LOGGER.severe("Bulk operation failed with error: " + bulkOperation.optString("errorCode"));
+                } else if ("FAILED".equals(status) || "CANCELED".equals(status) || "EXPIRED".equals(status)) {
+                    LOGGER.severe("Bulk operation failed with error: " + bulkOperation.path("errorCode").asText());
                     LOGGER.severe("Bulk operation failed with error " + bulkOperation);
                     return null;  // Return null in case of failure
                 }
@@ -379,102 +322,90 @@ public class ShopifyFileFetcherService {
         outputFile.getParentFile().mkdirs();  // Create the directories if they don't exist
 
         // Download and process the JSONL file (line-by-line processing)
-        try {
-            restTemplate.execute(fileUrl, HttpMethod.GET, null, response -> {
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.getBody()));
-                     CSVWriter writer = new CSVWriter(new FileWriter(outputFile, true))) {
+        try (CSVWriter writer = new CSVWriter(new FileWriter(outputFile, true))) {
 
-                    // Write the header if the file is new or empty
-                    if (!outputFile.exists() || outputFile.length() == 0) {
-                        writer.writeNext(new String[]{"altText"});
-                    }
+            // Write the header if the file is new or empty
+            if (!outputFile.exists() || outputFile.length() == 0) {
+                writer.writeNext(new String[]{"altText"});
+            }
 
-                    String line;
-                    int processedCount = 0;
-                    while ((line = reader.readLine()) != null) {
-                        // Each line is a JSON object (JSONL format)
-                        JSONObject jsonLine = new JSONObject(line);
+            AtomicInteger processedCount = new AtomicInteger(0);
+            streamBulkFile(fileUrl, line -> {
+                // Each line is a JSON object (JSONL format)
+                JSONObject jsonLine = new JSONObject(line);
 
-                        // Log the first response line to check the structure
-                        if (processedCount == 0) {
-                            LOGGER.info("First response line: " + jsonLine.toString());
-                        }
+                // Log the first response line to check the structure
+                if (processedCount.get() == 0) {
+                    LOGGER.info("First response line: " + jsonLine.toString());
+                }
 
-                        // The root object directly contains 'preview', not 'node'
-                        JSONObject preview = jsonLine.optJSONObject("preview");
-
-                        // Check if 'preview' exists
-                        if (preview != null) {
-                            JSONObject image = preview.optJSONObject("image");
-                            if (image != null) {
-                                String altText = image.optString("altText", "");
-                                writer.writeNext(new String[]{altText});
-                                processedCount++;
-                            } else {
-                                LOGGER.warning("Missing 'image' in preview.");
-                            }
-                        } else {
-                            LOGGER.warning("Missing 'preview' in JSON object.");
-                        }
+                // The root object directly contains 'preview', not 'node'
+                JSONObject preview = jsonLine.optJSONObject("preview");
 
-                        // Optionally log progress every 100,000 records
-                        if (processedCount % 100000 == 0) {
-                            LOGGER.info("Processed " + processedCount + " records so far...");
-                        }
+                // Check if 'preview' exists
+                if (preview != null) {
+                    JSONObject image = preview.optJSONObject("image");
+                    if (image != null) {
+                        String altText = image.optString("altText", "");
+                        writer.writeNext(new String[]{altText});
+                        processedCount.incrementAndGet();
+                    } else {
+                        LOGGER.warning("Missing 'image' in preview.");
                     }
+                } else {
+                    LOGGER.warning("Missing 'preview' in JSON object.");
+                }
 
-                    LOGGER.info("Completed processing bulk file. Total records processed: " + processedCount + " ,at: " + ZonedDateTime.now(ZoneId.of("Asia/Kolkata")).format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z")));
+                // Optionally log progress every 100,000 records
+                if (processedCount.get() % 100000 == 0) {
+                    LOGGER.info("Processed " + processedCount.get() + " records so far...");
                 }
-                return null;
             });
+
+            LOGGER.info("Completed processing bulk file. Total records processed: " + processedCount.get() + " ,at: " + ZonedDateTime.now(ZoneId.of("Asia/Kolkata")).format(DateTimeFormatter.ofPattern("dd MM yyyy hh:mm:ss a z")));
         } catch (Exception e) {
             LOGGER.severe("Error processing bulk file stream: " + e.getMessage());
         }
     }
 
+    /**
+     * Downloads a bulk operation result file and hands every JSONL line to the consumer
+     * without buffering the whole file in memory.
+     *
+     * @param fileUrl      the URL of the bulk file.
+     * @param lineConsumer called once per non-blank line, in file order.
+     */
+    public void streamBulkFile(String fileUrl, Consumer<String> lineConsumer) {
+        restTemplate.execute(fileUrl, HttpMethod.GET, null, response -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.getBody(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        lineConsumer.accept(line);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
 
     /**
      * Executes a GraphQL query/mutation with the necessary headers.
      *
      * @param query the GraphQL query or mutation.
-     * @return the JSONObject response.
+     * @return the response, null when the call kept failing.
      */
-    private JSONObject executeGraphQLQueryBulk(String query) {
+    private GraphQLResponse executeGraphQLQueryBulk(String query) {
         try {
-            JSONObject requestBody = new JSONObject();
-            requestBody.put("query", query);
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.set("X-Shopify-Access-Token", ACCESS_TOKEN);
-            headers.setContentType(MediaType.APPLICATION_JSON);
-
-            HttpEntity<String> entity = new HttpEntity<>(requestBody.toString(), headers);
-
-            LOGGER.info("Sending Shopify GraphQL polling request:");
-            LOGGER.info("URL: " + shopifyStore + SHOPIFY_GRAPHQL_URL);
-            LOGGER.info("Headers: " + headers.entrySet().stream()
-                    .map(e -> e.getKey() + ": " + (e.getKey().equals("X-Shopify-Access-Token") ? "****" : e.getValue()))
-                    .collect(Collectors.joining(", ")));
-            LOGGER.info("Request Body: " + requestBody.toString(2));  // Pretty-print JSON
-
-            ResponseEntity<String> responseEntity = restTemplate.postForEntity(shopifyStore + SHOPIFY_GRAPHQL_URL, entity, String.class);
-
-            // Log Response Headers and Body
-            HttpHeaders responseHeaders = responseEntity.getHeaders();
-            String responseBody = responseEntity.getBody();
-            String requestId = responseHeaders.getFirst("x-request-id");
-
-            LOGGER.info("Received Response:");
-            LOGGER.info("Status: " + responseEntity.getStatusCode());
-            LOGGER.info("Headers: " + responseHeaders);
-            LOGGER.info("X-Request-ID: " + requestId);
-            LOGGER.info("Response Body: " + responseBody);
-
-            return new JSONObject(responseBody);
-
-        } catch (HttpClientErrorException e) {
+            return shopifyRetryPolicy.execute("Shopify bulk operation poll", true, 0, attempt -> {
+                GraphQLResponse response = shopifyGraphQLClient.query(query, null);
+                shopifyRateLimiter.onResponse(0, response);
+                return response;
+            }, GraphQLResponse::isThrottled);
+        } catch (ShopifyApiException e) {
             LOGGER.severe("API error: " + e.getMessage());
-            return new JSONObject();
+            return null;
         }
     }
 
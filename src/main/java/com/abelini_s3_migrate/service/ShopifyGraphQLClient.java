@@ -0,0 +1,191 @@
+package com.abelini_s3_migrate.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sends GraphQL requests to the Shopify Admin API over the shared {@link HttpClient}, so every
+ * service reuses the same kept-alive connections instead of opening a new one per call. Responses
+ * are requested gzip compressed and can be decoded into a {@link GraphQLResponse} while they stream
+ * in. Non 2xx responses and transport failures are thrown as {@link ShopifyApiException}.
+ */
+@Service
+public class ShopifyGraphQLClient {
+    private static final Logger logger = LoggerFactory.getLogger(ShopifyGraphQLClient.class);
+
+    private final HttpClient httpClient;
+    private final ShopifyWireLogger wireLogger;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .disable(SerializationFeature.INDENT_OUTPUT)
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    private final String shopifyStore;
+    private final String accessToken;
+    private final String apiVersion;
+    private final Duration readTimeout;
+
+    public ShopifyGraphQLClient(HttpClient httpClient,
+                                ShopifyWireLogger wireLogger,
+                                @Value("${shopify_store}") String shopifyStore,
+                                @Value("${shopify_access_token}") String accessToken,
+                                @Value("${shopify_api_version:2025-01}") String apiVersion,
+                                @Value("${http_read_timeout_ms:60000}") long readTimeoutMillis) {
+        this.httpClient = httpClient;
+        this.wireLogger = wireLogger;
+        this.shopifyStore = shopifyStore;
+        this.accessToken = accessToken.trim();
+        this.apiVersion = apiVersion;
+        this.readTimeout = Duration.ofMillis(readTimeoutMillis);
+    }
+
+    public String execute(String query, Object variables) {
+        return execute(null, query, variables);
+    }
+
+    /**
+     * Writes the query and the variables in one pass straight into the request body, the variables
+     * are serialized from the caller's objects without an intermediate String or Map.
+     *
+     * @param apiVersion the Admin API version, null for shopify_api_version, e.g. 2024-04 for queries
+     *                   that still use removed fields.
+     * @param variables  any object Jackson can serialize, null when the query takes none.
+     * @return the response body.
+     */
+    public String execute(String apiVersion, String query, Object variables) {
+        RequestBody body = writeRequest(query, variables);
+        return send(apiVersion, body.publisher(), body::toUtf8, ShopifyGraphQLClient::readString);
+    }
+
+    public GraphQLResponse query(String query, Object variables) {
+        return query(null, query, variables);
+    }
+
+    /**
+     * Like {@link #execute(String, String, Object)}, but decodes the response while it streams in
+     * instead of returning the body.
+     */
+    public GraphQLResponse query(String apiVersion, String query, Object variables) {
+        RequestBody requestBody = writeRequest(query, variables);
+        return send(apiVersion, requestBody.publisher(), requestBody::toUtf8, body -> {
+            try (JsonParser parser = objectMapper.createParser(body)) {
+                return GraphQLResponse.read(parser);
+            }
+        });
+    }
+
+    /**
+     * Posts an already serialized GraphQL request body.
+     *
+     * @param apiVersion the Admin API version, null for shopify_api_version.
+     * @return the response body.
+     */
+    public String post(String apiVersion, String requestJson) {
+        return send(apiVersion, HttpRequest.BodyPublishers.ofString(requestJson, StandardCharsets.UTF_8), () -> requestJson, ShopifyGraphQLClient::readString);
+    }
+
+    private RequestBody writeRequest(String query, Object variables) {
+        RequestBody body = new RequestBody(query.length() + 512);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(body)) {
+            generator.writeStartObject();
+            generator.writeStringField("query", query);
+            if (variables != null) {
+                generator.writeFieldName("variables");
+                objectMapper.writeValue(generator, variables);
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new ShopifyApiException("Unable to serialize GraphQL request", e);
+        }
+        return body;
+    }
+
+    private interface BodyReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+
+    private <T> T send(String apiVersion, HttpRequest.BodyPublisher bodyPublisher, Supplier<String> requestLog, BodyReader<T> reader) {
+        String endpoint = endpoint(apiVersion);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(endpoint))
+                .timeout(readTimeout)
+                .header("X-Shopify-Access-Token", accessToken)
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                .header("Accept-Encoding", "gzip")
+                .POST(bodyPublisher)
+                .build();
+
+        ShopifyWireLogger.Exchange exchange = wireLogger.begin(endpoint, requestLog);
+        try {
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            logger.debug("Shopify responded with HTTP {}, X-Request-Id: {}", response.statusCode(),
+                    response.headers().firstValue("X-Request-Id").orElse(null));
+            try (InputStream body = decodedBody(response)) {
+                if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                    String errorBody = readString(body);
+                    exchange.failed(response.statusCode(), errorBody);
+                    throw new ShopifyApiException(response.statusCode(), errorBody, response.headers().firstValue("Retry-After").orElse(null));
+                }
+                T result = reader.read(body);
+                exchange.completed(response.statusCode(), result);
+                return result;
+            }
+        } catch (IOException e) {
+            exchange.failed(-1, e);
+            throw new ShopifyApiException("Shopify request failed: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ShopifyApiException("Shopify request interrupted", e);
+        }
+    }
+
+    public String getApiVersion() {
+        return apiVersion;
+    }
+
+    private String endpoint(String version) {
+        return shopifyStore + "/admin/api/" + (version == null ? apiVersion : version) + "/graphql.json";
+    }
+
+    /**
+     * Growable byte buffer the generator writes into, handed to the HTTP client without a copy.
+     */
+    private static class RequestBody extends ByteArrayOutputStream {
+        private RequestBody(int initialSize) {
+            super(initialSize);
+        }
+
+        private HttpRequest.BodyPublisher publisher() {
+            return HttpRequest.BodyPublishers.ofByteArray(buf, 0, count);
+        }
+
+        private String toUtf8() {
+            return toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static InputStream decodedBody(HttpResponse<InputStream> response) throws IOException {
+        boolean gzip = response.headers().firstValue("Content-Encoding").map("gzip"::equalsIgnoreCase).orElse(false);
+        return gzip ? new GZIPInputStream(response.body()) : response.body();
+    }
+
+    private static String readString(InputStream body) throws IOException {
+        return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,187 @@
+package com.abelini_s3_migrate.service;
+
+import com.abelini_s3_migrate.extra.VariantImportJob;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the Shopify id mapping rows written by the importers and inserts them with JDBC batches,
+ * every db_batch_size rows or db_flush_interval_ms, whichever comes first. The inserts go through
+ * JdbcTemplate so the IDENTITY ids of the mapping entities do not turn each row into its own
+ * Hibernate insert; with rewriteBatchedStatements the driver sends one multi-row insert per batch.
+ */
+@Service
+public class ShopifyIdMappingWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ShopifyIdMappingWriter.class);
+
+    private static final String INSERT_PRODUCT_IDS = "INSERT INTO dd_product_to_shopify (product_id, shopify_product_id) VALUES (?, ?) "
+            + "ON DUPLICATE KEY UPDATE shopify_product_id = VALUES(shopify_product_id)";
+    private static final String INSERT_STOCK_VARIANT = "INSERT INTO dd_product_to_shopify_stock (product_id, tag_no, shopify_product_id) VALUES (?, ?, ?)";
+    private static final String INSERT_LAKH_VARIANT = "INSERT INTO dd_search_product_shopify (product_id, variant_code, shopify_product_id) VALUES (?, ?, ?)";
+    private static final String INSERT_CARAT_VARIANT = "INSERT INTO dd_carat_product_shopify (product_id, variant_code, shopify_product_id) VALUES (?, ?, ?)";
+    private static final String INSERT_BESTSELLER_VARIANT = "INSERT INTO dd_bestseller_product_shopify (product_id, variant_code, shopify_product_id) VALUES (?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ProductReferenceCache productReferenceCache;
+    private final int batchSize;
+    private final Map<String, ConcurrentLinkedQueue<Object[]>> pending = new ConcurrentHashMap<>();
+    // product ids of the rows that failed to insert, by insert statement
+    private final Map<String, Set<String>> unsavedProductIds = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shopify-id-mapping-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ShopifyIdMappingWriter(JdbcTemplate jdbcTemplate, ProductReferenceCache productReferenceCache,
+                                  @Value("${db_batch_size:500}") int batchSize,
+                                  @Value("${db_flush_interval_ms:1000}") long flushIntervalMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.productReferenceCache = productReferenceCache;
+        this.batchSize = Math.max(1, batchSize);
+        long interval = Math.max(10, flushIntervalMillis);
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void saveProductIds(String productId, String shopifyProductId) {
+        productReferenceCache.put(productId, shopifyProductId);
+        add(INSERT_PRODUCT_IDS, productId, shopifyProductId);
+    }
+
+    public void saveStockVariant(String productId, String tagNo, String shopifyProductId) {
+        add(INSERT_STOCK_VARIANT, productId, tagNo, shopifyProductId);
+    }
+
+    public void saveImportedVariant(VariantImportJob job, String productId, String variantCode, String shopifyProductId) {
+        add(importedVariantSql(job), productId, variantCode, shopifyProductId);
+    }
+
+    /**
+     * Writes every queued row. Jobs call this when they end and before anything that reads the
+     * mapping tables back.
+     *
+     * @return false when a row could not be stored, even on its own.
+     */
+    public synchronized boolean flush() {
+        boolean stored = true;
+        for (Map.Entry<String, ConcurrentLinkedQueue<Object[]>> entry : pending.entrySet()) {
+            List<Object[]> rows = new ArrayList<>();
+            Object[] row;
+            while ((row = entry.getValue().poll()) != null) {
+                rows.add(row);
+                if (rows.size() == batchSize) {
+                    stored &= insert(entry.getKey(), rows);
+                    rows = new ArrayList<>();
+                }
+            }
+            if (!rows.isEmpty()) {
+                stored &= insert(entry.getKey(), rows);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Writes only the queued variant rows of one product, leaving the other rows to the regular
+     * batches.
+     *
+     * @return true when every variant row of the product was stored, including rows written
+     * earlier by other flushes.
+     */
+    public synchronized boolean flushVariants(VariantImportJob job, String productId) {
+        String sql = importedVariantSql(job);
+        ConcurrentLinkedQueue<Object[]> queue = pending.get(sql);
+        if (queue != null) {
+            List<Object[]> rows = new ArrayList<>();
+            for (Object[] row : queue) {
+                if (productId.equals(row[0]) && queue.remove(row)) {
+                    rows.add(row);
+                }
+            }
+            for (int i = 0; i < rows.size(); i += batchSize) {
+                insert(sql, rows.subList(i, Math.min(i + batchSize, rows.size())));
+            }
+        }
+        return !hasUnsavedVariants(job, productId);
+    }
+
+    /**
+     * @return true when a variant row of the product failed to insert since startup, whichever
+     * flush wrote it.
+     */
+    public boolean hasUnsavedVariants(VariantImportJob job, String productId) {
+        Set<String> productIds = unsavedProductIds.get(importedVariantSql(job));
+        return productIds != null && productIds.contains(productId);
+    }
+
+    @PreDestroy
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+
+    private void add(String sql, Object... row) {
+        pending.computeIfAbsent(sql, key -> new ConcurrentLinkedQueue<>()).add(row);
+        if (queued.incrementAndGet() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException e) {
+                flushScheduled.set(false);
+                flush();
+            }
+        }
+    }
+
+    private static String importedVariantSql(VariantImportJob job) {
+        return switch (job) {
+            case LAKH -> INSERT_LAKH_VARIANT;
+            case CARAT -> INSERT_CARAT_VARIANT;
+            case BESTSELLER -> INSERT_BESTSELLER_VARIANT;
+        };
+    }
+
+    /**
+     * @return false when a row could not be stored.
+     */
+    private boolean insert(String sql, List<Object[]> rows) {
+        queued.addAndGet(-rows.size());
+        try {
+            jdbcTemplate.batchUpdate(sql, rows);
+            logger.debug("Inserted {} Shopify id mapping rows", rows.size());
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to insert {} Shopify id mapping rows, retrying them one by one: {}", rows.size(), e.getMessage(), e);
+        }
+
+        // one bad row fails the whole batch, so the others are stored on their own
+        boolean stored = true;
+        for (Object[] row : rows) {
+            try {
+                jdbcTemplate.update(sql, row);
+            } catch (Exception e) {
+                stored = false;
+                unsavedProductIds.computeIfAbsent(sql, key -> ConcurrentHashMap.newKeySet()).add(String.valueOf(row[0]));
+                logger.error("Unsaved Shopify id mapping row {}: {}, {}", sql.substring(0, sql.indexOf('(')).trim(), Arrays.toString(row), e.getMessage());
+            }
+        }
+        return stored;
+    }
+}
@@ -0,0 +1,200 @@
+package com.abelini_s3_migrate.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared token bucket for the Shopify GraphQL cost limit. Every caller reserves the expected query
+ * cost before sending and hands the response back, the bucket is then corrected from
+ * extensions.cost.throttleStatus so all services see the same budget Shopify sees. Points reserved
+ * by requests that are still in flight are kept out of the corrected value.
+ */
+@Service
+public class ShopifyRateLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(ShopifyRateLimiter.class);
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition restored = lock.newCondition();
+
+    private double maximumAvailable;
+    private double restoreRate;
+    private double currentlyAvailable;
+    private double inFlight;
+    private long lastRefillNanos = System.nanoTime();
+
+    public ShopifyRateLimiter(@Value("${shopify_max_points:20000}") int maximumAvailable,
+                              @Value("${shopify_restore_rate:1000}") int restoreRate) {
+        this.maximumAvailable = maximumAvailable;
+        this.restoreRate = restoreRate;
+        this.currentlyAvailable = maximumAvailable;
+    }
+
+    /**
+     * Blocks until the bucket holds the requested cost and reserves it. Waiters sleep until the
+     * points they are missing have been restored instead of polling.
+     *
+     * @throws CancellationException when the thread is interrupted, nothing is reserved and the call must not be sent.
+     */
+    public void acquire(int cost) {
+        take(cost, true);
+    }
+
+    /**
+     * Blocks until the bucket holds the requested cost and spends it, for calls sent outside this
+     * process whose responses never come back through {@link #onResponse}.
+     *
+     * @throws CancellationException when the thread is interrupted, nothing is spent then.
+     */
+    public void consume(int cost) {
+        take(cost, false);
+    }
+
+    private void take(int cost, boolean inFlightUntilResponse) {
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            throw interrupted(cost);
+        }
+        try {
+            double needed = Math.min(cost, maximumAvailable);
+            refill();
+            while (currentlyAvailable < needed) {
+                long waitNanos = (long) Math.ceil((needed - currentlyAvailable) / restoreRate * TimeUnit.SECONDS.toNanos(1));
+                logger.debug("Waiting {} ms for {} API points, available: {}", TimeUnit.NANOSECONDS.toMillis(waitNanos), cost, (int) currentlyAvailable);
+                restored.awaitNanos(waitNanos);
+                refill();
+            }
+            currentlyAvailable -= cost;
+            if (inFlightUntilResponse) {
+                inFlight += cost;
+            }
+        } catch (InterruptedException e) {
+            throw interrupted(cost);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static CancellationException interrupted(int cost) {
+        Thread.currentThread().interrupt();
+        return new CancellationException("Interrupted while waiting for " + cost + " API points");
+    }
+
+    /**
+     * Corrects the bucket from the cost extension of a GraphQL response body.
+     *
+     * @param reservedCost the cost passed to {@link #acquire(int)} for this request, 0 if none was reserved.
+     * @param responseBody the raw response, may be null when the request failed.
+     */
+    public void onResponse(int reservedCost, String responseBody) {
+        JsonNode response = null;
+        if (responseBody != null && !responseBody.isBlank()) {
+            try {
+                response = objectMapper.readTree(responseBody);
+            } catch (Exception e) {
+                logger.debug("Unable to read cost extension from response: {}", e.getMessage());
+            }
+        }
+        onResponse(reservedCost, response);
+    }
+
+    public void onResponse(int reservedCost, JsonNode response) {
+        JsonNode cost = response == null ? null : response.path("extensions").path("cost");
+        if (cost == null || cost.isMissingNode()) {
+            onResponse(reservedCost, (GraphQLResponse.Cost) null);
+            return;
+        }
+
+        JsonNode throttle = cost.path("throttleStatus");
+        GraphQLResponse.ThrottleStatus throttleStatus = throttle.isMissingNode() ? null : new GraphQLResponse.ThrottleStatus(
+                throttle.path("maximumAvailable").asDouble(maximumAvailable),
+                throttle.path("currentlyAvailable").asDouble(),
+                throttle.path("restoreRate").asDouble(restoreRate));
+        onResponse(reservedCost, new GraphQLResponse.Cost(cost.path("requestedQueryCost").asDouble(), cost.path("actualQueryCost").asDouble(), throttleStatus));
+    }
+
+    public void onResponse(int reservedCost, GraphQLResponse response) {
+        onResponse(reservedCost, response == null ? null : response.getCost());
+    }
+
+    /**
+     * @param cost the decoded cost extension, null when the request failed or had none.
+     */
+    public void onResponse(int reservedCost, GraphQLResponse.Cost cost) {
+        lock.lock();
+        try {
+            inFlight = Math.max(0, inFlight - reservedCost);
+            if (cost == null) {
+                return;
+            }
+
+            GraphQLResponse.ThrottleStatus throttleStatus = cost.throttleStatus();
+            if (throttleStatus != null) {
+                maximumAvailable = throttleStatus.maximumAvailable() > 0 ? throttleStatus.maximumAvailable() : maximumAvailable;
+                restoreRate = throttleStatus.restoreRate() > 0 ? throttleStatus.restoreRate() : restoreRate;
+                currentlyAvailable = Math.min(maximumAvailable, throttleStatus.currentlyAvailable() - inFlight);
+                lastRefillNanos = System.nanoTime();
+            } else {
+                // refund what was reserved but not spent
+                double unused = cost.requestedQueryCost() - cost.actualQueryCost();
+                if (unused > 0) {
+                    refill();
+                    currentlyAvailable = Math.min(maximumAvailable, currentlyAvailable + unused);
+                }
+            }
+            restored.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCurrentlyAvailable() {
+        lock.lock();
+        try {
+            refill();
+            return (int) currentlyAvailable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaximumAvailable() {
+        lock.lock();
+        try {
+            return (int) maximumAvailable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estimates how long until the bucket holds the given cost again at the current restore rate.
+     */
+    public long millisUntilAvailable(int cost) {
+        lock.lock();
+        try {
+            refill();
+            double missing = Math.min(cost, maximumAvailable) - currentlyAvailable;
+            return missing <= 0 ? 0 : (long) Math.ceil(missing / restoreRate * 1000);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double restoredPoints = (now - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1) * restoreRate;
+        currentlyAvailable = Math.min(maximumAvailable, currentlyAvailable + restoredPoints);
+        lastRefillNanos = now;
+    }
+}
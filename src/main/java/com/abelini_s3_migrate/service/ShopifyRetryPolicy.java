@@ -0,0 +1,134 @@
+package com.abelini_s3_migrate.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Retries Shopify calls that failed for a transient reason. THROTTLED responses and HTTP 429 are
+ * retried for every call, Shopify did not run the request. 5xx responses and timeouts are only
+ * retried for idempotent calls, since the request may have been applied. The delay is an
+ * exponential backoff with full jitter, never longer than the rate limiter needs to restore the
+ * call's cost when the call was throttled, and never shorter than a Retry-After header.
+ */
+@Service
+public class ShopifyRetryPolicy {
+    private static final Logger logger = LoggerFactory.getLogger(ShopifyRetryPolicy.class);
+
+    public interface Attempt<T> {
+        /**
+         * @param attempt 0 for the first call, every attempt reserves its own rate limiter points.
+         */
+        T call(int attempt);
+    }
+
+    private final ShopifyRateLimiter shopifyRateLimiter;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public ShopifyRetryPolicy(ShopifyRateLimiter shopifyRateLimiter,
+                              @Value("${shopify_retry_max_attempts:4}") int maxAttempts,
+                              @Value("${shopify_retry_base_delay_ms:500}") long baseDelayMillis,
+                              @Value("${shopify_retry_max_delay_ms:30000}") long maxDelayMillis) {
+        this.shopifyRateLimiter = shopifyRateLimiter;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Runs the call until it succeeds, fails for a reason that is not retried or runs out of attempts.
+     *
+     * @param operation  name used in the logs.
+     * @param idempotent whether the call may be repeated after a 5xx or a timeout.
+     * @param cost       the points the call reserves, used to estimate how long a throttled call waits.
+     * @param throttled  tells whether a returned response was rejected as THROTTLED.
+     * @return the last response, throttled or not, once the attempts are used up.
+     * @throws ShopifyApiException from the last attempt.
+     * @throws CancellationException when the rate limiter wait was interrupted, it is never retried.
+     */
+    public <T> T execute(String operation, boolean idempotent, int cost, Attempt<T> call, Predicate<T> throttled) {
+        for (int attempt = 0; ; attempt++) {
+            T response;
+            try {
+                response = call.call(attempt);
+            } catch (ShopifyApiException e) {
+                if (attempt + 1 >= maxAttempts || !isRetryable(e, idempotent)) {
+                    throw e;
+                }
+                long delay = backoff(attempt);
+                if (e.getStatusCode() == 429) {
+                    delay = Math.min(delay, restoreEstimate(cost));
+                }
+                delay = Math.max(delay, retryAfterMillis(e.getRetryAfter()));
+                logger.warn("{} failed with HTTP {}, retrying in {} ms (attempt {}/{})", operation, e.getStatusCode(), delay, attempt + 2, maxAttempts);
+                if (!sleep(delay)) {
+                    throw e;
+                }
+                continue;
+            }
+
+            if (response == null || !throttled.test(response) || attempt + 1 >= maxAttempts) {
+                return response;
+            }
+            long delay = Math.min(backoff(attempt), restoreEstimate(cost));
+            logger.warn("{} was throttled, retrying in {} ms (attempt {}/{})", operation, delay, attempt + 2, maxAttempts);
+            if (!sleep(delay)) {
+                return response;
+            }
+        }
+    }
+
+    private boolean isRetryable(ShopifyApiException e, boolean idempotent) {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        int status = e.getStatusCode();
+        return status == 429 || (idempotent && (status == -1 || status >= 500));
+    }
+
+    private long backoff(int attempt) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    // waiting longer than the bucket needs to hold the cost again gains nothing
+    private long restoreEstimate(int cost) {
+        return Math.max(baseDelayMillis, shopifyRateLimiter.millisUntilAvailable(cost));
+    }
+
+    private static long retryAfterMillis(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return 0;
+        }
+        try {
+            return (long) (Double.parseDouble(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(at.getZone()), at).toMillis());
+            } catch (Exception ignored) {
+                return 0;
+            }
+        }
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -34,7 +34,7 @@ import java.util.stream.Collectors;
 @Service
 public class ShopifyService {
     private static final Logger logger = LoggerFactory.getLogger(ShopifyService.class);
-    private final RestTemplate restTemplate = new RestTemplate();
+    private final RestTemplate restTemplate;
     private final Tika tika = new Tika();
     private final ObjectMapper objectMapper;
 
@@ -44,7 +44,6 @@ public class ShopifyService {
     @Value("${shopify_access_token}")
     private String accessToken;
 
-    private final String SHOPIFY_GRAPHQL_URL = shopifyStore + "/admin/api/2025-01/graphql.json";
     private final String SHOPIFY_ACCESS_TOKEN = accessToken;
 
     private List<String> readCSV(String filePath) throws IOException, CsvException {
@@ -60,23 +59,17 @@ public class ShopifyService {
     private static final Semaphore semaphore = new Semaphore(MAX_CONCURRENT_BATCHES);
     private final AtomicInteger totalProcessed = new AtomicInteger(0);
     private static final int API_COST_PER_CALL = 40;
-    private static final int MAX_POINTS = 20000;
-    private static final int RECOVERY_RATE = 1000;
-    private static final int SAFE_THRESHOLD = 2000;
-    private static final AtomicInteger remainingPoints = new AtomicInteger(MAX_POINTS);
+    private final ShopifyRateLimiter shopifyRateLimiter;
 
-    private final ScheduledExecutorService creditRecoveryScheduler = Executors.newScheduledThreadPool(1);
+    private final ShopifyGraphQLClient shopifyGraphQLClient;
+    private final ShopifyRetryPolicy shopifyRetryPolicy;
 
-    public ShopifyService(ObjectMapper objectMapper) {
+    public ShopifyService(ObjectMapper objectMapper, ShopifyRateLimiter shopifyRateLimiter, ShopifyGraphQLClient shopifyGraphQLClient, ShopifyRetryPolicy shopifyRetryPolicy, RestTemplate restTemplate) {
         this.objectMapper = objectMapper;
-        creditRecoveryScheduler.scheduleAtFixedRate(() -> {
-            int currentPoints = remainingPoints.get();
-            if (currentPoints < MAX_POINTS) {
-                int newPoints = Math.min(RECOVERY_RATE, MAX_POINTS - currentPoints);
-                remainingPoints.addAndGet(newPoints);
-                logger.debug("Recovered {} API points. Current points: {}", newPoints, remainingPoints.get());
-            }
-        }, 1, 1, TimeUnit.SECONDS);
+        this.shopifyRateLimiter = shopifyRateLimiter;
+        this.shopifyGraphQLClient = shopifyGraphQLClient;
+        this.shopifyRetryPolicy = shopifyRetryPolicy;
+        this.restTemplate = restTemplate;
     }
 
     @Async
@@ -100,9 +93,7 @@ public class ShopifyService {
             futures.add(executorService.submit(() -> {
                 try {
                     semaphore.acquire();
-                    regulateApiRate();
                     logger.info("Starting batch {} of {} with {} images...", batchNumber, totalBatches, batch.size());
-                    remainingPoints.addAndGet(-API_COST_PER_CALL);
                     int count = registerBatchInShopify(batch);
 
                     int processed = totalProcessed.addAndGet(count);
@@ -163,23 +154,7 @@ public class ShopifyService {
     }
 
     private void regulateApiRate() {
-        int maxWaitTime = 10; // Maximum wait time in seconds
-        int waitTime = 0;
-
-        while (remainingPoints.get() < SAFE_THRESHOLD) {
-            if (waitTime >= maxWaitTime) {
-                logger.warn("API points still low after waiting {} seconds. Continuing anyway.", maxWaitTime);
-                break;
-            }
-            logger.info("Low API points ({}), pausing until recovery...", remainingPoints.get());
-            try {
-                Thread.sleep(1000); // Wait 1 second for recovery
-                waitTime++;
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            }
-        }
+        shopifyRateLimiter.acquire(API_COST_PER_CALL);
     }
 
     public int registerBatchInShopify(List<String> fileUrls) {
@@ -220,18 +195,13 @@ public class ShopifyService {
                 }
                 """;
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            Map<String, Object> variablesMap = new HashMap<>();
-            variablesMap.put("files", filesList);
-            String variables = objectMapper.writeValueAsString(variablesMap);
+            Map<String, Object> variables = new HashMap<>();
+            variables.put("files", filesList);
             logger.info("Uploading batch of {} files to Shopify", filesList.size());
-            String response = sendGraphQLRequest(query, variables);
-            logger.info("Shopify Response: {}", response);
-            if (response.contains("\"userErrors\":[")) {
-                if (!response.contains("\"userErrors\":[]")) {
-                    logger.error("Error uploading batch: {}", response);
-                    return 0;
-                }
+            GraphQLResponse response = sendGraphQLRequest(query, variables);
+            if (response == null || response.hasErrors() || response.hasUserErrors()) {
+                logger.error("Error uploading batch: {}", response);
+                return 0;
             }
             logger.info("Batch uploaded successfully.");
             return filesList.size();
@@ -251,22 +221,20 @@ public class ShopifyService {
         return !SUPPORTED_IMAGE_MIME_TYPES.contains(mimeType);
     }
 
-    private String sendGraphQLRequest(String query, String variables) {
+    // fileCreate is not idempotent, so only throttled calls are retried
+    private GraphQLResponse sendGraphQLRequest(String query, Map<String, Object> variables) {
         try {
-            HttpHeaders headers = new HttpHeaders();
-            headers.set("X-Shopify-Access-Token", accessToken.trim());
-            headers.set("Content-Type", "application/json");
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("query", query);
-            requestBody.put("variables", new ObjectMapper().readValue(variables, Map.class));
-            String requestJson = new ObjectMapper().writeValueAsString(requestBody);
-            HttpEntity<String> request = new HttpEntity<>(requestJson, headers);
-            ResponseEntity<String> response = restTemplate.postForEntity(
-                    shopifyStore + "/admin/api/2025-01/graphql.json",
-                    request,
-                    String.class
-            );
-            return response.getBody();
+            return shopifyRetryPolicy.execute("Shopify fileCreate", false, API_COST_PER_CALL, attempt -> {
+                regulateApiRate();
+                try {
+                    GraphQLResponse response = shopifyGraphQLClient.query(query, variables);
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, response);
+                    return response;
+                } catch (ShopifyApiException e) {
+                    shopifyRateLimiter.onResponse(API_COST_PER_CALL, (GraphQLResponse) null);
+                    throw e;
+                }
+            }, GraphQLResponse::isThrottled);
         } catch (Exception e) {
             logger.error("Error sending GraphQL request: {}", e.getMessage(), e);
             return null;
@@ -387,20 +355,11 @@ public class ShopifyService {
                 "\"variables\": { \"input\": [{ \"filename\": \"" + fileName + "\", " +
                 "\"mimeType\": \"" + mimeType + "\", " + "\"resource\": \"" + contentType + "\" }] } }";
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("X-Shopify-Access-Token", accessToken);
-        headers.set("Content-Type", "application/json");
-
-        HttpEntity<String> entity = new HttpEntity<>(query, headers);
-
-        String shopifyUrl = shopifyStore + "/admin/api/2025-01/graphql.json"; // Corrected API version
-
-        ResponseEntity<String> response = restTemplate.exchange(shopifyUrl, HttpMethod.POST, entity, String.class);
+        String response = shopifyGraphQLClient.post(null, query);
 
         try {
-            logger.info("Shopify Response: " + response.getBody());
 
-            JsonNode root = objectMapper.readTree(response.getBody());
+            JsonNode root = objectMapper.readTree(response);
             JsonNode urlNode = root.path("data").path("stagedUploadsCreate").path("stagedTargets").get(0).path("url");
 
             if (urlNode.isMissingNode() || urlNode.asText().isEmpty()) {
@@ -419,7 +378,6 @@ public class ShopifyService {
 
     private void uploadFileToPresignedUrl(String uploadUrl, byte[] fileBytes, String mimeType) {
         logger.info("calling presigned url");
-        RestTemplate restTemplate = new RestTemplate();
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.parseMediaType(mimeType));
 
@@ -433,16 +391,10 @@ public class ShopifyService {
                 "{ fileCreate(files: $files) { files { id url alt } userErrors { field message } } } }\", " +
                 "\"variables\": { \"files\": [ { \"originalSource\": \\\"" + fileUrl + "\\\", \"contentType\": " + contentType + ", \"alt\": \\\"" + customFileName + "\\\" } ] } }";
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("X-Shopify-Access-Token", accessToken);
-        headers.set("Content-Type", "application/json");
-
-        String shopifyUrl = shopifyStore + "/admin/api/2025-01/graphql.json";
-        HttpEntity<String> entity = new HttpEntity<>(query, headers);
-        ResponseEntity<String> response = restTemplate.exchange(shopifyUrl, HttpMethod.POST, entity, String.class);
+        String response = shopifyGraphQLClient.post(null, query);
 
         try {
-            JsonNode root = objectMapper.readTree(response.getBody());
+            JsonNode root = objectMapper.readTree(response);
             return root.path("data").path("fileCreate").path("files").get(0).path("url").asText();
         } catch (Exception e) {
             e.printStackTrace();
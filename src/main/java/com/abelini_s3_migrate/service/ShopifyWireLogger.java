@@ -0,0 +1,98 @@
+package com.abelini_s3_migrate.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Logs Shopify request and response bodies on the "shopify.wire" logger. Failed calls are always
+ * logged at WARN; successful ones only when the logger is at DEBUG, and then only one call in
+ * wire_log_sample_rate (every call at TRACE). Bodies are cut at wire_log_max_body_chars and are
+ * never turned into strings unless they are actually logged.
+ */
+@Service
+public class ShopifyWireLogger {
+    private static final Logger wire = LoggerFactory.getLogger("shopify.wire");
+
+    private final int sampleRate;
+    private final int maxBodyChars;
+    private final AtomicLong calls = new AtomicLong(0);
+
+    public ShopifyWireLogger(@Value("${wire_log_sample_rate:100}") int sampleRate,
+                             @Value("${wire_log_max_body_chars:2000}") int maxBodyChars) {
+        this.sampleRate = Math.max(1, sampleRate);
+        this.maxBodyChars = Math.max(0, maxBodyChars);
+    }
+
+    /**
+     * Starts logging one call.
+     *
+     * @param requestBody produces the request body, only called when it is logged.
+     */
+    public Exchange begin(String endpoint, Supplier<String> requestBody) {
+        boolean sampled = wire.isTraceEnabled()
+                || (wire.isDebugEnabled() && calls.getAndIncrement() % sampleRate == 0);
+        Exchange exchange = new Exchange(endpoint, requestBody, sampled);
+        if (sampled) {
+            wire.debug("--> POST {} {}", endpoint, truncate(requestBody.get()));
+        }
+        return exchange;
+    }
+
+    public class Exchange {
+        private final String endpoint;
+        private final Supplier<String> requestBody;
+        private final boolean sampled;
+        private final long startNanos = System.nanoTime();
+
+        private Exchange(String endpoint, Supplier<String> requestBody, boolean sampled) {
+            this.endpoint = endpoint;
+            this.requestBody = requestBody;
+            this.sampled = sampled;
+        }
+
+        /**
+         * Logs the response of a call that reached Shopify. A decoded response carrying errors or
+         * userErrors counts as failed.
+         *
+         * @param response the body or the decoded response, its toString is only called when logged.
+         */
+        public void completed(int status, Object response) {
+            if (response instanceof GraphQLResponse graphQLResponse
+                    && (graphQLResponse.hasErrors() || graphQLResponse.hasUserErrors())) {
+                failed(status, response);
+            } else if (sampled) {
+                wire.debug("<-- {} {} ({} ms) {}", status, endpoint, elapsedMillis(), truncate(String.valueOf(response)));
+            }
+        }
+
+        /**
+         * @param status   the HTTP status, -1 when no response was received.
+         * @param response the error body or message.
+         */
+        public void failed(int status, Object response) {
+            if (!wire.isWarnEnabled()) {
+                return;
+            }
+            String request = sampled ? "(logged above)" : truncate(requestBody.get());
+            wire.warn("<-- {} {} ({} ms) failed, request: {} response: {}", status, endpoint, elapsedMillis(), request,
+                    truncate(String.valueOf(response)));
+        }
+
+        private long elapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+
+    private String truncate(String body) {
+        if (body == null || body.length() <= maxBodyChars) {
+            return body;
+        }
+        return body.substring(0, maxBodyChars) + "... (" + body.length() + " chars)";
+    }
+}
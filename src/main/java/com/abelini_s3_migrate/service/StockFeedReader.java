@@ -0,0 +1,57 @@
+package com.abelini_s3_migrate.service;
+
+import com.abelini_s3_migrate.extra.ProductEntry;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Reads the all_stock_product feed, a JSON array of stock rows, one row at a time with the
+ * streaming parser. Only product_id, tag_no and sort_order are kept, as a {@link ProductEntry}, so
+ * the feed is never held in memory as text or maps.
+ */
+public final class StockFeedReader {
+
+    private StockFeedReader() {
+    }
+
+    /**
+     * @return the number of rows handed to the consumer.
+     * @throws IOException when the feed is not a JSON array of objects or the stream breaks off.
+     */
+    public static long read(JsonParser parser, Consumer<ProductEntry> consumer) throws IOException {
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Stock feed is not a JSON array");
+        }
+        long rows = 0;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String productId = null;
+            String tagNo = null;
+            int sortOrder = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "product_id" -> productId = value == JsonToken.VALUE_NULL ? null : parser.getValueAsString().intern();
+                    case "tag_no" -> tagNo = value == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+                    case "sort_order" -> sortOrder = parser.getValueAsInt(0);
+                    default -> parser.skipChildren();
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                throw new IOException("Stock feed breaks off after " + rows + " rows");
+            }
+            if (productId != null) {
+                consumer.accept(new ProductEntry(productId, String.valueOf(tagNo), sortOrder));
+                rows++;
+            }
+        }
+        // anything but the end of the array means rows were left unread
+        if (parser.currentToken() != JsonToken.END_ARRAY) {
+            throw new IOException("Stock feed has " + parser.currentToken() + " instead of a row after " + rows + " rows");
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,85 @@
+package com.abelini_s3_migrate.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CollectionSyncServiceTest {
+
+    @Test
+    void noMovesWhenTheCollectionIsInOrder() {
+        assertTrue(CollectionSyncService.computeMoves(List.of("a", "b", "c"), List.of("a", "b", "c")).isEmpty());
+        assertTrue(CollectionSyncService.computeMoves(List.of("a", "b", "x"), List.of("a", "b")).isEmpty());
+    }
+
+    @Test
+    void movesOnlyTheProductsOutOfPlace() {
+        List<Map<String, Object>> moves = CollectionSyncService.computeMoves(List.of("a", "c", "b", "d"), List.of("a", "b", "c", "d"));
+
+        assertEquals(List.of(Map.of("id", "b", "newPosition", "1")), moves);
+    }
+
+    @Test
+    void ordersProductsAppendedInAnyOrder() {
+        // parallel add batches landed in the opposite order
+        List<String> current = List.of("a", "b", "e", "f", "c", "d");
+        List<String> desired = List.of("a", "b", "c", "d", "e", "f");
+
+        assertEquals(desired, apply(current, CollectionSyncService.computeMoves(current, desired)));
+    }
+
+    @Test
+    void ignoresDesiredProductsThatAreNotInTheCollection() {
+        List<String> current = List.of("c", "a");
+
+        List<String> ordered = apply(current, CollectionSyncService.computeMoves(current, List.of("a", "missing", "b", "c")));
+
+        assertEquals(List.of("a", "c"), ordered);
+    }
+
+    @Test
+    void keepsUndesiredProductsAfterTheDesiredOnes() {
+        List<String> current = List.of("x", "b", "y", "a");
+
+        List<String> ordered = apply(current, CollectionSyncService.computeMoves(current, List.of("a", "b", "a")));
+
+        assertEquals(List.of("a", "b", "x", "y"), ordered);
+    }
+
+    @Test
+    void randomOrdersEndInTheDesiredOrder() {
+        Random random = new Random(23);
+        for (int run = 0; run < 200; run++) {
+            List<String> current = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                current.add("gid://shopify/Product/" + i);
+            }
+            Collections.shuffle(current, random);
+            List<String> desired = new ArrayList<>(current.subList(0, 20));
+            Collections.shuffle(desired, random);
+            desired.add("gid://shopify/Product/not-in-collection");
+
+            List<String> ordered = apply(current, CollectionSyncService.computeMoves(current, desired));
+
+            assertEquals(desired.subList(0, 20), ordered.subList(0, 20));
+            assertEquals(current.size(), ordered.size());
+        }
+    }
+
+    // applies the moves one after the other, as collectionReorderProducts does
+    private static List<String> apply(List<String> current, List<Map<String, Object>> moves) {
+        List<String> order = new ArrayList<>(current);
+        for (Map<String, Object> move : moves) {
+            String productId = (String) move.get("id");
+            order.remove(productId);
+            order.add(Integer.parseInt((String) move.get("newPosition")), productId);
+        }
+        return order;
+    }
+}
@@ -0,0 +1,50 @@
+package com.abelini_s3_migrate.service;
+
+import com.abelini_s3_migrate.extra.VariantImportJob;
+import com.abelini_s3_migrate.repo.Product2lakhRepository;
+import com.abelini_s3_migrate.repo.ProductBestsellerRepository;
+import com.abelini_s3_migrate.repo.ProductCaratRepository;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ImportedVariantIndexServiceTest {
+
+    private final Product2lakhRepository product2lakhRepository = mock(Product2lakhRepository.class);
+    private final ProductCaratRepository productCaratRepository = mock(ProductCaratRepository.class);
+    private final ProductBestsellerRepository productBestsellerRepository = mock(ProductBestsellerRepository.class);
+    private final ImportedVariantIndexService service =
+            new ImportedVariantIndexService(product2lakhRepository, productCaratRepository, productBestsellerRepository);
+
+    @Test
+    void loadsTheStoredVariantsOfTheJob() {
+        when(productCaratRepository.count()).thenReturn(2L);
+        when(productCaratRepository.streamAllVariantCodes()).thenReturn(Stream.of(
+                new Object[]{"459", "SKU-1"},
+                new Object[]{"459", "SKU-1"},
+                new Object[]{"460", "SKU-2"}));
+
+        ImportedVariantIndex index = service.load(VariantImportJob.CARAT);
+
+        assertEquals(2, index.size());
+        assertTrue(index.contains("459", "SKU-1"));
+        assertTrue(index.contains("460", "SKU-2"));
+        verifyNoInteractions(product2lakhRepository, productBestsellerRepository);
+    }
+
+    @Test
+    void marksVariantsImportedInTheLoadedIndex() {
+        when(product2lakhRepository.streamAllVariantCodes()).thenReturn(Stream.empty());
+        ImportedVariantIndex index = service.load(VariantImportJob.LAKH);
+
+        service.markImported(VariantImportJob.LAKH, "459", "SKU-1");
+        // a job that was never loaded has no index to update
+        service.markImported(VariantImportJob.BESTSELLER, "459", "SKU-2");
+
+        assertTrue(index.contains("459", "SKU-1"));
+        assertFalse(index.contains("459", "SKU-2"));
+    }
+}
@@ -0,0 +1,70 @@
+package com.abelini_s3_migrate.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImportedVariantIndexTest {
+
+    @Test
+    void containsOnlyAddedPairs() {
+        ImportedVariantIndex index = new ImportedVariantIndex(4);
+
+        assertTrue(index.add("459", "SKU-1"));
+        assertTrue(index.add("459", "SKU-2"));
+
+        assertTrue(index.contains("459", "SKU-1"));
+        assertTrue(index.contains("459", "SKU-2"));
+        assertFalse(index.contains("459", "SKU-3"));
+        assertFalse(index.contains("460", "SKU-1"));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    void addingADuplicateKeepsTheSize() {
+        ImportedVariantIndex index = new ImportedVariantIndex(4);
+
+        assertTrue(index.add("459", "SKU-1"));
+        assertFalse(index.add("459", "SKU-1"));
+
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void pairsAreNotJustConcatenated() {
+        ImportedVariantIndex index = new ImportedVariantIndex(4);
+
+        index.add("45", "9SKU");
+
+        assertFalse(index.contains("459", "SKU"));
+        assertFalse(index.contains("", "459SKU"));
+    }
+
+    @Test
+    void nullValuesAreIndexed() {
+        ImportedVariantIndex index = new ImportedVariantIndex(4);
+
+        assertTrue(index.add("459", null));
+
+        assertTrue(index.contains("459", null));
+        assertFalse(index.contains("459", "SKU-1"));
+    }
+
+    @Test
+    void growsPastTheInitialCapacity() {
+        ImportedVariantIndex index = new ImportedVariantIndex(0);
+        int count = 10_000;
+
+        for (int i = 0; i < count; i++) {
+            assertTrue(index.add(String.valueOf(i / 50), "SKU-" + i));
+        }
+
+        assertEquals(count, index.size());
+        for (int i = 0; i < count; i++) {
+            assertTrue(index.contains(String.valueOf(i / 50), "SKU-" + i), "missing variant " + i);
+            assertFalse(index.add(String.valueOf(i / 50), "SKU-" + i));
+        }
+        assertFalse(index.contains("0", "SKU-" + count));
+        assertEquals(count, index.size());
+    }
+}
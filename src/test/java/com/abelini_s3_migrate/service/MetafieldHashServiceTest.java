@@ -0,0 +1,92 @@
+package com.abelini_s3_migrate.service;
+
+import com.abelini_s3_migrate.entity.MetafieldHash;
+import com.abelini_s3_migrate.repo.MetafieldHashRepository;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class MetafieldHashServiceTest {
+
+    private static final String OWNER = "gid://shopify/Product/1";
+
+    private final MetafieldHashRepository metafieldHashRepository = mock(MetafieldHashRepository.class);
+    private final MetafieldHashService service = new MetafieldHashService(metafieldHashRepository);
+
+    @Test
+    void hashDependsOnTypeAndValueOnly() {
+        Map<String, Object> input = MetafieldMapping.input("custom", "metal", "single_line_text_field", "Gold");
+
+        assertEquals(MetafieldHashService.hash(input),
+                MetafieldHashService.hash(MetafieldMapping.input("other", "colour", "single_line_text_field", "Gold")));
+        assertNotEquals(MetafieldHashService.hash(input),
+                MetafieldHashService.hash(MetafieldMapping.input("custom", "metal", "single_line_text_field", "gold")));
+        assertNotEquals(MetafieldHashService.hash(input),
+                MetafieldHashService.hash(MetafieldMapping.input("custom", "metal", "multi_line_text_field", "Gold")));
+    }
+
+    @Test
+    void hashSeparatesTypeFromValue() {
+        assertNotEquals(MetafieldHashService.hash(MetafieldMapping.input("custom", "a", "ab", "c")),
+                MetafieldHashService.hash(MetafieldMapping.input("custom", "a", "a", "bc")));
+    }
+
+    @Test
+    void diffKeepsOnlyNewAndChangedInputs() {
+        Map<String, Object> unchanged = MetafieldMapping.input("custom", "metal", "single_line_text_field", "Gold");
+        Map<String, Object> changed = MetafieldMapping.input("custom", "shape", "single_line_text_field", "Oval");
+        Map<String, Object> added = MetafieldMapping.input("custom", "carat", "number_decimal", "1.5");
+        when(metafieldHashRepository.findByOwnerId(OWNER)).thenReturn(List.of(
+                stored("metal", MetafieldHashService.hash(unchanged)),
+                stored("shape", MetafieldHashService.hash(MetafieldMapping.input("custom", "shape", "single_line_text_field", "Round")))));
+
+        MetafieldHashService.Diff diff = service.diff(OWNER, List.of(unchanged, changed, added));
+
+        assertEquals(2, diff.changed().size());
+        assertSame(changed, diff.changed().get(0));
+        assertSame(added, diff.changed().get(1));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void recordStoresOnlyTheInputsShopifyAccepted() {
+        Map<String, Object> accepted = MetafieldMapping.input("custom", "metal", "single_line_text_field", "Gold");
+        Map<String, Object> rejected = MetafieldMapping.input("custom", "shape", "single_line_text_field", "Oval");
+        when(metafieldHashRepository.findByOwnerId(OWNER)).thenReturn(List.of());
+        MetafieldHashService.Diff diff = service.diff(OWNER, List.of(accepted, rejected));
+
+        // an equal but distinct map is still a different input
+        service.record(diff, diff.changed(), List.of(rejected, Map.copyOf(accepted)));
+
+        ArgumentCaptor<List<MetafieldHash>> saved = ArgumentCaptor.forClass(List.class);
+        verify(metafieldHashRepository).saveAll(saved.capture());
+        assertEquals(1, saved.getValue().size());
+        MetafieldHash hash = saved.getValue().get(0);
+        assertEquals(OWNER, hash.getOwnerId());
+        assertEquals("custom", hash.getNamespace());
+        assertEquals("metal", hash.getMetafieldKey());
+        assertEquals(MetafieldHashService.hash(accepted), hash.getValueHash());
+    }
+
+    @Test
+    void recordSkipsHashesThatDidNotChange() {
+        Map<String, Object> input = MetafieldMapping.input("custom", "metal", "single_line_text_field", "Gold");
+        when(metafieldHashRepository.findByOwnerId(OWNER)).thenReturn(List.of(stored("metal", MetafieldHashService.hash(input))));
+        MetafieldHashService.Diff diff = service.diff(OWNER, List.of(input));
+
+        service.record(diff, List.of(input), List.of());
+
+        verify(metafieldHashRepository, never()).saveAll(any());
+    }
+
+    private static MetafieldHash stored(String key, long valueHash) {
+        return new MetafieldHash(1L, OWNER, "custom", key, valueHash, LocalDateTime.now());
+    }
+}
@@ -0,0 +1,109 @@
+package com.abelini_s3_migrate.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetaobjectDictionaryTest {
+
+    @Test
+    void normalizeTrimsCollapsesWhitespaceAndLowerCases() {
+        assertEquals("round brilliant", MetaobjectDictionary.normalize("  Round \t\n Brilliant "));
+        assertEquals("oval", MetaobjectDictionary.normalize("OVAL"));
+        assertEquals("", MetaobjectDictionary.normalize(" \t "));
+    }
+
+    @Test
+    void looksUpNamesIgnoringCaseAndWhitespace() {
+        MetaobjectDictionary dictionary = new MetaobjectDictionary("shape", Map.of(
+                "Round", "gid://shopify/Metaobject/1",
+                "Round Brilliant", "gid://shopify/Metaobject/2",
+                "Oval", "gid://shopify/Metaobject/3"));
+
+        assertEquals("gid://shopify/Metaobject/1", dictionary.lookup("round"));
+        assertEquals("gid://shopify/Metaobject/1", dictionary.lookup("  ROUND "));
+        assertEquals("gid://shopify/Metaobject/2", dictionary.lookup("Round   brilliant"));
+        assertEquals("gid://shopify/Metaobject/2", dictionary.lookup("\tround\nbrilliant "));
+        assertEquals("gid://shopify/Metaobject/3", dictionary.lookup("oval"));
+    }
+
+    @Test
+    void unknownNamesAndPrefixesAreMisses() {
+        MetaobjectDictionary dictionary = new MetaobjectDictionary("shape", Map.of(
+                "Round", "gid://shopify/Metaobject/1",
+                "Round Brilliant", "gid://shopify/Metaobject/2"));
+
+        assertNull(dictionary.lookup("Roun"));
+        assertNull(dictionary.lookup("Round B"));
+        assertNull(dictionary.lookup("Round Brilliants"));
+        assertNull(dictionary.lookup("RoundBrilliant"));
+        assertNull(dictionary.lookup(""));
+        assertNull(dictionary.lookup("   "));
+        assertNull(dictionary.lookup(null));
+        assertNull(MetaobjectDictionary.EMPTY.lookup("Round"));
+    }
+
+    @Test
+    void namesThatNormalizeAlikeKeepTheFirstEntry() {
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("Pear", "gid://shopify/Metaobject/1");
+        entries.put(" pear ", "gid://shopify/Metaobject/2");
+        entries.put("Heart", "gid://shopify/Metaobject/3");
+
+        MetaobjectDictionary dictionary = new MetaobjectDictionary("shape", entries);
+
+        assertEquals(2, dictionary.size());
+        assertEquals("gid://shopify/Metaobject/1", dictionary.lookup("PEAR"));
+        assertEquals("gid://shopify/Metaobject/3", dictionary.lookup("heart"));
+    }
+
+    @Test
+    void lookupMatchesTheNormalizedMap() {
+        Random random = new Random(17);
+        String alphabet = "aAbB cC\t";
+        Map<String, String> entries = new HashMap<>();
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            String name = randomName(random, alphabet);
+            String id = "gid://shopify/Metaobject/" + i;
+            if (entries.putIfAbsent(name, id) == null) {
+                expected.putIfAbsent(MetaobjectDictionary.normalize(name), id);
+            }
+        }
+        MetaobjectDictionary dictionary = new MetaobjectDictionary("test", entries);
+
+        for (int i = 0; i < 5000; i++) {
+            String name = randomName(random, alphabet);
+            String normalized = MetaobjectDictionary.normalize(name);
+            String found = dictionary.lookup(name);
+            if (expected.containsKey(normalized)) {
+                assertNotNull(found, "missed '" + name + "'");
+                assertEquals(normalized, MetaobjectDictionary.normalize(keyOf(entries, found)));
+            } else {
+                assertNull(found, "matched '" + name + "'");
+            }
+        }
+    }
+
+    private static String randomName(Random random, String alphabet) {
+        StringBuilder name = new StringBuilder();
+        int length = random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            name.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return name.toString();
+    }
+
+    private static String keyOf(Map<String, String> entries, String id) {
+        return entries.entrySet().stream()
+                .filter(entry -> entry.getValue().equals(id))
+                .findFirst()
+                .orElseThrow()
+                .getKey();
+    }
+}
@@ -0,0 +1,112 @@
+package com.abelini_s3_migrate.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShopifyRateLimiterTest {
+
+    // one point per second keeps the refill between two statements well below a point
+    private final ShopifyRateLimiter limiter = new ShopifyRateLimiter(1000, 1);
+
+    @Test
+    void acquireSpendsTheCostUntilShopifyReportsTheBucket() {
+        limiter.acquire(10);
+        assertEquals(990, limiter.getCurrentlyAvailable());
+
+        limiter.onResponse(10, cost(10, 4, 996));
+
+        assertEquals(996, limiter.getCurrentlyAvailable());
+    }
+
+    @Test
+    void pointsStillInFlightAreKeptOutOfTheReportedBucket() {
+        limiter.acquire(10);
+        limiter.acquire(10);
+
+        // the first response does not know about the second request yet
+        limiter.onResponse(10, cost(10, 10, 990));
+
+        assertEquals(980, limiter.getCurrentlyAvailable());
+    }
+
+    @Test
+    void unusedPointsAreRefundedWithoutThrottleStatus() {
+        limiter.acquire(10);
+
+        limiter.onResponse(10, new GraphQLResponse.Cost(10, 4, null));
+
+        assertEquals(996, limiter.getCurrentlyAvailable());
+    }
+
+    @Test
+    void aFailedRequestOnlyReleasesItsReservation() {
+        limiter.acquire(10);
+
+        limiter.onResponse(10, (GraphQLResponse.Cost) null);
+        assertEquals(990, limiter.getCurrentlyAvailable());
+
+        limiter.onResponse(0, cost(0, 0, 1000));
+        assertEquals(1000, limiter.getCurrentlyAvailable());
+    }
+
+    @Test
+    void consumedPointsAreNotHeldInFlight() {
+        limiter.consume(10);
+        assertEquals(990, limiter.getCurrentlyAvailable());
+
+        limiter.onResponse(0, cost(0, 0, 990));
+
+        assertEquals(990, limiter.getCurrentlyAvailable());
+    }
+
+    @Test
+    void readsTheCostExtensionOfARawBody() {
+        limiter.acquire(10);
+
+        limiter.onResponse(10, "{\"data\":{},\"extensions\":{\"cost\":{\"requestedQueryCost\":10,\"actualQueryCost\":4,"
+                + "\"throttleStatus\":{\"maximumAvailable\":2000,\"currentlyAvailable\":1500,\"restoreRate\":100}}}}");
+
+        assertEquals(2000, limiter.getMaximumAvailable());
+        assertEquals(1500, limiter.getCurrentlyAvailable());
+    }
+
+    @Test
+    void acquireWaitsUntilTheMissingPointsAreRestored() {
+        ShopifyRateLimiter fast = new ShopifyRateLimiter(100, 1000);
+        fast.acquire(100);
+        assertTrue(fast.millisUntilAvailable(50) > 0);
+
+        long start = System.nanoTime();
+        fast.acquire(50);
+        long waitedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(waitedMillis >= 25, "waited only " + waitedMillis + " ms");
+    }
+
+    @Test
+    void anInterruptedWaitReservesNothing() {
+        ShopifyRateLimiter slow = new ShopifyRateLimiter(100, 1);
+        slow.acquire(100);
+
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(CancellationException.class, () -> slow.acquire(50));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+
+        // only the first reservation is in flight, a full bucket report leaves exactly it out
+        slow.onResponse(0, new GraphQLResponse.Cost(0, 0, new GraphQLResponse.ThrottleStatus(100, 100, 1)));
+        assertEquals(0, slow.getCurrentlyAvailable());
+        slow.onResponse(100, new GraphQLResponse.Cost(100, 100, new GraphQLResponse.ThrottleStatus(100, 100, 1)));
+        assertEquals(100, slow.getCurrentlyAvailable());
+    }
+
+    private static GraphQLResponse.Cost cost(double requested, double actual, double currentlyAvailable) {
+        return new GraphQLResponse.Cost(requested, actual, new GraphQLResponse.ThrottleStatus(1000, currentlyAvailable, 1));
+    }
+}
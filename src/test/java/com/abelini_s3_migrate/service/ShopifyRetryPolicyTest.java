@@ -0,0 +1,142 @@
+package com.abelini_s3_migrate.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShopifyRetryPolicyTest {
+
+    private final ShopifyRetryPolicy policy = new ShopifyRetryPolicy(new ShopifyRateLimiter(1000, 1000), 3, 1, 5);
+
+    @Test
+    void returnsTheFirstSuccessfulResponse() {
+        List<Integer> attempts = new ArrayList<>();
+
+        String response = policy.execute("test", false, 10, attempt -> {
+            attempts.add(attempt);
+            return "ok";
+        }, "THROTTLED"::equals);
+
+        assertEquals("ok", response);
+        assertEquals(List.of(0), attempts);
+    }
+
+    @Test
+    void retriesServerErrorsOfIdempotentCalls() {
+        List<Integer> attempts = new ArrayList<>();
+
+        String response = policy.execute("test", true, 10, attempt -> {
+            attempts.add(attempt);
+            if (attempt < 2) {
+                throw new ShopifyApiException(503, "unavailable", null);
+            }
+            return "ok";
+        }, "THROTTLED"::equals);
+
+        assertEquals("ok", response);
+        assertEquals(List.of(0, 1, 2), attempts);
+    }
+
+    @Test
+    void neverRepeatsANonIdempotentCallAfterAServerErrorOrTimeout() {
+        for (ShopifyApiException failure : List.of(
+                new ShopifyApiException(502, "bad gateway", null),
+                new ShopifyApiException("read timed out", new RuntimeException()))) {
+            List<Integer> attempts = new ArrayList<>();
+
+            ShopifyApiException thrown = assertThrows(ShopifyApiException.class, () -> policy.execute("test", false, 10, attempt -> {
+                attempts.add(attempt);
+                throw failure;
+            }, "THROTTLED"::equals));
+
+            assertSame(failure, thrown);
+            assertEquals(List.of(0), attempts);
+        }
+    }
+
+    @Test
+    void retriesRateLimitedCallsEvenWhenNotIdempotent() {
+        List<Integer> attempts = new ArrayList<>();
+
+        String response = policy.execute("test", false, 10, attempt -> {
+            attempts.add(attempt);
+            if (attempt == 0) {
+                throw new ShopifyApiException(429, "too many requests", null);
+            }
+            return "ok";
+        }, "THROTTLED"::equals);
+
+        assertEquals("ok", response);
+        assertEquals(List.of(0, 1), attempts);
+    }
+
+    @Test
+    void rethrowsTheLastFailureOnceTheAttemptsAreUsedUp() {
+        List<Integer> attempts = new ArrayList<>();
+
+        ShopifyApiException thrown = assertThrows(ShopifyApiException.class, () -> policy.execute("test", true, 10, attempt -> {
+            attempts.add(attempt);
+            throw new ShopifyApiException(500, "attempt " + attempt, null);
+        }, "THROTTLED"::equals));
+
+        assertEquals("attempt 2", thrown.getResponseBody());
+        assertEquals(List.of(0, 1, 2), attempts);
+    }
+
+    @Test
+    void retriesThrottledResponsesAndReturnsTheLastOne() {
+        List<Integer> attempts = new ArrayList<>();
+
+        String response = policy.execute("test", false, 10, attempt -> {
+            attempts.add(attempt);
+            return "THROTTLED";
+        }, "THROTTLED"::equals);
+
+        assertEquals("THROTTLED", response);
+        assertEquals(List.of(0, 1, 2), attempts);
+    }
+
+    @Test
+    void aNullResponseIsNotRetried() {
+        List<Integer> attempts = new ArrayList<>();
+
+        String response = policy.execute("test", true, 10, attempt -> {
+            attempts.add(attempt);
+            return null;
+        }, "THROTTLED"::equals);
+
+        assertNull(response);
+        assertEquals(List.of(0), attempts);
+    }
+
+    @Test
+    void anInterruptedCallIsNotRetried() {
+        List<Integer> attempts = new ArrayList<>();
+
+        assertThrows(CancellationException.class, () -> policy.execute("test", true, 10, attempt -> {
+            attempts.add(attempt);
+            throw new CancellationException("interrupted");
+        }, "THROTTLED"::equals));
+
+        assertEquals(List.of(0), attempts);
+    }
+
+    @Test
+    void waitsAtLeastTheRetryAfterDelay() {
+        long start = System.nanoTime();
+
+        String response = policy.execute("test", false, 10, attempt -> {
+            if (attempt == 0) {
+                throw new ShopifyApiException(429, "too many requests", "0.05");
+            }
+            return "ok";
+        }, "THROTTLED"::equals);
+
+        assertEquals("ok", response);
+        assertTrue((System.nanoTime() - start) / 1_000_000 >= 50);
+    }
+}
@@ -0,0 +1,73 @@
+package com.abelini_s3_migrate.service;
+
+import com.abelini_s3_migrate.extra.ProductEntry;
+import com.fasterxml.jackson.core.JsonFactory;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StockFeedReaderTest {
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    @Test
+    void readsTheKeptFieldsOfEveryRow() throws IOException {
+        List<ProductEntry> entries = new ArrayList<>();
+
+        long rows = read("""
+                [
+                  {"product_id": "459", "tag_no": "T1", "sort_order": 2, "images": ["a.jpg"], "meta": {"x": 1}},
+                  {"product_id": 460, "tag_no": null, "sort_order": "5"},
+                  {"tag_no": "T3", "sort_order": 1}
+                ]
+                """, entries);
+
+        assertEquals(2, rows);
+        assertEquals(2, entries.size());
+        assertEquals("459", entries.get(0).getProductId());
+        assertEquals("T1", entries.get(0).getTagNo());
+        assertEquals(2, entries.get(0).getSortOrder());
+        assertEquals("460", entries.get(1).getProductId());
+        assertEquals("null", entries.get(1).getTagNo());
+        assertEquals(5, entries.get(1).getSortOrder());
+    }
+
+    @Test
+    void readsAnEmptyFeed() throws IOException {
+        assertEquals(0, read("[]", new ArrayList<>()));
+    }
+
+    @Test
+    void rejectsAFeedThatIsNotAnArray() {
+        assertThrows(IOException.class, () -> read("{\"error\": \"unauthorized\"}", new ArrayList<>()));
+    }
+
+    @Test
+    void rejectsAnElementThatIsNotARow() {
+        List<ProductEntry> entries = new ArrayList<>();
+
+        assertThrows(IOException.class, () -> read("""
+                [{"product_id": "459", "tag_no": "T1"}, "oops", {"product_id": "460", "tag_no": "T2"}]
+                """, entries));
+
+        assertEquals(1, entries.size());
+    }
+
+    @Test
+    void rejectsATruncatedFeed() {
+        List<ProductEntry> entries = new ArrayList<>();
+
+        assertThrows(IOException.class, () -> read("[{\"product_id\": \"459\", \"tag_no\": \"T1\"}, {\"product_id\": \"46", entries));
+        assertThrows(IOException.class, () -> read("[{\"product_id\": \"459\", \"tag_no\": \"T1\"}", entries));
+    }
+
+    private long read(String feed, List<ProductEntry> entries) throws IOException {
+        try (var parser = jsonFactory.createParser(feed)) {
+            return StockFeedReader.read(parser, entries::add);
+        }
+    }
+}